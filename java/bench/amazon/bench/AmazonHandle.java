@@ -0,0 +1,245 @@
+package amazon.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.List;
+
+/**
+ * Calls into the program, whose classes live in the unnamed package that
+ * named packages cannot import. JMH refuses benchmarks in the unnamed
+ * package, so the benchmarks reach Amazon through method handles looked up
+ * once; a handle held in a static final field is inlined by the JIT much
+ * like a direct call.
+ *
+ */
+public final class AmazonHandle {
+
+   static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+   static final Class<?> AMAZON = load("Amazon");
+   static final Class<?> USER_SESSION = load("UserSession");
+   static final Class<?> ROLE = load("UserSession$Role");
+   static final Class<?> COLUMN_BATCH = load("ColumnBatch");
+   static final Class<?> ROW_HANDLER = load("RowHandler");
+   static final Class<?> SPATIAL_INDEX = load("SpatialIndex");
+   static final Class<?> BULK_LOADER = load("BulkLoader");
+
+   static final MethodHandle NEW_AMAZON = constructor(AMAZON, String.class, String.class, String.class, String.class, int.class);
+   static final MethodHandle NEW_SESSION = constructor(AMAZON, AMAZON, BufferedReader.class, PrintStream.class);
+   static final MethodHandle NEW_USER = constructor(USER_SESSION, String.class, int.class, ROLE, double.class, double.class, List.class);
+   static final MethodHandle ROLE_OF = staticMethod(ROLE, "of", ROLE, String.class);
+   static final MethodHandle NEW_BATCH = constructor(COLUMN_BATCH);
+   static final MethodHandle NEW_LOADER = constructor(BULK_LOADER, String.class, String.class, String.class, File.class, File.class);
+
+   static final MethodHandle CALCULATE_DISTANCE = method(AMAZON, "calculateDistance", double.class, double.class, double.class, double.class, double.class);
+   static final MethodHandle GET_STORE_INDEX = method(AMAZON, "getStoreIndex", SPATIAL_INDEX);
+   static final MethodHandle WITHIN_RADIUS = method(SPATIAL_INDEX, "withinRadius", List.class, double.class, double.class, double.class);
+   static final MethodHandle RETURN_RESULT = method(AMAZON, "executeQueryAndReturnResult", List.class, String.class, Object[].class);
+   static final MethodHandle RETURN_BATCH = method(AMAZON, "executeQueryAndReturnBatch", COLUMN_BATCH, String.class, COLUMN_BATCH, Object[].class);
+   static final MethodHandle STREAMING = method(AMAZON, "executeQueryStreaming", int.class, String.class, int.class, ROW_HANDLER, Object[].class);
+   static final MethodHandle EXECUTE_QUERY = method(AMAZON, "executeQuery", int.class, String.class, Object[].class);
+   static final MethodHandle EXECUTE_UPDATE = method(AMAZON, "executeUpdate", int.class, String.class, Object[].class);
+   static final MethodHandle SUBMIT_ORDER = method(AMAZON, "submitOrder", int.class, int.class, int.class, String.class, int.class);
+   static final MethodHandle CLEANUP = method(AMAZON, "cleanup", void.class);
+   static final MethodHandle BATCH_ROWS = method(COLUMN_BATCH, "getRowCount", int.class);
+   static final MethodHandle INT_COLUMN = method(COLUMN_BATCH, "intColumn", int[].class, int.class);
+   static final MethodHandle LONG_COLUMN = method(COLUMN_BATCH, "longColumn", long[].class, int.class);
+   static final MethodHandle SET_SCALE = method(BULK_LOADER, "setScale", void.class, int.class);
+   static final MethodHandle LOAD = method(BULK_LOADER, "load", void.class);
+
+   static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+   private static Class<?> load(String name) {
+      try {
+         return Class.forName(name);
+      }catch (ClassNotFoundException e) {
+         throw new IllegalStateException("The program classes are not on the class path", e);
+      }
+   }
+
+   // a handle typed with Object for every reference, so call sites can
+   // use invokeExact without naming the program classes.
+   private static MethodHandle erase(MethodHandle handle) {
+      handle = handle.asFixedArity();
+      return handle.asType(handle.type().erase());
+   }
+
+   private static MethodHandle constructor(Class<?> type, Class<?>... params) {
+      try {
+         return erase(LOOKUP.findConstructor(type, MethodType.methodType(void.class, params)));
+      }catch (ReflectiveOperationException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static MethodHandle method(Class<?> type, String name, Class<?> returns, Class<?>... params) {
+      try {
+         return erase(LOOKUP.findVirtual(type, name, MethodType.methodType(returns, params)));
+      }catch (ReflectiveOperationException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static MethodHandle staticMethod(Class<?> type, String name, Class<?> returns, Class<?>... params) {
+      try {
+         return erase(LOOKUP.findStatic(type, name, MethodType.methodType(returns, params)));
+      }catch (ReflectiveOperationException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static MethodHandle menu(String name) {
+      try {
+         return erase(LOOKUP.findStatic(AMAZON, name, MethodType.methodType(void.class, AMAZON, USER_SESSION)));
+      }catch (ReflectiveOperationException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * A menu operation of the program, run for one user with its answers to
+    * the prompts given up front.
+    */
+   public static final class MenuOperation {
+      private final MethodHandle _handle;
+
+      MenuOperation(String name) {
+         this._handle = menu(name);
+      }
+   }//end MenuOperation
+
+   public static final MenuOperation VIEW_POPULAR_PRODUCTS = new MenuOperation("viewPopularProducts");
+   public static final MenuOperation VIEW_POPULAR_CUSTOMERS = new MenuOperation("viewPopularCustomers");
+   public static final MenuOperation VIEW_RECENT_ORDERS = new MenuOperation("viewRecentOrders");
+   public static final MenuOperation VIEW_RECENT_UPDATES = new MenuOperation("viewRecentUpdates");
+   public static final MenuOperation VIEW_STORES = new MenuOperation("viewStores");
+
+   private final Object _esql;
+
+   private AmazonHandle(Object esql) {
+      this._esql = esql;
+   }
+
+   /**
+    * Starts the program against a database, loading its in-memory indexes.
+    */
+   public static AmazonHandle connect(String dbname, int port, String user, int poolSize) throws Throwable {
+      return new AmazonHandle(NEW_AMAZON.invoke(dbname, String.valueOf(port), user, "", poolSize));
+   }
+
+   /**
+    * @return a user of the program, as LogIn() would make it
+    */
+   public static Object user(String name, int userID, String type, double latitude, double longitude, List<Integer> managedStores) throws Throwable {
+      return NEW_USER.invoke(name, userID, ROLE_OF.invoke(type), latitude, longitude, managedStores);
+   }
+
+   /**
+    * Creates the database schema and loads the data files into it, copied
+    * scale times, with the program's BulkLoader.
+    */
+   public static void bulkLoad(String url, String user, String password, File data, File sql, int scale) throws Throwable {
+      Object loader = NEW_LOADER.invoke(url, user, password, data, sql);
+      SET_SCALE.invokeExact(loader, scale);
+      LOAD.invokeExact(loader);
+   }
+
+   public static Object newBatch() throws Throwable {
+      return NEW_BATCH.invoke();
+   }
+
+   public static int rowCount(Object batch) throws Throwable {
+      return (int) BATCH_ROWS.invokeExact(batch);
+   }
+
+   public static int[] intColumn(Object batch, int col) throws Throwable {
+      return (int[]) (Object) INT_COLUMN.invokeExact(batch, col);
+   }
+
+   /**
+    * @return a BIGINT column, or a DATE or TIMESTAMP column in epoch milliseconds
+    */
+   public static long[] longColumn(Object batch, int col) throws Throwable {
+      return (long[]) (Object) LONG_COLUMN.invokeExact(batch, col);
+   }
+
+   /**
+    * @return a RowHandler that hands every row to the given reader and
+    *         goes on to the next
+    */
+   public static Object rowHandler(final RowReader reader) {
+      return Proxy.newProxyInstance(ROW_HANDLER.getClassLoader(), new Class<?>[] {ROW_HANDLER}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("row")) {
+               reader.row((ResultSet) args[0]);
+               return Boolean.TRUE;
+            }
+            return method.invoke(this, args);
+         }
+      });
+   }
+
+   /**
+    * Reads the rows of a streamed query.
+    */
+   public interface RowReader {
+      void row(ResultSet rs) throws Exception;
+   }
+
+   public double calculateDistance(double lat1, double long1, double lat2, double long2) throws Throwable {
+      return (double) CALCULATE_DISTANCE.invokeExact(this._esql, lat1, long1, lat2, long2);
+   }
+
+   public List<?> storesWithinRadius(double latitude, double longitude, double radius) throws Throwable {
+      Object index = (Object) GET_STORE_INDEX.invokeExact(this._esql);
+      return (List<?>) (Object) WITHIN_RADIUS.invokeExact(index, latitude, longitude, radius);
+   }
+
+   @SuppressWarnings("unchecked")
+   public List<List<String>> executeQueryAndReturnResult(String query, Object... params) throws Throwable {
+      return (List<List<String>>) (Object) RETURN_RESULT.invokeExact(this._esql, (Object) query, (Object) params);
+   }
+
+   public Object executeQueryAndReturnBatch(String query, Object batch, Object... params) throws Throwable {
+      return (Object) RETURN_BATCH.invokeExact(this._esql, (Object) query, batch, (Object) params);
+   }
+
+   public int executeQueryStreaming(String query, int fetchSize, Object handler, Object... params) throws Throwable {
+      return (int) STREAMING.invokeExact(this._esql, (Object) query, fetchSize, handler, (Object) params);
+   }
+
+   public int executeQuery(String query, Object... params) throws Throwable {
+      return (int) EXECUTE_QUERY.invokeExact(this._esql, (Object) query, (Object) params);
+   }
+
+   public int executeUpdate(String sql, Object... params) throws Throwable {
+      return (int) EXECUTE_UPDATE.invokeExact(this._esql, (Object) sql, (Object) params);
+   }
+
+   public int submitOrder(int customerID, int storeID, String productName, int units) throws Throwable {
+      return (int) SUBMIT_ORDER.invokeExact(this._esql, customerID, storeID, (Object) productName, units);
+   }
+
+   /**
+    * Runs a menu operation in a new session of the program that reads the
+    * given input and discards its output, like a client of the server.
+    */
+   public void run(MenuOperation operation, Object user, String input) throws Throwable {
+      Object session = (Object) NEW_SESSION.invokeExact(this._esql, (Object) new BufferedReader(new StringReader(input)), (Object) DISCARD);
+      operation._handle.invokeExact(session, user);
+   }
+
+   public void cleanup() throws Throwable {
+      CLEANUP.invokeExact(this._esql);
+   }
+}//end AmazonHandle
@@ -0,0 +1,39 @@
+package amazon.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The program, started once per trial against the benchmark database
+ * loaded at the scale under test. Run with -p scale=1,10,100 to compare
+ * scales in one report.
+ *
+ */
+@State(Scope.Benchmark)
+public class AmazonState {
+
+   @Param({"1"})
+   public int scale;
+
+   @Param({"8"})
+   public int poolSize;
+
+   public BenchDatabase database;
+   public AmazonHandle esql;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      this.database = BenchDatabase.fromSystemProperties();
+      this.database.load(this.scale);
+      this.esql = AmazonHandle.connect(this.database.getName(), this.database.getPort(), this.database.getUser(), this.poolSize);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws Throwable {
+      this.esql.cleanup();
+   }
+}//end AmazonState
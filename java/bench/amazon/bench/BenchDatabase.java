@@ -0,0 +1,126 @@
+package amazon.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Sets up the database the benchmarks run against: the schema from
+ * sql/src and the rows of data/*.csv, copied scale times by the program's
+ * BulkLoader. Every copy gets its own users, stores, warehouses, orders,
+ * supply requests and updates, so a scale of 100 is 100 cities of the
+ * sample data side by side.
+ *
+ * The database is created if needed and loaded only when it does not
+ * already hold the requested scale untouched; benchmarks that write mark
+ * it dirty so the next trial starts from a fresh load.
+ *
+ * Settings, as system properties: amazon.bench.db (amazon_bench),
+ * amazon.bench.port (5432), amazon.bench.user (the OS user),
+ * amazon.bench.password (empty) and amazon.bench.home, the project
+ * directory holding data/ and sql/ (the parent of the working directory).
+ *
+ */
+public final class BenchDatabase {
+
+   private final String _name;
+   private final int _port;
+   private final String _user;
+   private final String _password;
+   private final File _home;
+
+   public BenchDatabase(String name, int port, String user, String password, File home) {
+      this._name = name;
+      this._port = port;
+      this._user = user;
+      this._password = password;
+      this._home = home;
+   }
+
+   public static BenchDatabase fromSystemProperties() {
+      return new BenchDatabase(System.getProperty("amazon.bench.db", "amazon_bench"),
+         Integer.parseInt(System.getProperty("amazon.bench.port", "5432")),
+         System.getProperty("amazon.bench.user", System.getProperty("user.name")),
+         System.getProperty("amazon.bench.password", ""),
+         new File(System.getProperty("amazon.bench.home", "..")));
+   }
+
+   public String getName() { return this._name; }
+   public int getPort() { return this._port; }
+   public String getUser() { return this._user; }
+
+   private Connection connect(String database) throws SQLException {
+      return DriverManager.getConnection("jdbc:postgresql://localhost:" + this._port + "/" + database, this._user, this._password);
+   }
+
+   /**
+    * Makes sure the database holds the sample data at the given scale,
+    * creating and loading it as needed.
+    *
+    * @throws java.sql.SQLException when the database could not be loaded
+    * @throws java.io.IOException when the data or schema files could not be read
+    */
+   public void load(int scale) throws SQLException, IOException {
+      Connection admin = connect("postgres");
+      try {
+         Statement stmt = admin.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT 1 FROM pg_database WHERE datname = '" + this._name + "'");
+         if (!rs.next())
+            stmt.execute("CREATE DATABASE " + this._name);
+         stmt.close();
+      } finally {
+         admin.close();
+      }
+
+      Connection conn = connect(this._name);
+      try {
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT scale FROM BenchScale");
+         if (rs.next() && rs.getInt(1) == scale) {
+            stmt.close();
+            return;
+         }
+      }catch (SQLException e) {
+         // no BenchScale table yet
+      }
+      try {
+         long start = System.currentTimeMillis();
+         Statement stmt = conn.createStatement();
+         stmt.execute("DROP TABLE IF EXISTS BenchScale");
+         AmazonHandle.bulkLoad("jdbc:postgresql://localhost:" + this._port + "/" + this._name, this._user, this._password,
+            new File(this._home, "data"), new File(this._home, "sql/src"), scale);
+         stmt.execute("CREATE TABLE BenchScale (scale integer NOT NULL)");
+         stmt.execute("INSERT INTO BenchScale VALUES (" + scale + ")");
+         stmt.close();
+         System.out.println("Loaded " + this._name + " at scale " + scale + " in " + (System.currentTimeMillis() - start) + " ms");
+      }catch (SQLException e) {
+         throw e;
+      }catch (IOException e) {
+         throw e;
+      }catch (Throwable e) {
+         throw new IllegalStateException(e);
+      } finally {
+         conn.close();
+      }
+   }//end load
+
+   /**
+    * Makes the next load() start over, after a benchmark changed the data.
+    *
+    * @throws java.sql.SQLException when the marker could not be dropped
+    */
+   public void markDirty() throws SQLException {
+      Connection conn = connect(this._name);
+      try {
+         Statement stmt = conn.createStatement();
+         stmt.execute("DROP TABLE IF EXISTS BenchScale");
+         stmt.close();
+      } finally {
+         conn.close();
+      }
+   }//end markDirty
+}//end BenchDatabase
@@ -0,0 +1,72 @@
+package amazon.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Orders rows read and used the two ways the program can: as String cells
+ * parsed again by the caller, and decoded once into a reused ColumnBatch
+ * whose int and time columns are used as they are. Unlike
+ * QueryBenchmark, every value a caller would look at is read.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColumnBatchBenchmark {
+
+   static final String QUERY = QueryBenchmark.QUERY;
+
+   @State(Scope.Thread)
+   public static class Rows {
+      @Param({"500", "10000"})
+      public int rows;
+
+      Object batch;
+
+      @Setup
+      public void setUp() throws Throwable {
+         this.batch = AmazonHandle.newBatch();
+      }
+   }//end Rows
+
+   @Benchmark
+   public void stringCells(AmazonState state, Rows rows, Blackhole blackhole) throws Throwable {
+      for (List<String> row : state.esql.executeQueryAndReturnResult(QUERY, rows.rows)) {
+         blackhole.consume(Integer.parseInt(row.get(1)) + Integer.parseInt(row.get(2)) + Integer.parseInt(row.get(4)));
+         blackhole.consume(Integer.parseInt(row.get(3)));
+         blackhole.consume(row.get(5));
+      }
+   }
+
+   @Benchmark
+   public void columnBatch(AmazonState state, Rows rows, Blackhole blackhole) throws Throwable {
+      Object batch = state.esql.executeQueryAndReturnBatch(QUERY, rows.batch, rows.rows);
+      int count = AmazonHandle.rowCount(batch);
+      int[] customers = AmazonHandle.intColumn(batch, 1);
+      int[] stores = AmazonHandle.intColumn(batch, 2);
+      int[] products = AmazonHandle.intColumn(batch, 3);
+      int[] units = AmazonHandle.intColumn(batch, 4);
+      long[] times = AmazonHandle.longColumn(batch, 5);
+      for (int row = 0; row < count; row++) {
+         blackhole.consume(customers[row] + stores[row] + units[row]);
+         blackhole.consume(products[row]);
+         blackhole.consume(times[row]);
+      }
+   }
+}//end ColumnBatchBenchmark
@@ -0,0 +1,83 @@
+package amazon.bench;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The distance computation and the store radius search of viewStores,
+ * answered from the store location index and, for comparison, by the
+ * database scanning Store.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocationBenchmark {
+
+   static final double RADIUS = 30;
+
+   static final String RADIUS_QUERY = "SELECT storeID, latitude, longitude, managerID, dateEstablished FROM Store"
+      + " WHERE SQRT(POW(latitude - ?, 2) + POW(longitude - ?, 2)) < ?";
+
+   /**
+    * Random locations in the [0, 100] square the sample users live in,
+    * visited in turn.
+    */
+   @State(Scope.Thread)
+   public static class Locations {
+      static final int COUNT = 1024;
+      final double[] latitudes = new double[COUNT];
+      final double[] longitudes = new double[COUNT];
+      int next = 0;
+      Object batch;
+
+      @Setup
+      public void setUp() throws Throwable {
+         Random random = new Random(42);
+         for (int i = 0; i < COUNT; i++) {
+            this.latitudes[i] = 100 * random.nextDouble();
+            this.longitudes[i] = 100 * random.nextDouble();
+         }
+         this.batch = AmazonHandle.newBatch();
+      }
+
+      int next() {
+         this.next = (this.next + 1) & (COUNT - 1);
+         return this.next;
+      }
+   }//end Locations
+
+   @Benchmark
+   public double calculateDistance(AmazonState state, Locations at) throws Throwable {
+      int i = at.next();
+      int j = (i + 1) & (Locations.COUNT - 1);
+      return state.esql.calculateDistance(at.latitudes[i], at.longitudes[i], at.latitudes[j], at.longitudes[j]);
+   }
+
+   @Benchmark
+   public List<?> storesWithinRadius(AmazonState state, Locations at) throws Throwable {
+      int i = at.next();
+      return state.esql.storesWithinRadius(at.latitudes[i], at.longitudes[i], RADIUS);
+   }
+
+   @Benchmark
+   @OutputTimeUnit(TimeUnit.MICROSECONDS)
+   public int storesWithinRadiusQuery(AmazonState state, Locations at) throws Throwable {
+      int i = at.next();
+      return AmazonHandle.rowCount(state.esql.executeQueryAndReturnBatch(RADIUS_QUERY, at.batch, at.latitudes[i], at.longitudes[i], RADIUS));
+   }
+}//end LocationBenchmark
@@ -0,0 +1,80 @@
+package amazon.bench;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Order placement through submitOrder, one unit at a time, by customers
+ * ordering from stores in their reach. Run with -t to place orders from
+ * several threads at once. The orders stay in the database, so it is
+ * loaded again before the next trial.
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderBenchmark {
+
+   // customers picked from, the first ones by userID.
+   static final int CUSTOMERS = 200;
+
+   /**
+    * Customer, store and product combinations an order may be placed for.
+    */
+   @State(Scope.Benchmark)
+   public static class Targets {
+      int[] customers;
+      int[] stores;
+      String[] products;
+
+      @Setup(Level.Trial)
+      public void setUp(AmazonState state) throws Throwable {
+         List<List<String>> rows = state.esql.executeQueryAndReturnResult(
+            "SELECT u.userID, p.storeID, n.productName FROM Users u, Store s, Product p, ProductNames n"
+            + " WHERE u.userID IN (SELECT userID FROM Users WHERE type = 'customer' ORDER BY userID LIMIT ?)"
+            + " AND p.storeID = s.storeID AND n.productID = p.productID AND SQRT(POW(s.latitude - u.latitude, 2) + POW(s.longitude - u.longitude, 2)) < 30"
+            + " ORDER BY 1, 2, 3", CUSTOMERS);
+         this.customers = new int[rows.size()];
+         this.stores = new int[rows.size()];
+         this.products = new String[rows.size()];
+         for (int i = 0; i < rows.size(); i++) {
+            this.customers[i] = Integer.parseInt(rows.get(i).get(0));
+            this.stores[i] = Integer.parseInt(rows.get(i).get(1));
+            this.products[i] = rows.get(i).get(2).trim();
+         }
+         if (rows.isEmpty())
+            throw new IllegalStateException("No customer has a store in reach");
+         // enough stock that no order is turned down, without auditing or
+         // running the product triggers for it
+         state.esql.executeUpdate("DO $$ BEGIN PERFORM set_config('amazon.bulk_load', 'on', true);"
+            + " UPDATE Product SET numberOfUnits = 1000000000; END $$");
+      }
+
+      @TearDown(Level.Trial)
+      public void tearDown(AmazonState state) throws Throwable {
+         state.database.markDirty();
+      }
+   }//end Targets
+
+   @Benchmark
+   public int placeOrder(AmazonState state, Targets targets) throws Throwable {
+      int i = ThreadLocalRandom.current().nextInt(targets.customers.length);
+      return state.esql.submitOrder(targets.customers[i], targets.stores[i], targets.products[i], 1);
+   }
+}//end OrderBenchmark
@@ -0,0 +1,75 @@
+package amazon.bench;
+
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The query helpers of Amazon reading the same Orders rows: as String
+ * cells, into a reused ColumnBatch, streamed to a row handler and only
+ * counted.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+
+   static final String QUERY =
+      "SELECT orderNumber, customerID, storeID, productID, unitsOrdered, orderTime FROM Orders LIMIT ?";
+
+   @State(Scope.Thread)
+   public static class Rows {
+      @Param({"10", "500"})
+      public int rows;
+
+      Object batch;
+      Object handler;
+      long sum;
+
+      @Setup
+      public void setUp() throws Throwable {
+         this.batch = AmazonHandle.newBatch();
+         this.handler = AmazonHandle.rowHandler(new AmazonHandle.RowReader() {
+            public void row(ResultSet rs) throws Exception {
+               Rows.this.sum += rs.getInt(2) + rs.getInt(5);
+            }
+         });
+      }
+   }//end Rows
+
+   @Benchmark
+   public List<List<String>> executeQueryAndReturnResult(AmazonState state, Rows rows) throws Throwable {
+      return state.esql.executeQueryAndReturnResult(QUERY, rows.rows);
+   }
+
+   @Benchmark
+   public int executeQueryAndReturnBatch(AmazonState state, Rows rows) throws Throwable {
+      return AmazonHandle.rowCount(state.esql.executeQueryAndReturnBatch(QUERY, rows.batch, rows.rows));
+   }
+
+   @Benchmark
+   public long executeQueryStreaming(AmazonState state, Rows rows) throws Throwable {
+      state.esql.executeQueryStreaming(QUERY, 500, rows.handler, rows.rows);
+      return rows.sum;
+   }
+
+   @Benchmark
+   public int executeQuery(AmazonState state, Rows rows) throws Throwable {
+      return state.esql.executeQuery(QUERY, rows.rows);
+   }
+}//end QueryBenchmark
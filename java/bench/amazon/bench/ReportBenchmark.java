@@ -0,0 +1,91 @@
+package amazon.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The menu operations behind the manager reports and the customer views,
+ * each run in a fresh session of the program as a server client would,
+ * with the output thrown away.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportBenchmark {
+
+   /**
+    * The manager with the most stores and the first customer.
+    */
+   @State(Scope.Benchmark)
+   public static class Users {
+      Object manager;
+      Object customer;
+      String managedStore;
+
+      @Setup(Level.Trial)
+      public void setUp(AmazonState state) throws Throwable {
+         List<List<String>> stores = state.esql.executeQueryAndReturnResult(
+            "SELECT s.storeID, u.userID, u.name, u.latitude, u.longitude FROM Store s, Users u"
+            + " WHERE u.userID = s.managerID AND s.managerID = (SELECT managerID FROM Store GROUP BY managerID ORDER BY count(*) DESC, managerID LIMIT 1)"
+            + " ORDER BY s.storeID");
+         List<Integer> managed = new ArrayList<Integer>();
+         for (List<String> store : stores)
+            managed.add(Integer.parseInt(store.get(0)));
+         List<String> row = stores.get(0);
+         this.manager = AmazonHandle.user(row.get(2).trim(), Integer.parseInt(row.get(1)), "manager",
+            Double.parseDouble(row.get(3)), Double.parseDouble(row.get(4)), managed);
+         this.managedStore = row.get(0) + "\n";
+
+         row = state.esql.executeQueryAndReturnResult(
+            "SELECT userID, name, latitude, longitude FROM Users WHERE type = 'customer' ORDER BY userID LIMIT 1").get(0);
+         this.customer = AmazonHandle.user(row.get(1).trim(), Integer.parseInt(row.get(0)), "customer",
+            Double.parseDouble(row.get(2)), Double.parseDouble(row.get(3)), new ArrayList<Integer>());
+      }
+   }//end Users
+
+   @Benchmark
+   public void viewPopularProducts(AmazonState state, Users users) throws Throwable {
+      state.esql.run(AmazonHandle.VIEW_POPULAR_PRODUCTS, users.manager, "");
+   }
+
+   @Benchmark
+   public void viewPopularCustomers(AmazonState state, Users users) throws Throwable {
+      state.esql.run(AmazonHandle.VIEW_POPULAR_CUSTOMERS, users.manager, "");
+   }
+
+   @Benchmark
+   public void viewRecentOrdersOfStores(AmazonState state, Users users) throws Throwable {
+      state.esql.run(AmazonHandle.VIEW_RECENT_ORDERS, users.manager, "");
+   }
+
+   @Benchmark
+   public void viewRecentOrdersOfCustomer(AmazonState state, Users users) throws Throwable {
+      state.esql.run(AmazonHandle.VIEW_RECENT_ORDERS, users.customer, "");
+   }
+
+   @Benchmark
+   public void viewRecentUpdates(AmazonState state, Users users) throws Throwable {
+      state.esql.run(AmazonHandle.VIEW_RECENT_UPDATES, users.manager, users.managedStore);
+   }
+
+   @Benchmark
+   public void viewStores(AmazonState state, Users users) throws Throwable {
+      state.esql.run(AmazonHandle.VIEW_STORES, users.customer, "");
+   }
+}//end ReportBenchmark
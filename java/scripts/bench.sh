@@ -0,0 +1,18 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# builds the JMH benchmarks and runs them against a local postgres, writing
+# the results to bench-results/<commit>.json for comparing versions.
+#
+#   scripts/bench.sh [JMH options]
+#
+# e.g. scripts/bench.sh -p scale=1,100 OrderBenchmark
+# The database is set with -Damazon.bench.db=..., .port, .user and .password
+# in JAVA_OPTS; it is created and loaded from data/*.csv as needed.
+cd $DIR/..
+mvn -B -q -Pbench package -DskipTests || exit 1
+
+mkdir -p bench-results
+RESULT=bench-results/$(git rev-parse --short HEAD 2>/dev/null || date +%Y%m%d%H%M%S).json
+java $JAVA_OPTS -Damazon.bench.home=$DIR/../.. -jar target/benchmarks.jar -rf json -rff $RESULT "$@"
+echo "Results in $RESULT"
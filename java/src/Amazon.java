@@ -14,6 +14,7 @@
  import java.sql.DriverManager;
  import java.sql.Connection;
  import java.sql.Statement;
+ import java.sql.PreparedStatement;
  import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.sql.ResultSet;
@@ -22,9 +23,18 @@ import java.sql.ResultSet;
  import java.io.File;
  import java.io.FileReader;
  import java.io.BufferedReader;
+ import java.io.IOException;
  import java.io.InputStreamReader;
+ import java.io.PrintStream;
  import java.util.List;
  import java.util.ArrayList;
+ import java.util.Collection;
+ import java.util.HashMap;
+ import java.util.HashSet;
+ import java.util.LinkedHashMap;
+ import java.util.Locale;
+ import java.util.Map;
+ import java.util.Set;
  import java.lang.Math;
  import java.sql.Timestamp;
  import java.time.Instant;  
@@ -38,13 +48,72 @@ import java.awt.event.*;
   */
  public class Amazon {
  
-    // reference to physical database connection.
-    private Connection _connection = null;
+    // pool of physical database connections, shared by every session.
+    private ConnectionPool _pool = null;
+
+    // true for the instance that opened the pool and has to close it.
+    private boolean _ownsPool = false;
+
+    // customers may only order from stores closer than this.
+    public static final double MAX_STORE_DISTANCE = 30;
+
+    // in-memory location indexes shared by every session. Store entries
+    // carry their Store row, warehouse entries their Warehouse row.
+    private SpatialIndex<List<String>> _stores = new SpatialIndex<List<String>>();
+    private SpatialIndex<List<String>> _warehouses = new SpatialIndex<List<String>>();
+
+    // order and supply request numbers, reserved from their sequences in blocks.
+    private IdAllocator _orderNumbers = new IdAllocator(this, "orders_orderNumber_seq");
+    private IdAllocator _requestNumbers = new IdAllocator(this, "productsupplyrequests_requestNumber_seq");
+    private IdAllocator _updateNumbers = new IdAllocator(this, "productupdates_updateNumber_seq");
+
+    // per store rankings of products and customers by units ordered.
+    private PopularityTracker _popularity = new PopularityTracker();
+
+    // latest orders and product updates, for the recent activity views.
+    private RecentActivity _recent = new RecentActivity();
+
+    // product names by productID and back, read once and kept.
+    private ProductDictionary _products = new ProductDictionary(this);
+
+    // products of every store, kept current by database notifications.
+    private ProductCatalog _catalog = new ProductCatalog(this);
+
+    // in-memory stock reservations for orders, null unless enabled.
+    private InventoryEngine _inventory = null;
+
+    // ProductUpdates rows waiting to be written, null unless deferred auditing is enabled.
+    private AuditLog _auditLog = null;
+
+    // latencies, round trips and rows of menu operations and statements.
+    private Metrics _metrics = new Metrics(this);
+
+    // the menu operation this session is running, null between operations.
+    // Only the thread running the session sets it or runs statements
+    // through the session; the owner instance, which the background
+    // threads use, never runs a menu.
+    private Metrics.Operation _operation = null;
+
+    // statements over a time threshold, null unless enabled.
+    private SlowQueryLog _slowQueries = null;
+
+    // creates the coming monthly partitions of Orders and ProductUpdates.
+    private PartitionMaintainer _partitions = null;
+
+    // statements recorded for index advice, null unless enabled.
+    private IndexAdvisor _advisor = null;
+
+    // units and revenue by store, product and hour, day or month.
+    private SalesRollup _sales = null;
+
+    // rows fetched per round trip by streamed queries.
+    public static final int DEFAULT_FETCH_SIZE = 500;
  
-    // handling the keyboard inputs through a BufferedReader
-    // This variable can be global for convenience.
-    static BufferedReader in = new BufferedReader(
-                                 new InputStreamReader(System.in));
+    // handling the inputs and outputs of this session. The console session
+    // reads the keyboard, server sessions read and write their socket.
+    BufferedReader in;
+    PrintStream out;
+    PrintStream err;
  
     /**
      * Creates a new instance of Amazon store
@@ -56,6 +125,19 @@ import java.awt.event.*;
      * @throws java.sql.SQLException when failed to make a connection.
      */
     public Amazon(String dbname, String dbport, String user, String passwd) throws SQLException {
+       this(dbname, dbport, user, passwd, 1);
+    }//end Amazon
+
+    /**
+     * Creates a new instance of Amazon store backed by a pool of connections
+     *
+     * @param poolSize the maximum number of open connections
+     * @throws java.sql.SQLException when failed to make a connection.
+     */
+    public Amazon(String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
+       this.in = new BufferedReader(new InputStreamReader(System.in));
+       this.out = System.out;
+       this.err = System.err;
  
        System.out.print("Connecting to database...");
        try{
@@ -63,8 +145,33 @@ import java.awt.event.*;
           String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
           System.out.println ("Connection URL: " + url + "\n");
  
-          // obtain a physical connection
-          this._connection = DriverManager.getConnection(url, user, passwd);
+          // obtain a physical connection, so a bad login fails right away
+          this._pool = new ConnectionPool(url, user, passwd, poolSize);
+          this._ownsPool = true;
+          this._pool.release(this._pool.acquire());
+          // recording from the start, so the loads below count too
+          String indexAdvice = System.getProperty("amazon.indexAdvice");
+          if (indexAdvice != null)
+             this._advisor = new IndexAdvisor(this, indexAdvice);
+          refreshSpatialIndexes();
+          this._products.load();
+          this._popularity.load(this);
+          this._catalog.start();
+          this._partitions = new PartitionMaintainer(this, Integer.getInteger("amazon.partitions.ahead", PartitionMaintainer.DEFAULT_MONTHS_AHEAD));
+          this._partitions.start();
+          this._sales = new SalesRollup(this, Long.getLong("amazon.sales.interval", SalesRollup.DEFAULT_FOLD_SECONDS));
+          this._sales.start();
+          this._metrics.register();
+          String metrics = System.getProperty("amazon.metrics");
+          if (metrics != null)
+             this._metrics.startDump(metrics, Long.getLong("amazon.metrics.interval", Metrics.DEFAULT_DUMP_SECONDS));
+          String slowQueries = System.getProperty("amazon.slowQueries");
+          if (slowQueries != null) {
+             this._slowQueries = new SlowQueryLog(this, slowQueries,
+                Long.getLong("amazon.slowQueries.ms", SlowQueryLog.DEFAULT_THRESHOLD_MILLIS),
+                Long.getLong("amazon.slowQueries.interval", SlowQueryLog.DEFAULT_REPORT_SECONDS));
+             this._slowQueries.start();
+          }
           System.out.println("Done");
        }catch (Exception e){
           System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -72,6 +179,36 @@ import java.awt.event.*;
           System.exit(-1);
        }//end catch
     }//end Amazon
+
+    /**
+     * Creates a new session sharing the connection pool of another instance
+     *
+     * @param shared the instance that owns the connection pool
+     * @param in the input of this session
+     * @param out the output of this session, also used for errors
+     */
+    public Amazon(Amazon shared, BufferedReader in, PrintStream out) {
+       this._pool = shared._pool;
+       this._stores = shared._stores;
+       this._warehouses = shared._warehouses;
+       this._orderNumbers = shared._orderNumbers;
+       this._requestNumbers = shared._requestNumbers;
+       this._updateNumbers = shared._updateNumbers;
+       this._popularity = shared._popularity;
+       this._recent = shared._recent;
+       this._products = shared._products;
+       this._catalog = shared._catalog;
+       this._inventory = shared._inventory;
+       this._auditLog = shared._auditLog;
+       this._metrics = shared._metrics;
+       this._slowQueries = shared._slowQueries;
+       this._partitions = shared._partitions;
+       this._advisor = shared._advisor;
+       this._sales = shared._sales;
+       this.in = in;
+       this.out = out;
+       this.err = out;
+    }//end Amazon
  
     // Method to calculate euclidean distance between two latitude, longitude pairs. 
     public double calculateDistance (double lat1, double long1, double lat2, double long2){
@@ -79,82 +216,471 @@ import java.awt.event.*;
        double t2 = (long1 - long2) * (long1 - long2);
        return Math.sqrt(t1 + t2); 
     }
+
+    // the rows the location indexes carry.
+    static final String STORE_ROWS = "SELECT storeID, latitude, longitude, managerID, dateEstablished FROM Store";
+    static final String WAREHOUSE_ROWS = "SELECT warehouseID, area, latitude, longitude FROM Warehouse";
+
+    /**
+     * Reloads the store and warehouse location indexes from the database.
+     * Points are replaced in place, so readers never see an empty index.
+     *
+     * @throws java.sql.SQLException when failed to read the locations
+     */
+    public void refreshSpatialIndexes() throws SQLException {
+       List<List<String>> stores = executeQueryAndReturnResult (STORE_ROWS);
+       List<List<String>> warehouses = executeQueryAndReturnResult (WAREHOUSE_ROWS);
+       Set<Integer> storeIDs = new HashSet<Integer>();
+       for (List<String> row : stores) {
+          storeIDs.add (Integer.parseInt(row.get(0)));
+          this._stores.put (Integer.parseInt(row.get(0)), Double.parseDouble(row.get(1)), Double.parseDouble(row.get(2)), row);
+       }
+       for (int storeID : this._stores.ids ()) {
+          if (!storeIDs.contains (storeID))
+             this._stores.remove (storeID);
+       }
+       Set<Integer> warehouseIDs = new HashSet<Integer>();
+       for (List<String> row : warehouses) {
+          warehouseIDs.add (Integer.parseInt(row.get(0)));
+          this._warehouses.put (Integer.parseInt(row.get(0)), Double.parseDouble(row.get(2)), Double.parseDouble(row.get(3)), row);
+       }
+       for (int warehouseID : this._warehouses.ids ()) {
+          if (!warehouseIDs.contains (warehouseID))
+             this._warehouses.remove (warehouseID);
+       }
+    }//end refreshSpatialIndexes
+
+    /**
+     * Reads one store or warehouse again into its location index, or
+     * removes it if it is gone. The product catalog's listener calls this
+     * for every location_changed notification, so rows written by psql,
+     * the bulk loader or another program show up too.
+     *
+     * @param table store or warehouse
+     * @param id the storeID or warehouseID
+     * @throws java.sql.SQLException when failed to read the row
+     */
+    public void refreshLocation (String table, int id) throws SQLException {
+       if (table.equals ("store")) {
+          List<List<String>> rows = executeQueryAndReturnResult (STORE_ROWS + " WHERE storeID = ?", id);
+          if (rows.isEmpty ())
+             this._stores.remove (id);
+          else
+             this._stores.put (id, Double.parseDouble(rows.get(0).get(1)), Double.parseDouble(rows.get(0).get(2)), rows.get(0));
+       }
+       else if (table.equals ("warehouse")) {
+          List<List<String>> rows = executeQueryAndReturnResult (WAREHOUSE_ROWS + " WHERE warehouseID = ?", id);
+          if (rows.isEmpty ())
+             this._warehouses.remove (id);
+          else
+             this._warehouses.put (id, Double.parseDouble(rows.get(0).get(2)), Double.parseDouble(rows.get(0).get(3)), rows.get(0));
+       }
+    }//end refreshLocation
+
+    /**
+     * @return an unused order number, usually without a query
+     * @throws java.sql.SQLException when a new block of numbers could not be reserved
+     */
+    public int nextOrderNumber() throws SQLException {
+       return this._orderNumbers.next ();
+    }
+
+    /**
+     * @return an unused supply request number, usually without a query
+     * @throws java.sql.SQLException when a new block of numbers could not be reserved
+     */
+    public int nextRequestNumber() throws SQLException {
+       return this._requestNumbers.next ();
+    }
+
+    /**
+     * Places an order in a single round trip. The product name is turned
+     * into its productID by the product dictionary. The placeOrder database
+     * function checks the store distance, the product and the stock and
+     * inserts the order in one transaction, with the product row locked
+     * until the stock is decremented. With the inventory engine enabled the
+     * stock is reserved in memory first and only the distance is checked by
+     * the database.
+     *
+     * @return the number of the new order
+     * @throws OrderRejectedException when the order is not possible
+     * @throws java.sql.SQLException when failed to place the order
+     */
+    public int submitOrder (int customerID, int storeID, String productName, int units) throws SQLException {
+       int productID = this._products.id (productName);
+       if (productID < 0)
+          throw new OrderRejectedException (OrderRejectedException.Reason.NO_PRODUCT, "Product does not exist");
+       int orderNumber = nextOrderNumber ();
+       InventoryEngine.Reservation reservation = null;
+       try {
+          // with the inventory engine the stock is taken in memory and the
+          // order inserted without touching the product row
+          String function = "placeOrder";
+          if (this._inventory != null) {
+             reservation = this._inventory.reserve (orderNumber, storeID, productID, units);
+             function = "placeReservedOrder";
+          }
+          ColumnBatch result = executeQueryAndReturnBatch ("SELECT placedNumber, placedAt FROM " + function + "(?, ?, ?, ?, ?, ?)", new ColumnBatch (1),
+             orderNumber, customerID, storeID, productID, units, MAX_STORE_DISTANCE);
+          reservation = null;
+          this._popularity.recordOrder (storeID, customerID, productID, units);
+          this._recent.recordOrder (new RecentActivity.Order (orderNumber, customerID, null, storeID, productID, units,
+             new Timestamp (result.getLong(0, 1))));
+          return result.getInt(0, 0);
+       } catch (SQLException e) {
+          if (reservation != null)
+             this._inventory.release (reservation);
+          if (e instanceof OrderRejectedException)
+             throw e;
+          OrderRejectedException.Reason reason = OrderRejectedException.reasonOf(e);
+          if (reason == null)
+             throw e;
+          // keep the first line of the server message, without the ERROR: prefix
+          String message = e.getMessage().replaceFirst("^ERROR: *", "").split("\n")[0];
+          throw new OrderRejectedException(reason, message);
+       }
+    }//end submitOrder
+
+    /**
+     * Sets the stock and price of a product. The changeProduct database
+     * function returns the ProductUpdates row the audit trigger wrote, which
+     * goes into the recent updates of the store. With deferred auditing the
+     * row is made here instead, with the manager of the store from the
+     * location index and the time of the change from the database, and
+     * appended to the audit log. Its update number and manager are found
+     * before the product is changed, so nothing but the program dying
+     * between the commit and the append leaves a change without its row.
+     *
+     * @return false if the store has no such product
+     * @throws java.sql.SQLException when the update failed
+     */
+    public boolean changeProduct (int storeID, String productName, int units, double price) throws SQLException {
+       int productID = this._products.id (productName);
+       if (productID < 0)
+          return false;
+       if (this._auditLog != null) {
+          int updateNumber = this._updateNumbers.next ();
+          int managerID = managerOf (storeID);
+          if (managerID < 0)
+             return false;
+          ColumnBatch changed = executeQueryAndReturnBatch ("SELECT changeProductUnaudited(?, ?, ?, ?)", new ColumnBatch (1),
+             storeID, productID, units, price);
+          if (changed.isNull(0, 0))
+             return false;
+          RecentActivity.Update update = new RecentActivity.Update (updateNumber, managerID, storeID,
+             productID, new Timestamp (changed.getLong(0, 0)));
+          this._auditLog.append (update);
+          this._recent.recordUpdate (update);
+          return true;
+       }
+       ColumnBatch result = executeQueryAndReturnBatch (
+          "SELECT updateNumber, managerID, storeID, productID, updatedOn FROM changeProduct(?, ?, ?, ?)", new ColumnBatch (1),
+          storeID, productID, units, price);
+       if (result.getRowCount() == 0)
+          return false;
+       this._recent.recordUpdate (new RecentActivity.Update (result.getInt(0, 0), result.getInt(0, 1), result.getInt(0, 2),
+          result.getInt(0, 3), new Timestamp (result.getLong(0, 4))));
+       return true;
+    }//end changeProduct
+
+    // the manager of a store, from the location index if it has the store,
+    // or -1 if there is no such store.
+    private int managerOf (int storeID) throws SQLException {
+       SpatialIndex.Entry<List<String>> store = this._stores.get (storeID);
+       if (store != null)
+          return Integer.parseInt (store.getValue().get(3));
+       ColumnBatch result = executeQueryAndReturnBatch ("SELECT managerID FROM Store WHERE storeID = ?", new ColumnBatch (1), storeID);
+       return result.getRowCount() == 0 ? -1 : result.getInt(0, 0);
+    }//end managerOf
+
+    /**
+     * Reserves order numbers straight from the sequence in one round trip,
+     * for loads that insert many orders at once.
+     *
+     * @throws java.sql.SQLException when the numbers could not be reserved
+     */
+    public int[] reserveOrderNumbers (int count) throws SQLException {
+       return this._orderNumbers.reserve (count);
+    }
+
+    /**
+     * Takes the stock of orders in memory from now on, journaling to the
+     * given file and writing the stock to Product in the background. Only
+     * one program may do this per database.
+     *
+     * @throws java.sql.SQLException when the last run's journal could not be recovered
+     * @throws java.io.IOException when the journal could not be read or opened
+     */
+    public void enableInventoryEngine (String journal) throws SQLException, IOException {
+       InventoryEngine engine = new InventoryEngine (this, journal);
+       engine.start ();
+       this._catalog.addListener (engine);
+       this._inventory = engine;
+    }//end enableInventoryEngine
+
+    /**
+     * Writes ProductUpdates rows through an audit log from now on instead
+     * of in the update, draining what an earlier run left in the log first.
+     *
+     * @throws java.sql.SQLException when the rows left in the log could not be written
+     * @throws java.io.IOException when the log could not be opened
+     */
+    public void enableAuditLog (String file) throws SQLException, IOException {
+       AuditLog log = new AuditLog (this, file);
+       log.start ();
+       this._auditLog = log;
+    }//end enableAuditLog
+
+    /**
+     * @return the audit log, or null if product changes are audited as they are made
+     */
+    public AuditLog getAuditLog() {
+       return this._auditLog;
+    }
+
+    public Metrics getMetrics() {
+       return this._metrics;
+    }
+
+    /**
+     * Starts charging the statements of this session to a menu operation,
+     * until endOperation().
+     */
+    public void beginOperation (String name) {
+       this._operation = this._metrics.begin (name);
+    }
+
+    /**
+     * Adds the menu operation this session was running to the metrics.
+     */
+    public void endOperation () {
+       if (this._operation != null)
+          this._metrics.finish (this._operation);
+       this._operation = null;
+    }
+
+    /**
+     * @return the product names by productID and back
+     */
+    public ProductDictionary getProductDictionary() {
+       return this._products;
+    }
+
+    /**
+     * @return the products of every store
+     */
+    public ProductCatalog getCatalog() {
+       return this._catalog;
+    }
+
+    /**
+     * @return the latest orders and product updates
+     */
+    public RecentActivity getRecentActivity() {
+       return this._recent;
+    }
+
+    /**
+     * @return the product and customer rankings of every store
+     */
+    public PopularityTracker getPopularity() {
+       return this._popularity;
+    }
+
+    /**
+     * @return the index of store locations, each carrying its Store row
+     */
+    public SpatialIndex<List<String>> getStoreIndex() {
+       return this._stores;
+    }
+
+    /**
+     * @return the index of warehouse locations, each carrying its Warehouse row
+     */
+    public SpatialIndex<List<String>> getWarehouseIndex() {
+       return this._warehouses;
+    }
+
+    /**
+     * Reads one line of input of this session.
+     *
+     * @return the line read, without the line terminator
+     * @throws SessionClosedException when the input has ended
+     */
+    public String readLine() throws IOException {
+       String line = this.in.readLine();
+       if (line == null)
+          throw new SessionClosedException();
+       return line;
+    }//end readLine
+
+    /**
+     * Thrown when the input of a session ends, so the menus stop asking.
+     */
+    public static class SessionClosedException extends RuntimeException {
+       private static final long serialVersionUID = 1L;
+
+       public SessionClosedException() {
+          super("Session closed");
+       }
+    }//end SessionClosedException
+
+    // counts a statement run by the execute methods, and logs it if it was slow.
+    private void statementDone (String sql, Object[] params, long start, long acquired, long rowCount, int roundTrips) {
+       long nanos = System.nanoTime () - start;
+       this._metrics.statement (sql, nanos, acquired - start, rowCount, roundTrips, this._operation);
+       if (this._slowQueries != null)
+          this._slowQueries.check (sql, params, nanos);
+       if (this._advisor != null)
+          this._advisor.record (sql, params);
+    }//end statementDone
+
     /**
      * Method to execute an update SQL statement.  Update SQL instructions
      * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
      *
-     * @param sql the input SQL string
+     * @param sql the input SQL string, with ? placeholders for the parameters
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows affected
      * @throws java.sql.SQLException when update failed
      */
-    public void executeUpdate (String sql) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
- 
-       // issues the update instruction
-       stmt.executeUpdate (sql);
+    public int executeUpdate (String sql, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       ConnectionPool.PooledConnection conn = this._pool.acquire ();
+       long acquired = System.nanoTime ();
+       int rowCount = 0;
+       try {
+          // fetches the cached statement for this query shape
+          PreparedStatement stmt = conn.getStatements ().prepare (sql, params);
  
-       // close the instruction
-       stmt.close ();
+          // issues the update instruction
+          rowCount = stmt.executeUpdate ();
+          return rowCount;
+       } finally {
+          this._pool.release (conn);
+          statementDone (sql, params, start, acquired, rowCount, 1);
+       }
     }//end executeUpdate
  
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
      * method issues the query to the DBMS and outputs the results to
-     * standard out.
+     * the output of this session.
      *
-     * @param query the input query string
+     * @param query the input query string, with ? placeholders for the parameters
+     * @param params the values bound to the placeholders, in order
      * @return the number of rows returned
      * @throws java.sql.SQLException when failed to execute the query
      */
-    public int executeQueryAndPrintResult (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
- 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
- 
-       /*
-        ** obtains the metadata object for the returned result set.  The metadata
-        ** contains row and column info.
-        */
-       ResultSetMetaData rsmd = rs.getMetaData ();
-       int numCol = rsmd.getColumnCount ();
-       int rowCount = 0;
- 
-       // iterates through the result set and output them to standard out.
-       boolean outputHeader = true;
-       while (rs.next()){
-        if(outputHeader){
-          for(int i = 1; i <= numCol; i++){
-          System.out.print(rsmd.getColumnName(i) + "\t");
+    public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+       final PrintStream out = this.out;
+       // prints each row as it arrives, so long results show up right away
+       // and are never held in memory as a whole.
+       return executeQueryStreaming (query, DEFAULT_FETCH_SIZE, new RowHandler() {
+          private boolean outputHeader = true;
+
+          private final StringBuilder line = new StringBuilder();
+
+          public boolean row (ResultSet rs) throws SQLException {
+             ResultSetMetaData rsmd = rs.getMetaData ();
+             int numCol = rsmd.getColumnCount ();
+             // a line at a time, not a print per cell
+             if(outputHeader){
+                line.setLength(0);
+                for(int i = 1; i <= numCol; i++){
+                   line.append(rsmd.getColumnName(i)).append('\t');
+                }
+                out.println(line);
+                outputHeader = false;
+             }
+             line.setLength(0);
+             for (int i=1; i<=numCol; ++i)
+                line.append(rs.getString (i)).append('\t');
+             out.println(line);
+             return true;
           }
-          System.out.println();
-          outputHeader = false;
-        }
-          for (int i=1; i<=numCol; ++i)
-             System.out.print (rs.getString (i) + "\t");
-          System.out.println();
-          ++rowCount;
-       }//end while
-       stmt.close ();
-       return rowCount;
+       }, params);
     }//end executeQuery
+
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+     * its rows to a handler as they arrive.  The query runs inside its own
+     * read transaction so the driver fetches the rows through a cursor,
+     * fetchSize rows per round trip, instead of reading the whole result
+     * before returning; memory use stays the same however many rows match.
+     *
+     * @param query the input query string, with ? placeholders for the parameters
+     * @param fetchSize the number of rows fetched per round trip
+     * @param handler receives every row, in order, until it returns false
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows handed to the handler
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQueryStreaming (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       ConnectionPool.PooledConnection conn = this._pool.acquire ();
+       long acquired = System.nanoTime ();
+       Connection connection = conn.getConnection ();
+       PreparedStatement stmt = null;
+       int rowCount = 0;
+       try {
+          // the driver only uses a cursor outside of autocommit
+          connection.setAutoCommit (false);
+
+          // fetches the cached statement for this query shape
+          stmt = conn.getStatements ().prepare (query, params);
+          stmt.setFetchSize (fetchSize);
+
+          ResultSet rs = stmt.executeQuery ();
+          try {
+             while (rs.next ()) {
+                ++rowCount;
+                if (!handler.row (rs))
+                   break;
+             }//end while
+          } finally {
+             rs.close ();
+          }
+          connection.commit ();
+          return rowCount;
+       } catch (SQLException e) {
+          connection.rollback ();
+          throw e;
+       } finally {
+          try {
+             // the statement stays cached, so leave it as other callers expect it
+             if (stmt != null)
+                stmt.setFetchSize (0);
+             connection.setAutoCommit (true);
+          } finally {
+             this._pool.release (conn);
+          }
+          // a fetch per fetchSize rows, and the commit
+          statementDone (query, params, start, acquired, rowCount, 2 + rowCount / fetchSize);
+       }
+    }//end executeQueryStreaming
  
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
      * method issues the query to the DBMS and returns the results as
      * a list of records. Each record in turn is a list of attribute values
      *
-     * @param query the input query string
+     * @param query the input query string, with ? placeholders for the parameters
+     * @param params the values bound to the placeholders, in order
      * @return the query result as a list of records
      * @throws java.sql.SQLException when failed to execute the query
      */
-    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+    public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       ConnectionPool.PooledConnection conn = this._pool.acquire ();
+       long acquired = System.nanoTime ();
+       List<List<String>> result  = new ArrayList<List<String>>();
+       try {
+       // fetches the cached statement for this query shape
+       PreparedStatement stmt = conn.getStatements ().prepare (query, params);
  
        // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       ResultSet rs = stmt.executeQuery ();
  
        /*
         ** obtains the metadata object for the returned result set.  The metadata
@@ -166,40 +692,88 @@ import java.awt.event.*;
  
        // iterates through the result set and saves the data returned by the query.
        boolean outputHeader = false;
-       List<List<String>> result  = new ArrayList<List<String>>();
        while (rs.next()){
          List<String> record = new ArrayList<String>();
        for (int i=1; i<=numCol; ++i)
           record.add(rs.getString (i));
          result.add(record);
        }//end while
-       stmt.close ();
+       rs.close ();
        return result;
+       } finally {
+          this._pool.release (conn);
+          statementDone (query, params, start, acquired, result.size (), 1);
+       }
     }//end executeQueryAndReturnResult
  
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT).  This
+     * method issues the query to the DBMS and decodes the results into the
+     * given batch, one typed array per column, so callers read ints and
+     * doubles without going through a String per cell.
+     *
+     * @param query the input query string, with ? placeholders for the parameters
+     * @param batch the batch to fill; it is reset first
+     * @param params the values bound to the placeholders, in order
+     * @return the filled batch
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public ColumnBatch executeQueryAndReturnBatch (String query, ColumnBatch batch, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       ConnectionPool.PooledConnection conn = this._pool.acquire ();
+       long acquired = System.nanoTime ();
+       int rowCount = 0;
+       try {
+          // fetches the cached statement for this query shape
+          PreparedStatement stmt = conn.getStatements ().prepare (query, params);
+
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery ();
+          batch.reset ();
+          batch.describe (rs.getMetaData ());
+          while (rs.next ())
+             batch.row (rs);
+          rs.close ();
+          rowCount = batch.getRowCount ();
+          return batch;
+       } finally {
+          this._pool.release (conn);
+          statementDone (query, params, start, acquired, rowCount, 1);
+       }
+    }//end executeQueryAndReturnBatch
+
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
      * method issues the query to the DBMS and returns the number of results
      *
-     * @param query the input query string
+     * @param query the input query string, with ? placeholders for the parameters
+     * @param params the values bound to the placeholders, in order
      * @return the number of rows returned
      * @throws java.sql.SQLException when failed to execute the query
      */
-    public int executeQuery (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
+    public int executeQuery (String query, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       ConnectionPool.PooledConnection conn = this._pool.acquire ();
+       long acquired = System.nanoTime ();
+       int rowCount = 0;
+       try {
+        // fetches the cached statement for this query shape
+        PreparedStatement stmt = conn.getStatements ().prepare (query, params);
  
         // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
+        ResultSet rs = stmt.executeQuery ();
  
-        int rowCount = 0;
  
         // iterates through the result set and count nuber of results.
         while (rs.next()){
            rowCount++;
         }//end while
-        stmt.close ();
+        rs.close ();
         return rowCount;
+       } finally {
+          this._pool.release (conn);
+          statementDone (query, params, start, acquired, rowCount, 1);
+       }
     }
  
     /**
@@ -212,25 +786,70 @@ import java.awt.event.*;
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int getCurrSeqVal(String sequence) throws SQLException {
-    Statement stmt = this._connection.createStatement ();
- 
-    ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-    if (rs.next())
-       return rs.getInt(1);
+    ColumnBatch result = executeQueryAndReturnBatch ("Select currval(CAST(? AS regclass))", new ColumnBatch (1), sequence);
+    if (result.getRowCount() > 0)
+       return (int) result.getLong(0, 0);
     return -1;
     }
+
+    /**
+     * @return the keeper of the Orders and ProductUpdates partitions
+     */
+    public PartitionMaintainer getPartitionMaintainer() {
+       return this._partitions;
+    }
+
+    /**
+     * @return the sales rollups of every store
+     */
+    public SalesRollup getSalesRollup() {
+       return this._sales;
+    }
+
+    /**
+     * @return the connection pool shared by the sessions of this instance
+     */
+    public ConnectionPool getPool() {
+       return this._pool;
+    }
  
     /**
-     * Method to close the physical connection if it is open.
+     * Method to close the physical connections if this instance opened them.
      */
     public void cleanup(){
-       try{
-          if (this._connection != null){
-             this._connection.close ();
-          }//end if
-       }catch (SQLException e){
-          // ignored.
-       }//end try
+       if (this._ownsPool && this._pool != null){
+          if (this._inventory != null) {
+             try {
+                this._inventory.stop ();
+             }catch (SQLException e) {
+                System.err.println ("Inventory not flushed, it is kept in the journal: " + e.getMessage ());
+             }
+             System.out.println (this._inventory);
+          }
+          if (this._auditLog != null) {
+             try {
+                this._auditLog.stop ();
+             }catch (SQLException e) {
+                System.err.println ("Audit log not drained, it is kept for the next run: " + e.getMessage ());
+             }
+             System.out.println (this._auditLog);
+          }
+          this._catalog.stop ();
+          this._partitions.stop ();
+          this._sales.stop ();
+          this._metrics.stop ();
+          if (this._slowQueries != null)
+             this._slowQueries.stop ();
+          if (this._advisor != null) {
+             try {
+                this._advisor.writeScript ();
+                System.out.println ("Index advice written to " + System.getProperty ("amazon.indexAdvice"));
+             }catch (Exception e) {
+                System.err.println ("Index advice not written: " + e.getMessage ());
+             }
+          }
+          this._pool.close ();
+       }//end if
     }//end cleanup
  
     /**
@@ -238,18 +857,30 @@ import java.awt.event.*;
      *
      * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
      */
-    static boolean isManager = false;;
     public static void main (String[] args) {
-       if (args.length != 3) {
+       String mode = args.length > 3 ? args[3] : null;
+       boolean valid = args.length == 3
+          || ("--server".equals(mode) && args.length >= 5)
+          || "--replenish".equals(mode)
+          || (("--ingest-orders".equals(mode) || "--ingest-supply".equals(mode)) && args.length >= 5)
+          || ("--load".equals(mode) && args.length >= 6)
+          || "--partitions".equals(mode)
+          || ("--export".equals(mode) && args.length >= 6);
+       if (!valid) {
           System.err.println (
              "Usage: " +
-             "java [-classpath <classpath>] " +
+             "java [-classpath <classpath>] [-Damazon.auditLog=<audit log file>] " +
              Amazon.class.getName () +
-             " <dbname> <port> <user>");
+             " <dbname> <port> <user> [--server <listen port> [pool size [inventory journal]]" +
+             " | --replenish [threshold [target level [store thresholds csv]]]" +
+             " | --ingest-orders <csv file or -> [batch size]" +
+             " | --ingest-supply <csv file or -> [batch size]" +
+             " | --load <data dir> <seconds> [operations per second [users [mix]]]" +
+             " | --partitions [months kept [archive dir]]" +
+             " | --export <orders|updates|supply|products|customers>[,...] <dir> [csv|ndjson] [gzip] [by-store]]");
           return;
        }//end if
  
-       Greeting();
        Amazon esql = null;
        try{
           // use postgres JDBC driver.
@@ -259,79 +890,200 @@ import java.awt.event.*;
           String dbname = args[0];
           String dbport = args[1];
           String user = args[2];
-          esql = new Amazon (dbname, dbport, user, "");
- 
+          String auditLog = System.getProperty("amazon.auditLog");
+          if ("--server".equals(mode)) {
+             int poolSize = args.length > 5 ? Integer.parseInt(args[5]) : AmazonServer.defaultPoolSize();
+             esql = new Amazon (dbname, dbport, user, "", poolSize);
+             if (args.length > 6) esql.enableInventoryEngine(args[6]);
+             if (auditLog != null) esql.enableAuditLog(auditLog);
+             new AmazonServer(esql).serve(Integer.parseInt(args[4]));
+          }
+          else if ("--replenish".equals(mode)) {
+             esql = new Amazon (dbname, dbport, user, "", AmazonServer.defaultPoolSize());
+             ReplenishmentPlanner planner = new ReplenishmentPlanner(esql);
+             if (args.length > 4) planner.setDefaultThreshold(Integer.parseInt(args[4]));
+             if (args.length > 5) planner.setTargetLevel(Integer.parseInt(args[5]));
+             if (args.length > 6) planner.loadThresholds(args[6]);
+             long start = System.currentTimeMillis();
+             List<ReplenishmentPlanner.SupplyRequest> requests = planner.run(esql.getStoreIndex().ids());
+             System.out.println("Placed " + requests.size() + " supply requests in " + (System.currentTimeMillis() - start) + " ms");
+          }
+          else if ("--load".equals(mode)) {
+             esql = new Amazon (dbname, dbport, user, "", AmazonServer.defaultPoolSize());
+             if (auditLog != null) esql.enableAuditLog(auditLog);
+             LoadDriver driver = new LoadDriver(esql, args[4]);
+             driver.run(Integer.parseInt(args[5]),
+                args.length > 6 ? Double.parseDouble(args[6]) : 0,
+                args.length > 7 ? Integer.parseInt(args[7]) : LoadDriver.DEFAULT_USERS,
+                args.length > 8 ? args[8] : LoadDriver.DEFAULT_MIX);
+          }
+          else if ("--partitions".equals(mode)) {
+             esql = new Amazon (dbname, dbport, user, "", 2);
+             System.out.println("Created " + esql.getPartitionMaintainer().maintain() + " partitions");
+             if (args.length > 4) {
+                File dir = new File(args.length > 5 ? args[5] : "archive");
+                for (PartitionMaintainer.Archive archive : esql.getPartitionMaintainer().archive(Integer.parseInt(args[4]), dir))
+                   System.out.println("Archived " + archive);
+             }
+          }
+          else if ("--export".equals(mode)) {
+             esql = new Amazon (dbname, dbport, user, "", 2);
+             ReportExporter exporter = new ReportExporter(esql, new File(args[5]));
+             for (int i = 6; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("gzip")) exporter.setGzip(true);
+                else if (args[i].equalsIgnoreCase("by-store")) exporter.setByStore(true);
+                else exporter.setFormat(ReportExporter.Format.valueOf(args[i].toUpperCase(Locale.ROOT)));
+             }
+             for (String report : args[4].split(",")) {
+                long start = System.currentTimeMillis();
+                long rows = 0;
+                long bytes = 0;
+                List<ReportExporter.Export> exports = exporter.export(report);
+                for (ReportExporter.Export export : exports) {
+                   rows += export.getRows();
+                   bytes += export.getBytes();
+                }
+                System.out.println("Exported " + rows + " rows of " + report + " to " + exports.size() + " files, "
+                   + bytes + " bytes, in " + (System.currentTimeMillis() - start) + " ms");
+             }
+          }
+          else if (mode != null && mode.startsWith("--ingest-")) {
+             esql = new Amazon (dbname, dbport, user, "");
+             BulkIngestor ingestor = new BulkIngestor(esql);
+             if (args.length > 5) ingestor.setBatchSize(Integer.parseInt(args[5]));
+             // "-" streams the rows from standard input
+             BufferedReader csv = args[4].equals("-") ? esql.in : new BufferedReader(new FileReader(args[4]));
+             long start = System.currentTimeMillis();
+             try {
+                if ("--ingest-orders".equals(mode))
+                   ingestor.ingestOrders(csv);
+                else
+                   ingestor.ingestSupplyRequests(csv);
+             } finally {
+                csv.close();
+                System.out.println("Loaded " + ingestor + " in " + (System.currentTimeMillis() - start) + " ms");
+             }
+          }
+          else {
+             esql = new Amazon (dbname, dbport, user, "");
+             if (auditLog != null) esql.enableAuditLog(auditLog);
+             // a session of its own, as in server mode, so the statements
+             // of the background threads are not charged to the user's
+             // menu operations
+             Amazon session = new Amazon (esql, esql.in, esql.out);
+             session.err = esql.err;
+             runSession(session);
+          }
+       }catch(Exception e) {
+          System.err.println (e.getMessage ());
+       }finally{
+          // make sure to cleanup the created table and close the connection.
+          try{
+             if(esql != null) {
+                // statistics for the batch modes, not the console user
+                if (mode != null || System.getProperty("amazon.metrics") != null)
+                   System.out.println(esql.getPool().statementCacheSummary());
+                System.out.print("Disconnecting from database...");
+                esql.cleanup ();
+                System.out.println("Done\n\nBye !");
+             }//end if
+          }catch (Exception e) {
+             // ignored.
+          }//end try
+       }//end try
+    }//end main
+
+    // the names the metrics give the choices of the user menu.
+    static final String[] USER_OPERATIONS = {null, "viewStores", "viewProducts", "placeOrder", "viewRecentOrders",
+       "updateProduct", "viewRecentUpdates", "viewPopularProducts", "viewPopularCustomers",
+       "placeProductSupplyRequests", "replenishStores", "viewSalesByProduct", "viewSalesOverTime"};
+
+    /**
+     * Runs the menus for one user session until the user exits or the
+     * input of the session ends.
+     */
+    public static void runSession(Amazon esql) {
+       Greeting(esql);
+       try{
           boolean keepon = true;
           while(keepon) {
              // These are sample SQL statements
-             System.out.println("MAIN MENU");
-             System.out.println("---------");
-             System.out.println("1. Create user");
-             System.out.println("2. Log in");
-             System.out.println("9. < EXIT");
-             String authorisedUser = null;
-             switch (readChoice()){
+             esql.out.println("MAIN MENU");
+             esql.out.println("---------");
+             esql.out.println("1. Create user");
+             esql.out.println("2. Log in");
+             esql.out.println("9. < EXIT");
+             UserSession authorisedUser = null;
+             switch (readChoice(esql)){
                 case 1: CreateUser(esql); break;
-                case 2: authorisedUser = LogIn(esql); break;
+                case 2:
+                   esql.beginOperation("logIn");
+                   try {
+                      authorisedUser = LogIn(esql);
+                   } finally {
+                      esql.endOperation();
+                   }
+                   break;
                 case 9: keepon = false; break;
-                default : System.out.println("Unrecognized choice!"); break;
+                default : esql.out.println("Unrecognized choice!"); break;
              }//end switch
              if (authorisedUser != null) {
                boolean usermenu = true;
-               isManagerFunc(esql, authorisedUser);
                while(usermenu) {
-                 System.out.println("MAIN MENU");
-                 System.out.println("---------");
-                 System.out.println("1. View Stores within 30 miles");
-                 System.out.println("2. View Product List");
-                 System.out.println("3. Place a Order");
-                 System.out.println("4. View 5 recent orders");
+                 esql.out.println("MAIN MENU");
+                 esql.out.println("---------");
+                 esql.out.println("1. View Stores within 30 miles");
+                 esql.out.println("2. View Product List");
+                 esql.out.println("3. Place a Order");
+                 esql.out.println("4. View 5 recent orders");
  
                  //the following functionalities basically used by managers
-                 if(isManager){
-                  System.out.println("5. Update Product");
-                  System.out.println("6. View 5 recent Product Updates Info");
-                  System.out.println("7. View 5 Popular Items");
-                  System.out.println("8. View 5 Popular Customers");
-                  System.out.println("9. Place Product Supply Request to Warehouse");
+                 if(authorisedUser.isManager()){
+                  esql.out.println("5. Update Product");
+                  esql.out.println("6. View 5 recent Product Updates Info");
+                  esql.out.println("7. View 5 Popular Items");
+                  esql.out.println("8. View 5 Popular Customers");
+                  esql.out.println("9. Place Product Supply Request to Warehouse");
+                  esql.out.println("10. Restock Low Products from Nearest Warehouses");
+                  esql.out.println("11. View Sales by Product");
+                  esql.out.println("12. View Sales over Time");
                  }
-                 System.out.println(".........................");
-                 System.out.println("20. Log out");
-                 switch (readChoice()){
-                    case 1: viewStores(esql,authorisedUser); break;
-                    case 2: viewProducts(esql); break;
-                    case 3: placeOrder(esql, authorisedUser); break;
-                    case 4: viewRecentOrders(esql,authorisedUser); break;
-                    case 5: updateProduct(esql,authorisedUser); break;
-                    case 6: viewRecentUpdates(esql, authorisedUser); break;
-                    case 7: viewPopularProducts(esql, authorisedUser); break;
-                    case 8: viewPopularCustomers(esql, authorisedUser); break;
-                    case 9: placeProductSupplyRequests(esql, authorisedUser); break;
+                 esql.out.println(".........................");
+                 esql.out.println("20. Log out");
+                 int choice = readChoice(esql);
+                 if (choice > 0 && choice < USER_OPERATIONS.length && USER_OPERATIONS[choice] != null)
+                    esql.beginOperation(USER_OPERATIONS[choice]);
+                 try {
+                    switch (choice){
+                       case 1: viewStores(esql, authorisedUser); break;
+                       case 2: viewProducts(esql); break;
+                       case 3: placeOrder(esql, authorisedUser); break;
+                       case 4: viewRecentOrders(esql, authorisedUser); break;
+                       case 5: updateProduct(esql, authorisedUser); break;
+                       case 6: viewRecentUpdates(esql, authorisedUser); break;
+                       case 7: viewPopularProducts(esql, authorisedUser); break;
+                       case 8: viewPopularCustomers(esql, authorisedUser); break;
+                       case 9: placeProductSupplyRequests(esql, authorisedUser); break;
+                       case 10: replenishStores(esql, authorisedUser); break;
+                       case 11: viewSalesByProduct(esql, authorisedUser); break;
+                       case 12: viewSalesOverTime(esql, authorisedUser); break;
  
-                    case 20: usermenu = false; break;
-                    default : System.out.println("Unrecognized choice!"); break;
+                       case 20: usermenu = false; break;
+                       default : esql.out.println("Unrecognized choice!"); break;
+                    }
+                 } finally {
+                    esql.endOperation();
                  }
                }
              }
           }//end while
-       }catch(Exception e) {
-          System.err.println (e.getMessage ());
-       }finally{
-          // make sure to cleanup the created table and close the connection.
-          try{
-             if(esql != null) {
-                System.out.print("Disconnecting from database...");
-                esql.cleanup ();
-                System.out.println("Done\n\nBye !");
-             }//end if
-          }catch (Exception e) {
-             // ignored.
-          }//end try
-       }//end try
-    }//end main
+       }catch(SessionClosedException e) {
+          // the user went away, nothing left to do.
+       }
+    }//end runSession
  
-    public static void Greeting(){
-       System.out.println(
+    public static void Greeting(Amazon esql){
+       esql.out.println(
           "\n\n*******************************************************\n" +
           "              Welcome to the Amazon WareHouse              \n" +
           "*******************************************************\n");
@@ -341,16 +1093,18 @@ import java.awt.event.*;
      * Reads the users choice given from the keyboard
      * @int
      **/
-    public static int readChoice() {
+    public static int readChoice(Amazon esql) {
        int input;
        // returns only if a correct value is given.
        do {
-          System.out.print("Please make your choice: ");
+          esql.out.print("Please make your choice: ");
           try { // read the integer, parse it and break.
-             input = Integer.parseInt(in.readLine());
+             input = Integer.parseInt(esql.readLine());
              break;
+          }catch (SessionClosedException e) {
+             throw e;
           }catch (Exception e) {
-             System.out.println("Your input is invalid!");
+             esql.out.println("Your input is invalid!");
              continue;
           }//end try
        }while (true);
@@ -362,469 +1116,455 @@ import java.awt.event.*;
      **/
     public static void CreateUser(Amazon esql){
        try{
-          System.out.print("\tEnter name: ");
-          String name = in.readLine();
-          System.out.print("\tEnter password: ");
-          String password = in.readLine();
-          System.out.print("\tEnter latitude: ");   
-          String latitude = in.readLine();       //enter lat value between [0.0, 100.0]
-          System.out.print("\tEnter longitude: ");  //enter long value between [0.0, 100.0]
-          String longitude = in.readLine();
+          esql.out.print("\tEnter name: ");
+          String name = esql.readLine();
+          esql.out.print("\tEnter password: ");
+          String password = esql.readLine();
+          esql.out.print("\tEnter latitude: ");   
+          String latitude = esql.readLine();       //enter lat value between [0.0, 100.0]
+          esql.out.print("\tEnter longitude: ");  //enter long value between [0.0, 100.0]
+          String longitude = esql.readLine();
           
-          String type="Customer";
+          String query = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, CAST(? AS userRole))";
  
-          String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
- 
-          esql.executeUpdate(query);
-          System.out.println ("User successfully created!");
+          esql.executeUpdate(query, name, password, Double.parseDouble(latitude), Double.parseDouble(longitude), UserSession.Role.CUSTOMER.toString());
+          esql.out.println ("User successfully created!");
        }catch(Exception e){
-          System.err.println (e.getMessage ());
+          esql.err.println (e.getMessage ());
        }
     }//end CreateUser
  
-    public static Void isManagerFunc(Amazon esql, String user){
-      List<List<String>> result;
-       try{
-          String query = String.format("SELECT userID, type FROM Users WHERE name = '%s'",user);
-          result = esql.executeQueryAndReturnResult(query);
-          List<String> usr = result.get(0);
-          String type = usr.get(1).trim();
-          if(!type.equalsIgnoreCase("manager") && !type.equalsIgnoreCase("admin")){
-             isManager = false;
-             return null;
-          }
-          else{
-            isManager = true;
-            return null;
-          }
-         }catch(Exception e){
-            System.err.println(e);
-         }
-         return null;
-    }
     /*
-     * Check log in credentials for an existing user
-     * @return User login or null is the user does not exist
+     * Check log in credentials for an existing user and load everything the
+     * menus need about the user, including the managed stores, in one query
+     * @return the session of the user or null is the user does not exist
      **/
-    public static String LogIn(Amazon esql){
+    public static UserSession LogIn(Amazon esql){
        try{
-          System.out.print("\tEnter name: ");
-          String name = in.readLine();
-          System.out.print("\tEnter password: ");
-          String password = in.readLine();
+          esql.out.print("\tEnter name: ");
+          String name = esql.readLine();
+          esql.out.print("\tEnter password: ");
+          String password = esql.readLine();
  
-          String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-          int userNum = esql.executeQuery(query);
-     if (userNum > 0)
-       return name;
-          return null;
+          String query = "SELECT u.userID, u.type, u.latitude, u.longitude, s.storeID FROM Users u LEFT JOIN Store s ON s.managerID = u.userID WHERE u.name = ? AND u.password = ? ORDER BY u.userID, s.storeID";
+          ColumnBatch result = esql.executeQueryAndReturnBatch(query, new ColumnBatch(), name, password);
+          if (result.getRowCount() == 0)
+             return null;
+          // one row per managed store; names are not unique so keep the first user
+          int userID = result.getInt(0, 0);
+          List<Integer> stores = new ArrayList<Integer>();
+          for (int row = 0; row < result.getRowCount(); row++) {
+             if (result.getInt(row, 0) == userID && !result.isNull(row, 4))
+                stores.add(result.getInt(row, 4));
+          }
+          return new UserSession(name, userID, UserSession.Role.of(result.getString(0, 1)),
+             result.getDouble(0, 2), result.getDouble(0, 3), stores);
+       }catch(SessionClosedException e){
+          throw e;
        }catch(Exception e){
-          System.err.println (e.getMessage ());
+          esql.err.println (e.getMessage ());
           return null;
        }
     }//end
  
  // Rest of the functions definition go in here
+
+    /*
+     * Checks that the user may manage the given store. Managers are checked
+     * against the stores loaded at login, admins may pick any existing store.
+     * @return true if the user may go on with the store
+     **/
+    static boolean checkManages(Amazon esql, UserSession user, int storeID) throws SQLException {
+       if(!user.manages(storeID)){
+          esql.out.println("You are not the Manager");
+          return false;
+       }
+       if(user.isAdmin() && esql.executeQuery("SELECT storeID FROM Store WHERE storeID = ?", storeID) == 0){
+          esql.out.println("Store does not exist!");
+          return false;
+       }
+       return true;
+    }
  
-    public static void viewStores(Amazon esql, String user) {
-       // get the user location here;
-       List<List<String>> result;
+    public static void viewStores(Amazon esql, UserSession user) {
        try{
-          String query = String.format("SELECT latitude, longitude FROM Users WHERE name = '%s'",user);
-          result = esql.executeQueryAndReturnResult(query);
-          List<String> coords = result.get(0);
-          try{
-            query = String.format("SELECT * FROM Store " + 
-            "WHERE storeID IN "+
-            "(SELECT s2.storeID FROM Store s2 " + 
-            "GROUP BY s2.storeID HAVING" + 
-            "  SQRT(POW((s2.latitude - %s), 2) + POW((s2.longitude - %s), 2)) < 30)",Double.parseDouble(coords.get(0)), Double.parseDouble(coords.get(1)));
-            result = esql.executeQueryAndReturnResult(query);
-
-            System.out.println("Store Id \t latitude \t longitude \t  manager id \t date established");
-             for(int i = 0; i < result.size(); i++){
-                for(int j = 0; j < result.get(i).size(); j++){
-                   System.out.print(result.get(i).get(j) + "\t\t");
-                }
-                System.out.println();
+          // answered from the store location index, no query needed
+          List<SpatialIndex.Entry<List<String>>> result = esql.getStoreIndex().withinRadius(user.getLatitude(), user.getLongitude(), MAX_STORE_DISTANCE);
+
+          esql.out.println("Store Id \t latitude \t longitude \t  manager id \t date established");
+          for(int i = 0; i < result.size(); i++){
+             List<String> store = result.get(i).getValue();
+             for(int j = 0; j < store.size(); j++){
+                esql.out.print(store.get(j) + "\t\t");
              }
-          }catch(Exception e){
-             System.err.println(e.getMessage());
+             esql.out.println();
           }
        }catch(Exception e){
-          System.err.println(e.getMessage());
+          esql.err.println(e.getMessage());
        }
- 
- 
     }
     public static void viewProducts(Amazon esql) {
-       System.out.println("Enter StoreID: ");
+       esql.out.println("Enter StoreID: ");
        int input = -1;
        do {
           try { // read the integer, parse it and break.
-             input = Integer.parseInt(in.readLine());
+             input = Integer.parseInt(esql.readLine());
              break;
+          }catch (SessionClosedException e){
+             throw e;
           }catch (Exception e) {
-             System.out.println("Your input is invalid!");
+             esql.out.println("Your input is invalid!");
              continue;
           }
        } while(input == -1);
-       String query = String.format("SELECT * FROM Product WHERE storeID = '%s'", input);
        try{
-          esql.executeQueryAndPrintResult(query);
+          List<ProductCatalog.Product> products = esql.getCatalog().products(input);
+          if(!products.isEmpty())
+             esql.out.println("storeid\tproductname\tnumberofunits\tpriceperunit\t");
+          for(ProductCatalog.Product product : products)
+             esql.out.println(product.getStoreID() + "\t" + esql.getProductDictionary().name(product.getProductID()) + "\t"
+                + product.getNumberOfUnits() + "\t" + product.getPricePerUnit() + "\t");
        } catch(Exception e){
-          System.err.println(e.getMessage());
+          esql.err.println(e.getMessage());
        }
     }
 
 
-    public static void placeOrder(Amazon esql, String user) {
-      List<List<String>> result;
-      String query;
+    public static void placeOrder(Amazon esql, UserSession user) {
 
       try{
-         query = String.format("SELECT latitude, longitude FROM Users WHERE name = '%s'",user);
-         result = esql.executeQueryAndReturnResult(query);
-         List<String> coords = result.get(0);
          try{
-            System.out.print("\tEnter storeId: ");
-            String storeID = in.readLine();
+            esql.out.print("\tEnter storeId: ");
+            int storeID = Integer.parseInt(esql.readLine());
             
             // make sure store is within 30 miles
-            query = String.format("SELECT latitude, longitude FROM Store WHERE storeID = %s", storeID);
-            result = esql.executeQueryAndReturnResult(query);
+            SpatialIndex.Entry<List<String>> store = esql.getStoreIndex().get(storeID);
 
-            if(result.isEmpty()){
-               System.out.println ("Store does not exist!");
+            if(store == null){
+               esql.out.println ("Store does not exist!");
                return;
             }
-            List<String> storeCoords = result.get(0);
 
-            Double distance = esql.calculateDistance(Double.parseDouble(coords.get(0)), Double.parseDouble(coords.get(1)),Double.parseDouble(storeCoords.get(0)),Double.parseDouble(storeCoords.get(1)));
-            if(distance > 30){
-               System.out.println ("Store is too far to order from!");
+            Double distance = esql.calculateDistance(user.getLatitude(), user.getLongitude(), store.getLatitude(), store.getLongitude());
+            if(distance > MAX_STORE_DISTANCE){
+               esql.out.println ("Store is too far to order from!");
                return;
             }
 
             // get productName and unitsOrdered from User
-            // System.out.print("\tEnter the name of the product you wish to purchase: ");
-            // String productName = in.readLine();
+            // esql.out.print("\tEnter the name of the product you wish to purchase: ");
+            // String productName = esql.readLine();
             String pname = "";
             do{
                try{
-                  System.out.println("What is the Product Name you purchase:");
-                  pname = in.readLine();
-                  query = String.format("Select productName FROM Product WHERE productName = '%s' AND storeID = %s", pname, storeID);
-                  int rows = esql.executeQuery(query);
-                  if(rows == 0){
-                     System.out.println("Product does not exist");
+                  esql.out.println("What is the Product Name you purchase:");
+                  pname = esql.readLine();
+                  if(!esql.getCatalog().exists(storeID, pname)){
+                     esql.out.println("Product does not exist");
                      continue;
                   }
                   else{
                      break;
                   }
                   
+               } catch(SessionClosedException e){
+                  throw e;
                } catch(Exception e){
-                  System.err.println(e.getMessage());
+                  esql.err.println(e.getMessage());
                }
             } while(true);
-            System.out.print("\tEnter number of items: ");   
-            String unitsOrdered = in.readLine();   
-
-            // make sure the number of units ordered is possible
-            query = String.format("SELECT numberOfUnits FROM Product WHERE storeID = '%s' AND productName = '%s'", storeID, pname);
-            result = esql.executeQueryAndReturnResult(query);
-            int inStock = Integer.parseInt(result.get(0).get(0));
-            while ((Integer.parseInt(unitsOrdered) > inStock) ||  (Integer.parseInt(unitsOrdered) < 1)) {
-               System.out.print("\tError! Enter a reasonable number of items: ");   
-               unitsOrdered = in.readLine();   
-            }
-
-            // get the timestamp and customerID
-            Timestamp orderTime = new Timestamp(System.currentTimeMillis());
-            query = String.format("SELECT userID FROM Users WHERE name = '%s'",user);
-            result = esql.executeQueryAndReturnResult(query);
-            String customerID = result.get(0).get(0);
+            esql.out.print("\tEnter number of items: ");   
 
-            // get the order number (increments each time)
-            query = String.format("SELECT COUNT(*)+1 FROM Orders");
-            result = esql.executeQueryAndReturnResult(query);
-            String orderNumber = result.get(0).get(0);
-            System.out.print("Your order number is " + orderNumber + "\n");
-
-            // put it all together
-            query = String.format("INSERT INTO ORDERS (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) VALUES ('%s','%s', '%s', '%s','%s', '%s')", orderNumber, customerID, storeID, pname, unitsOrdered, orderTime);
-            esql.executeUpdate(query);
-            System.out.println ("Order successfully created!");
+            // the stock is checked and the order placed in one call, so
+            // just ask again while the number of units is not possible
+            int orderNumber;
+            do{
+               try{
+                  int unitsOrdered = Integer.parseInt(esql.readLine());
+                  orderNumber = esql.submitOrder(user.getUserID(), storeID, pname, unitsOrdered);
+                  break;
+               }catch(NumberFormatException e){
+                  // not a number, ask again.
+               }catch(OrderRejectedException e){
+                  if(e.getReason() != OrderRejectedException.Reason.INSUFFICIENT_STOCK
+                     && e.getReason() != OrderRejectedException.Reason.BAD_QUANTITY){
+                     throw e;
+                  }
+               }
+               esql.out.print("\tError! Enter a reasonable number of items: ");   
+            } while(true);
+            esql.out.print("Your order number is " + orderNumber + "\n");
+            esql.out.println ("Order successfully created!");
 
             // now update the product table 
             // try{
             //    query = String.format("UPDATE Product SET numberOfUnits = numberOfUnits - '%s' WHERE storeID = '%s' AND productName = '%s'", unitsOrdered, storeID, productName);
             //    esql.executeUpdate(query);
-            //    System.out.println ("Store offerings updated");
+            //    esql.out.println ("Store offerings updated");
             // }catch(Exception e){
-            //    System.err.println (e.getMessage ());
+            //    esql.err.println (e.getMessage ());
             // }
          }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
          }
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         esql.err.println (e.getMessage ());
       }
     }
 
 
-    public static void viewRecentOrders(Amazon esql, String usr) {
-       List<List<String>> result;
+    public static void viewRecentOrders(Amazon esql, UserSession user) {
        try{
-          String query = String.format("SELECT userID, type FROM Users WHERE name = '%s'",usr);
-          result = esql.executeQueryAndReturnResult(query);
-          List<String> user = result.get(0);
-          if(user.get(1).trim().equalsIgnoreCase("manager") ){
-             query = String.format("SELECT o.orderNumber, u.name, s.storeID, o.productName, o.orderTime FROM Orders o, Store s, Users u WHERE s.storeID = o.storeID AND s.managerID = %s AND o.customerID = u.userID ORDER BY o.orderTime DESC LIMIT 5",user.get(0));
-             int rows = esql.executeQueryAndPrintResult(query);
+          RecentActivity recent = esql.getRecentActivity();
+          if(user.isManager() && !user.isAdmin()){
+             printOrders(esql, recent.ordersOfStores(esql, user.getManagedStores(), 5), true);
           }
-          else if (user.get(1).trim().equalsIgnoreCase("admin")){
-            query = "SELECT o.orderNumber, u.name, s.storeID, o.productName, o.orderTime FROM Orders o, Store s, Users u WHERE s.storeID = o.storeID AND o.customerID = u.userID ORDER BY o.orderTime DESC LIMIT 5";
-             int rows = esql.executeQueryAndPrintResult(query);
+          else if (user.isAdmin()){
+             printOrders(esql, recent.allOrders(esql, 5), true);
           }
           else{
-             query = String.format("SELECT * FROM Orders WHERE customerID = %s ORDER BY orderTime DESC LIMIT 5",user.get(0));
-             int rows = esql.executeQueryAndPrintResult(query);
+             printOrders(esql, recent.ordersOfCustomer(esql, user.getUserID(), 5), false);
           }
        }catch(Exception e){
-          System.err.println(e.getMessage());
+          esql.err.println(e.getMessage());
        }
     }
-    public static void updateProduct(Amazon esql, String usr) {
-       List<List<String>> result;
+
+    /*
+     * Prints orders the way the recent orders view always showed them:
+     * with the customer name for managers, with the customer ID and the
+     * units for the customer themself.
+     **/
+    static void printOrders(Amazon esql, List<RecentActivity.Order> orders, boolean withNames) throws SQLException {
+       if(orders.isEmpty())
+          return;
+       Map<Integer, String> names = new HashMap<Integer, String>();
+       if(withNames){
+          List<Integer> unnamed = new ArrayList<Integer>();
+          for(RecentActivity.Order order : orders){
+             if(order.getCustomerName() == null)
+                unnamed.add(order.getCustomerID());
+          }
+          names = customerNames(esql, unnamed);
+          esql.out.println("ordernumber\tname\tstoreid\tproductname\tordertime\t");
+       }
+       else{
+          esql.out.println("ordernumber\tcustomerid\tstoreid\tproductname\tunitsordered\tordertime\t");
+       }
+       for(RecentActivity.Order order : orders){
+          if(withNames){
+             String name = order.getCustomerName() != null ? order.getCustomerName() : names.get(order.getCustomerID());
+             esql.out.println(order.getOrderNumber() + "\t" + name + "\t" + order.getStoreID() + "\t"
+                + esql.getProductDictionary().name(order.getProductID()) + "\t" + order.getOrderTime() + "\t");
+          }
+          else{
+             esql.out.println(order.getOrderNumber() + "\t" + order.getCustomerID() + "\t" + order.getStoreID() + "\t"
+                + esql.getProductDictionary().name(order.getProductID()) + "\t" + order.getUnitsOrdered() + "\t" + order.getOrderTime() + "\t");
+          }
+       }
+    }
+
+    /*
+     * Looks up the names of the given users in one query.
+     * @return the names by userID, without the CHAR padding
+     **/
+    static Map<Integer, String> customerNames(Amazon esql, Collection<Integer> userIDs) throws SQLException {
+       Map<Integer, String> names = new HashMap<Integer, String>();
+       if(userIDs.isEmpty())
+          return names;
+       ColumnBatch result = esql.executeQueryAndReturnBatch("SELECT userID, name FROM Users WHERE userID = ANY (CAST(? AS integer[]))", new ColumnBatch(),
+          StatementCache.array(userIDs));
+       for(int row = 0; row < result.getRowCount(); row++)
+          names.put(result.getInt(row, 0), result.getString(row, 1).trim());
+       return names;
+    }
+    public static void updateProduct(Amazon esql, UserSession user) {
        try{
-          String query = String.format("SELECT userID, type FROM Users WHERE name = '%s'",usr);
-          result = esql.executeQueryAndReturnResult(query);
-          List<String> user = result.get(0);
-          String type = user.get(1).trim();
-          if(!type.equalsIgnoreCase("manager") && !type.equalsIgnoreCase("admin")){
-             System.out.println("You are not a manager or an admin");
+          if(!user.isManager()){
+             esql.out.println("You are not a manager or an admin");
              return;
           }
           int storeid = 0;
           do{
              try{
-                System.out.println("What is the store Id you are trying to update for:");
-                storeid = Integer.parseInt(in.readLine());
-                query = String.format("SELECT managerID from Store WHERE storeID = %s",storeid);
-                result = esql.executeQueryAndReturnResult(query);
-                if(!type.equalsIgnoreCase("admin") && Integer.parseInt(result.get(0).get(0)) != Integer.parseInt(user.get(0))){
-                   System.out.println("You are not the Manager");
+                esql.out.println("What is the store Id you are trying to update for:");
+                storeid = Integer.parseInt(esql.readLine());
+                if(!checkManages(esql, user, storeid)){
                    continue;
                 }
                 else{
                    break;
                 }
+             } catch(SessionClosedException e){
+                throw e;
              } catch(Exception e){
-                System.err.println(e.getMessage());
+                esql.err.println(e.getMessage());
              }
           } while(true);
           String pname = "";
           do{
              try{
-                System.out.println("What is the Product Name you are tying to update for:");
-                pname = in.readLine();
-                query = String.format("Select productName FROM Product WHERE productName = '%s' AND storeID = %s", pname, storeid);
-                int rows = esql.executeQuery(query);
-                if(rows == 0){
-                   System.out.println("Product does not exist");
+                esql.out.println("What is the Product Name you are tying to update for:");
+                pname = esql.readLine();
+                if(!esql.getCatalog().exists(storeid, pname)){
+                   esql.out.println("Product does not exist");
                    continue;
                 }
                 else{
                    break;
                 }
                 
+             } catch(SessionClosedException e){
+                throw e;
              } catch(Exception e){
-                System.err.println(e.getMessage());
+                esql.err.println(e.getMessage());
              }
           } while(true);
           int numofUnits;
           float newPrice;
           do{
             try{
-               System.out.println("new number of units:");
-               numofUnits = Integer.parseInt(in.readLine());
+               esql.out.println("new number of units:");
+               numofUnits = Integer.parseInt(esql.readLine());
                if(numofUnits < 0){
-                  System.out.println("Error number of product cannot be less then 0");
+                  esql.out.println("Error number of product cannot be less then 0");
                   continue;
                }
-               System.out.println("new Price:");
-              newPrice = Float.parseFloat(in.readLine());
+               esql.out.println("new Price:");
+              newPrice = Float.parseFloat(esql.readLine());
               if(newPrice < 0){
-               System.out.println("Error: price cannot be less then 0");
+               esql.out.println("Error: price cannot be less then 0");
                continue;
               }
               break;
+            } catch(SessionClosedException e){
+               throw e;
             } catch(Exception e){
-               System.out.println("number of units or price has to be a number");
+               esql.out.println("number of units or price has to be a number");
                continue;
             }
           } while(true);
           try{
-             query = String.format("UPDATE Product SET numberOfUnits = %s, pricePerUnit = %s WHERE storeID = %s AND productName = '%s'", numofUnits, newPrice, storeid, pname);
-             esql.executeUpdate(query);
+             esql.changeProduct(storeid, pname, numofUnits, newPrice);
           } catch(Exception e){
-             System.err.println(e.getMessage());
+             esql.err.println(e.getMessage());
           }
        }catch(Exception e){
-          System.err.println(e.getMessage());
+          esql.err.println(e.getMessage());
        }
     }
 
 
-    public static void viewRecentUpdates(Amazon esql, String user) {
-      List<List<String>> result;
-      String query;
-
+    public static void viewRecentUpdates(Amazon esql, UserSession user) {
       try{
-         query = String.format("SELECT userID, type FROM Users WHERE name = '%s'",user);
-         result = esql.executeQueryAndReturnResult(query);
-         int managerID = Integer.parseInt(result.get(0).get(0));
-         String type = result.get(0).get(1).trim();
-         if(!type.equalsIgnoreCase("admin")){
-               if(!type.equalsIgnoreCase("manager")){
-               System.out.println(result.get(0).get(1));
-               System.out.println("You are not the Manager");
-               return;
-            }
+         if(!user.isManager()){
+            esql.out.println(user.getRole());
+            esql.out.println("You are not the Manager");
+            return;
          }
-         System.out.println("Enter storeID:");
-         int storeID = Integer.parseInt(in.readLine());
-         query = String.format("SELECT managerID from Store WHERE storeID = %s",storeID);
-         result = esql.executeQueryAndReturnResult(query);
-         // if (managerID != Integer.parseInt(result.get(0).get(0)) && !result.get(0).get(1).equalsIgnoreCase("admin")){
-         //    System.out.println("You are not the Manager");
-         //    return;
-         // }
-         if(!type.equalsIgnoreCase("admin")){
-            if( managerID != Integer.parseInt(result.get(0).get(0)) ){
-               System.out.println("You are not the Manager");
-               return;
-            }
+         esql.out.println("Enter storeID:");
+         int storeID = Integer.parseInt(esql.readLine());
+         if(!checkManages(esql, user, storeID)){
+            return;
          }
-         // now select latest 5 updates
-         query = String.format("SELECT * FROM ProductUpdates WHERE storeID = '%s' ORDER BY updateNumber DESC LIMIT 5", storeID);
-         esql.executeQueryAndPrintResult(query);
+         // now show the latest 5 updates
+         List<RecentActivity.Update> updates = esql.getRecentActivity().updatesOfStore(esql, storeID, 5);
+         if(!updates.isEmpty())
+            esql.out.println("updatenumber\tmanagerid\tstoreid\tproductname\tupdatedon\t");
+         for(RecentActivity.Update update : updates)
+            esql.out.println(update.getUpdateNumber() + "\t" + update.getManagerID() + "\t" + update.getStoreID() + "\t"
+               + esql.getProductDictionary().name(update.getProductID()) + "\t" + update.getUpdatedOn() + "\t");
       } catch(Exception e){
-         System.err.println(e.getMessage());
+         esql.err.println(e.getMessage());
       }
     }
 
 
     
-    public static void viewPopularProducts(Amazon esql, String user) {
-      if(!isManager){
-         System.out.println("You are not a manager");
+    public static void viewPopularProducts(Amazon esql, UserSession user) {
+      if(!user.isManager()){
+         esql.out.println("You are not a manager");
          return;
       }
-      List<List<String>> result;
-      String query;
       try{
-         System.out.println ("------------------------------------");
-         System.out.println("\tMost Popular Items");
-         System.out.println ("------------------------------------");
-
-         query = String.format("SELECT userID FROM Users WHERE name = '%s'",user);
-         result = esql.executeQueryAndReturnResult(query);
-         String managerID = result.get(0).get(0);
-
-         query = String.format("Select COUNT(storeID) FROM Store WHERE managerID = '%s'", managerID);
-         result = esql.executeQueryAndReturnResult(query);
-         int numOfStores = Integer.parseInt(result.get(0).get(0));
-         //System.out.println(numOfStores);
+         esql.out.println ("------------------------------------");
+         esql.out.println("\tMost Popular Items");
+         esql.out.println ("------------------------------------");
 
-         query = String.format("Select storeID FROM Store WHERE managerID = '%s'", managerID);
-         result = esql.executeQueryAndReturnResult(query);
-
-         for(int i = 0; i < numOfStores; i++) {
-            int storeID = Integer.parseInt(result.get(i).get(0));
-            System.out.println("\tFor store " + storeID + ":");
-
-            query = String.format("SELECT productName FROM Orders WHERE storeID = '%s' ORDER BY unitsOrdered DESC LIMIT 5", storeID);
-            esql.executeQueryAndPrintResult(query);
+         for(int storeID : user.getManagedStores()) {
+            esql.out.println("\tFor store " + storeID + ":");
+            for(PopularityTracker.Entry<Integer> product : esql.getPopularity().topProducts(storeID, 5))
+               esql.out.println(esql.getProductDictionary().name(product.getKey()) + "\t" + product.getUnits());
          }
-         System.out.println ("------------------------------------");
+         esql.out.println ("------------------------------------");
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         esql.err.println (e.getMessage ());
       }
     }
 
-    public static void viewPopularCustomers(Amazon esql, String user) {
-      if(!isManager){
-         System.out.println("You are not a manager");
+    public static void viewPopularCustomers(Amazon esql, UserSession user) {
+      if(!user.isManager()){
+         esql.out.println("You are not a manager");
          return;
       }
-      List<List<String>> result;
-      String query;
       try{
-         System.out.println ("------------------------------------");
-         System.out.println("\tTop 5 Customers");
-         System.out.println ("------------------------------------");
-
-         query = String.format("SELECT userID FROM Users WHERE name = '%s'",user);
-         result = esql.executeQueryAndReturnResult(query);
-         String managerID = result.get(0).get(0);
-
-         query = String.format("Select COUNT(storeID) FROM Store WHERE managerID = '%s'", managerID);
-         result = esql.executeQueryAndReturnResult(query);
-         int numOfStores = Integer.parseInt(result.get(0).get(0));
-         //System.out.println(numOfStores);
-
-         query = String.format("Select storeID FROM Store WHERE managerID = '%s'", managerID);
-         result = esql.executeQueryAndReturnResult(query);
+         // the rankings hold customerIDs; look up every name shown in one query
+         Map<Integer, List<PopularityTracker.Entry<Integer>>> top = new LinkedHashMap<Integer, List<PopularityTracker.Entry<Integer>>>();
+         Set<Integer> customers = new HashSet<Integer>();
+         for(int storeID : user.getManagedStores()) {
+            top.put(storeID, esql.getPopularity().topCustomers(storeID, 5));
+            for(PopularityTracker.Entry<Integer> customer : top.get(storeID))
+               customers.add(customer.getKey());
+         }
+         Map<Integer, String> names = customerNames(esql, customers);
 
-         for(int i = 0; i < numOfStores; i++) {
-            int storeID = Integer.parseInt(result.get(i).get(0));
-            System.out.println("\tFor store " + storeID + ":");
-            
-            query = String.format("SELECT name FROM users U, (SELECT customerID, SUM(unitsOrdered) AS x FROM Orders WHERE storeID = '%s' GROUP BY customerID ORDER BY x DESC LIMIT 5) AS top5 WHERE U.userID = top5.customerID", storeID);
-            esql.executeQueryAndPrintResult(query);
+         esql.out.println ("------------------------------------");
+         esql.out.println("\tTop 5 Customers");
+         esql.out.println ("------------------------------------");
+         for(Map.Entry<Integer, List<PopularityTracker.Entry<Integer>>> store : top.entrySet()) {
+            esql.out.println("\tFor store " + store.getKey() + ":");
+            for(PopularityTracker.Entry<Integer> customer : store.getValue())
+               esql.out.println(names.get(customer.getKey()) + "\t" + customer.getUnits());
          }
-         System.out.println ("------------------------------------");
+         esql.out.println ("------------------------------------");
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         esql.err.println (e.getMessage ());
       }
     }
 
 
-    public static void placeProductSupplyRequests(Amazon esql, String user) {
+    public static void placeProductSupplyRequests(Amazon esql, UserSession user) {
       List<List<String>> result;
       String query;
-      if(!isManager){
-         System.out.println("You are not a manager");
+      if(!user.isManager()){
+         esql.out.println("You are not a manager");
          return;
       }
       try{
-         query = String.format("SELECT userID,type FROM Users WHERE name = '%s'",user);
-         result = esql.executeQueryAndReturnResult(query);
-         int managerID = Integer.parseInt(result.get(0).get(0));
-         String type = result.get(0).get(1).trim();
-         System.out.println("Enter storeID:");
-         int storeID = Integer.parseInt(in.readLine());
-         query = String.format("SELECT managerID from Store WHERE storeID = %s",storeID);
-         result = esql.executeQueryAndReturnResult(query);
-         if(!type.equalsIgnoreCase("admin")){
-            if (managerID != Integer.parseInt(result.get(0).get(0))){
-               System.out.println("You are not the Manager");
-               return;
-            }
+         int managerID = user.getUserID();
+         esql.out.println("Enter storeID:");
+         int storeID = Integer.parseInt(esql.readLine());
+         if(!checkManages(esql, user, storeID)){
+            return;
          }
-         System.out.print("\tEnter product name: ");
-         String productName = in.readLine();
-         System.out.print("\tEnter number of units needed: ");
-         String unitsRequested = in.readLine();
-         String warehouseID = "";
+         esql.out.print("\tEnter product name: ");
+         int productID = esql.getProductDictionary().id(esql.readLine());
+         if(productID < 0){
+            esql.out.println("Product does not exist");
+            return;
+         }
+         esql.out.print("\tEnter number of units needed: ");
+         int unitsRequested = Integer.parseInt(esql.readLine());
+         int warehouseID = -1;
          do{
-            System.out.print("\tEnter warehouse ID: ");
-            warehouseID = in.readLine();
-            query = String.format("SELECT warehouseID FROM Warehouse WHERE warehouseID = '%s'", warehouseID);
-            List<List<String>> rows = esql.executeQueryAndReturnResult(query);
+            esql.out.print("\tEnter warehouse ID: ");
+            try{
+               warehouseID = Integer.parseInt(esql.readLine());
+            }catch(NumberFormatException e){
+               continue;
+            }
+            query = "SELECT warehouseID FROM Warehouse WHERE warehouseID = ?";
+            List<List<String>> rows = esql.executeQueryAndReturnResult(query, warehouseID);
             if(rows.size() == 0){
                continue;
             }
@@ -832,32 +1572,148 @@ import java.awt.event.*;
                break;
             }
          } while(true);
-         // get the order number (increments each time)
-         query = String.format("SELECT COUNT(*)+1 FROM ProductSupplyRequests");
-         result = esql.executeQueryAndReturnResult(query);
-         String requestNumber = result.get(0).get(0);
-         System.out.print("Your request number is " + requestNumber + "\n");
+         // get the request number (increments each time)
+         int requestNumber = esql.nextRequestNumber();
+         esql.out.print("Your request number is " + requestNumber + "\n");
 
          // create a new product request
          try{
-            query = String.format("INSERT INTO ProductSupplyRequests (requestNumber, managerID, warehouseID, storeID, productName, unitsRequested) VALUES ('%s','%s','%s','%s','%s','%s')", requestNumber, managerID, warehouseID, storeID, productName, unitsRequested);
-            esql.executeUpdate(query);
-            System.out.println ("Supply request placed!");
+            query = "INSERT INTO ProductSupplyRequests (requestNumber, managerID, warehouseID, storeID, productID, unitsRequested) VALUES (?, ?, ?, ?, ?, ?)";
+            esql.executeUpdate(query, requestNumber, managerID, warehouseID, storeID, productID, unitsRequested);
+            esql.out.println ("Supply request placed!");
          }catch(Exception e){
-            System.err.println (e.getMessage ());
+            esql.err.println (e.getMessage ());
          }
          // now update the product table 
          // try{
          //    query = String.format("UPDATE Product SET numberOfUnits = numberOfUnits + '%s' WHERE storeID = '%s' AND productName = '%s'", unitsRequested, storeID, productName);
          //    esql.executeUpdate(query);
-         //    System.out.println ("Store offerings updated");
+         //    esql.out.println ("Store offerings updated");
          // }catch(Exception e){
-         //    System.err.println (e.getMessage ());
+         //    esql.err.println (e.getMessage ());
          // }
       } catch(Exception e){
-         System.err.println(e.getMessage());
+         esql.err.println(e.getMessage());
       }
     }
- 
+
+    /*
+     * Restocks every product of the user's stores that is running low from
+     * the nearest warehouse, after showing the plan. Admins restock every store.
+     **/
+    public static void replenishStores(Amazon esql, UserSession user) {
+      if(!user.isManager()){
+         esql.out.println("You are not a manager");
+         return;
+      }
+      try{
+         List<Integer> stores = user.isAdmin() ? esql.getStoreIndex().ids() : user.getManagedStores();
+         ReplenishmentPlanner planner = new ReplenishmentPlanner(esql);
+         esql.out.print("\tRestock products with fewer units than [" + ReplenishmentPlanner.DEFAULT_THRESHOLD + "]: ");
+         String threshold = esql.readLine().trim();
+         if(!threshold.isEmpty()) planner.setDefaultThreshold(Integer.parseInt(threshold));
+         esql.out.print("\tRestock them up to [" + ReplenishmentPlanner.DEFAULT_TARGET_LEVEL + "] units: ");
+         String target = esql.readLine().trim();
+         if(!target.isEmpty()) planner.setTargetLevel(Integer.parseInt(target));
+
+         List<ReplenishmentPlanner.SupplyRequest> requests = planner.plan(stores);
+         if(requests.isEmpty()){
+            esql.out.println("Nothing needs restocking");
+            return;
+         }
+         for(ReplenishmentPlanner.SupplyRequest request : requests)
+            esql.out.println("\t" + request);
+         esql.out.print("\tPlace these " + requests.size() + " supply requests? (y/n): ");
+         if(!esql.readLine().trim().equalsIgnoreCase("y"))
+            return;
+         planner.submit(requests);
+         esql.out.println("Supply requests placed!");
+      } catch(SessionClosedException e){
+         throw e;
+      } catch(Exception e){
+         esql.err.println(e.getMessage());
+      }
+    }
+
+    /*
+     * Shows the units and revenue of every product of a store over the
+     * last days, from the sales rollups.
+     **/
+    public static void viewSalesByProduct(Amazon esql, UserSession user) {
+      if(!user.isManager()){
+         esql.out.println("You are not a manager");
+         return;
+      }
+      try{
+         esql.out.println("Enter storeID:");
+         int storeID = Integer.parseInt(esql.readLine());
+         if(!checkManages(esql, user, storeID)){
+            return;
+         }
+         esql.out.print("\tSales of the last [30] days: ");
+         String days = esql.readLine().trim();
+         LocalDateTime now = LocalDateTime.now();
+         LocalDateTime from = now.minusDays(days.isEmpty() ? 30 : Integer.parseInt(days));
+
+         List<SalesRollup.Sales> sales = esql.getSalesRollup().byProduct(storeID, from, now);
+         if(sales.isEmpty()){
+            esql.out.println("No sales");
+            return;
+         }
+         long units = 0;
+         double revenue = 0;
+         esql.out.println("productname\tunitsordered\trevenue\t");
+         for(SalesRollup.Sales product : sales){
+            esql.out.println(esql.getProductDictionary().name(product.getProductID()) + "\t" + product.getUnits() + "\t"
+               + String.format("%.2f", product.getRevenue()) + "\t");
+            units += product.getUnits();
+            revenue += product.getRevenue();
+         }
+         esql.out.println("Total\t" + units + "\t" + String.format("%.2f", revenue) + "\t");
+      } catch(SessionClosedException e){
+         throw e;
+      } catch(Exception e){
+         esql.err.println(e.getMessage());
+      }
+    }
+
+    /*
+     * Shows the units and revenue of a store by hour, day or month over the
+     * last ones, from the sales rollups.
+     **/
+    public static void viewSalesOverTime(Amazon esql, UserSession user) {
+      if(!user.isManager()){
+         esql.out.println("You are not a manager");
+         return;
+      }
+      try{
+         esql.out.println("Enter storeID:");
+         int storeID = Integer.parseInt(esql.readLine());
+         if(!checkManages(esql, user, storeID)){
+            return;
+         }
+         esql.out.print("\tBy hour, day or month [day]: ");
+         String unit = esql.readLine().trim();
+         SalesRollup.Granularity granularity = unit.isEmpty() ? SalesRollup.Granularity.DAY : SalesRollup.Granularity.of(unit);
+         esql.out.print("\tHow many, counting the current one [30]: ");
+         String count = esql.readLine().trim();
+         LocalDateTime now = LocalDateTime.now();
+         LocalDateTime from = granularity.plus(granularity.truncate(now), 1 - (count.isEmpty() ? 30 : Integer.parseInt(count)));
+
+         List<SalesRollup.Sales> sales = esql.getSalesRollup().overTime(storeID, granularity, from, now);
+         if(sales.isEmpty()){
+            esql.out.println("No sales");
+            return;
+         }
+         esql.out.println(granularity + "\tunitsordered\trevenue\t");
+         for(SalesRollup.Sales bucket : sales)
+            esql.out.println(bucket.getBucketStart() + "\t" + bucket.getUnits() + "\t" + String.format("%.2f", bucket.getRevenue()) + "\t");
+      } catch(SessionClosedException e){
+         throw e;
+      } catch(Exception e){
+         esql.err.println(e.getMessage());
+      }
+    }
+
  }//end Amazon
  
\ No newline at end of file
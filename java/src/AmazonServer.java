@@ -0,0 +1,94 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class serves the Amazon menus to many concurrent clients over plain
+ * TCP (e.g. telnet or nc). Every client gets its own session with its own
+ * input, output and login state, while the database connections come from
+ * the bounded pool of the shared Amazon instance. Sessions run on virtual
+ * threads when the JVM has them, so an idle client costs no OS thread.
+ *
+ */
+public class AmazonServer {
+
+   // the instance owning the connection pool every session borrows from.
+   private final Amazon _shared;
+
+   private final ExecutorService _sessions;
+
+   public AmazonServer(Amazon shared) {
+      this._shared = shared;
+      this._sessions = newSessionExecutor();
+   }//end AmazonServer
+
+   /**
+    * A pool a couple of times the core count keeps every core busy while
+    * other sessions wait on the network.
+    *
+    * @return the pool size used when none is given on the command line
+    */
+   public static int defaultPoolSize() {
+      return 2 * Runtime.getRuntime().availableProcessors();
+   }
+
+   /*
+    * Virtual threads arrived in Java 21; older JVMs fall back to a cached
+    * pool of platform threads, which behaves the same for modest client
+    * counts.
+    */
+   static ExecutorService newSessionExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }catch (Exception e) {
+         return Executors.newCachedThreadPool();
+      }
+   }//end newSessionExecutor
+
+   /**
+    * Accepts clients on the given port until the process is stopped.
+    *
+    * @param port the TCP port to listen on
+    * @throws java.io.IOException when the port cannot be opened
+    */
+   public void serve(int port) throws IOException {
+      ServerSocket listener = new ServerSocket(port);
+      System.out.println("Serving sessions on port " + port + " with up to "
+         + this._shared.getPool().getMaxSize() + " database connections");
+      try {
+         while (true) {
+            final Socket client = listener.accept();
+            this._sessions.submit(new Runnable() {
+               public void run() {
+                  handle(client);
+               }
+            });
+         }
+      } finally {
+         listener.close();
+         this._sessions.shutdownNow();
+      }
+   }//end serve
+
+   // runs the menus for one client and closes its socket afterwards.
+   private void handle(Socket client) {
+      try {
+         BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+         PrintStream out = new PrintStream(client.getOutputStream(), true);
+         Amazon.runSession(new Amazon(this._shared, in, out));
+      }catch (Exception e) {
+         System.err.println("Session " + client.getRemoteSocketAddress() + " failed: " + e.getMessage());
+      } finally {
+         try {
+            client.close();
+         }catch (IOException e) {
+            // ignored.
+         }
+      }
+   }//end handle
+}//end AmazonServer
@@ -0,0 +1,281 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class takes the ProductUpdates rows of product changes off the
+ * update itself. Each row is appended to a memory-mapped log file, which
+ * is a copy into the page cache, and a writer thread drains the log into
+ * ProductUpdates with one insert per batch. The log is a fixed number of
+ * fixed-size records after a header that holds how many have been
+ * drained; once every record is drained the log starts over from the
+ * first record. When it is full, appends wait for the writer.
+ *
+ * A record is marked committed by its first byte, written last, so a
+ * record cut short by a crash is never read. Records left by a crash are
+ * drained again on start; the insert skips update numbers already there,
+ * and rows of products deleted meanwhile. The log is forced to disk after
+ * every drain, so a machine crash can lose the rows of one drain interval.
+ *
+ */
+public class AuditLog {
+
+   public static final int DEFAULT_CAPACITY = 65536;
+   public static final long DRAIN_MILLIS = 200;
+
+   // rows inserted per statement.
+   static final int DRAIN_BATCH = 500;
+
+   // AUD2: records hold the productID; AUD1 logs held the product name.
+   static final int MAGIC = 0x41554432;
+   static final int HEADER_SIZE = 64;
+   static final int RECORD_SIZE = 32;
+
+   private final Amazon _esql;
+   private final int _capacity;
+   private final MappedByteBuffer _map;
+
+   // records [_drained, _written) are waiting for the writer.
+   private int _drained;
+   private int _written;
+
+   // held while draining, so the writer and stop() never drain together.
+   private final Object _draining = new Object();
+
+   private volatile boolean _running = false;
+   private Thread _writer = null;
+   private long _rowsDrained = 0;
+
+   /**
+    * Opens the log, creating it if needed
+    *
+    * @param esql the program whose connections write ProductUpdates
+    * @param file the log file
+    * @param capacity the number of records the log holds
+    * @throws java.io.IOException when the file could not be mapped
+    */
+   public AuditLog(Amazon esql, String file, int capacity) throws IOException {
+      this._esql = esql;
+      RandomAccessFile raf = new RandomAccessFile(new File(file), "rw");
+      try {
+         boolean fresh = raf.length() < HEADER_SIZE;
+         if (!fresh) {
+            raf.seek(0);
+            if (raf.readInt() != MAGIC)
+               throw new IOException(file + " is not an audit log");
+            capacity = (int) ((raf.length() - HEADER_SIZE) / RECORD_SIZE);
+         }
+         this._capacity = capacity;
+         this._map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+      } finally {
+         // the mapping stays valid after the file is closed
+         raf.close();
+      }
+      if (this._map.getInt(0) != MAGIC) {
+         this._map.putInt(4, 0);
+         this._map.putInt(0, MAGIC);
+      }
+      this._drained = this._map.getInt(4);
+      this._written = this._drained;
+      while (this._written < this._capacity && this._map.get(offset(this._written)) == 1)
+         this._written++;
+   }//end AuditLog
+
+   public AuditLog(Amazon esql, String file) throws IOException {
+      this(esql, file, DEFAULT_CAPACITY);
+   }
+
+   private static int offset(int record) {
+      return HEADER_SIZE + record * RECORD_SIZE;
+   }
+
+   /**
+    * Drains what the last run left and starts the writer thread.
+    *
+    * @throws java.sql.SQLException when the records left could not be written
+    */
+   public synchronized void start() throws SQLException {
+      drain();
+      this._running = true;
+      this._writer = new Thread(new Runnable() {
+         public void run() {
+            write();
+         }
+      }, "audit-log-writer");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end start
+
+   /**
+    * Stops the writer thread and drains what is left.
+    *
+    * @throws java.sql.SQLException when the last drain failed; the log keeps the rows
+    */
+   public void stop() throws SQLException {
+      Thread writer;
+      synchronized (this) {
+         this._running = false;
+         writer = this._writer;
+         this._writer = null;
+         notifyAll();
+      }
+      if (writer == null)
+         return;
+      try {
+         writer.join();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      drain();
+   }//end stop
+
+   /**
+    * Adds the row of a product change that has been committed.
+    */
+   public synchronized void append(RecentActivity.Update update) {
+      while (this._written == this._capacity) {
+         // full: wake the writer and wait until it starts over
+         notifyAll();
+         try {
+            wait(DRAIN_MILLIS);
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while the audit log is full");
+         }
+      }
+      int at = offset(this._written);
+      this._map.putInt(at + 4, update.updateNumber);
+      this._map.putInt(at + 8, update.managerID);
+      this._map.putInt(at + 12, update.storeID);
+      this._map.putLong(at + 16, update.updatedOn.getTime());
+      this._map.putInt(at + 24, update.productID);
+      this._map.put(at, (byte) 1);
+      this._written++;
+   }//end append
+
+   private RecentActivity.Update read(int record) {
+      int at = offset(record);
+      return new RecentActivity.Update(this._map.getInt(at + 4), this._map.getInt(at + 8), this._map.getInt(at + 12),
+         this._map.getInt(at + 24), new Timestamp(this._map.getLong(at + 16)));
+   }//end read
+
+   /**
+    * @return the rows of the store not drained yet, oldest first
+    */
+   public synchronized List<RecentActivity.Update> unflushed(int storeID) {
+      List<RecentActivity.Update> updates = new ArrayList<RecentActivity.Update>();
+      for (int record = this._drained; record < this._written; record++) {
+         if (this._map.getInt(offset(record) + 12) == storeID)
+            updates.add(read(record));
+      }
+      return updates;
+   }//end unflushed
+
+   /**
+    * @return the number of rows not drained yet
+    */
+   public synchronized int backlog() {
+      return this._written - this._drained;
+   }
+
+   // drains every DRAIN_MILLIS, or as soon as an append finds the log full.
+   private void write() {
+      while (true) {
+         synchronized (this) {
+            if (!this._running)
+               return;
+            if (this._written < this._capacity) {
+               try {
+                  wait(DRAIN_MILLIS);
+               }catch (InterruptedException e) {
+                  return;
+               }
+            }
+            if (!this._running)
+               return;
+         }
+         try {
+            drain();
+         }catch (SQLException e) {
+            System.err.println("Audit log not drained, retrying: " + e.getMessage());
+         }
+      }
+   }//end write
+
+   /**
+    * Writes every waiting row to ProductUpdates, one batch at a time.
+    *
+    * @throws java.sql.SQLException when a batch could not be written; it stays in the log
+    */
+   public void drain() throws SQLException {
+      synchronized (this._draining) {
+         drainBatches();
+      }
+   }//end drain
+
+   private void drainBatches() throws SQLException {
+      while (true) {
+         List<RecentActivity.Update> batch = new ArrayList<RecentActivity.Update>();
+         synchronized (this) {
+            for (int record = this._drained; record < this._written && batch.size() < DRAIN_BATCH; record++)
+               batch.add(read(record));
+         }
+         if (batch.isEmpty())
+            return;
+         insert(batch);
+         synchronized (this) {
+            this._drained += batch.size();
+            this._rowsDrained += batch.size();
+            if (this._drained == this._written)
+               restart();
+            this._map.putInt(4, this._drained);
+            this._map.force();
+            notifyAll();
+         }
+      }
+   }//end drainBatches
+
+   // clears the drained records so the log starts over from the first.
+   private void restart() {
+      for (int record = 0; record < this._written; record++)
+         this._map.put(offset(record), (byte) 0);
+      this._drained = 0;
+      this._written = 0;
+   }//end restart
+
+   // one statement for any batch size: the columns go as arrays and unnest
+   // turns them back into rows.
+   private void insert(List<RecentActivity.Update> batch) throws SQLException {
+      List<Integer> updateNumbers = new ArrayList<Integer>(batch.size());
+      List<Integer> managerIDs = new ArrayList<Integer>(batch.size());
+      List<Integer> storeIDs = new ArrayList<Integer>(batch.size());
+      List<Integer> productIDs = new ArrayList<Integer>(batch.size());
+      List<Timestamp> updatedOns = new ArrayList<Timestamp>(batch.size());
+      for (RecentActivity.Update update : batch) {
+         updateNumbers.add(update.updateNumber);
+         managerIDs.add(update.managerID);
+         storeIDs.add(update.storeID);
+         productIDs.add(update.productID);
+         updatedOns.add(update.updatedOn);
+      }
+      this._esql.executeUpdate(
+         "INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productID, updatedOn)"
+         + " SELECT d.* FROM unnest(CAST(? AS integer[]), CAST(? AS integer[]), CAST(? AS integer[]), CAST(? AS integer[]), CAST(? AS timestamp[]))"
+         + " AS d (updateNumber, managerID, storeID, productID, updatedOn)"
+         + " WHERE EXISTS (SELECT 1 FROM Product p WHERE p.storeID = d.storeID AND p.productID = d.productID)"
+         + " ON CONFLICT (updateNumber, updatedOn) DO NOTHING",
+         StatementCache.array(updateNumbers), StatementCache.array(managerIDs), StatementCache.array(storeIDs),
+         StatementCache.array(productIDs), StatementCache.array(updatedOns));
+   }//end insert
+
+   @Override
+   public synchronized String toString() {
+      return String.format("Audit log: %d rows drained, %d waiting", this._rowsDrained, this._written - this._drained);
+   }
+}//end AuditLog
@@ -0,0 +1,334 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class loads orders and product supply requests in bulk from CSV
+ * input. Rows are written with batched inserts, one transaction per batch.
+ * Inside that transaction the row triggers that adjust Product are switched
+ * off through amazon.bulk_load, and the stock is adjusted instead with one
+ * aggregated update per (storeID, productID) of the batch. The sales of
+ * an order batch are recorded for the sales rollups the same way, one
+ * pending row per (storeID, productID, hour).
+ *
+ * Order input needs the columns customerID, storeID, productName and
+ * unitsOrdered, and may have orderTime; supply request input needs
+ * managerID, warehouseID, storeID, productName and unitsRequested. Columns
+ * are matched by the header line, in any order, and any orderNumber or
+ * requestNumber column is ignored: keys always come from the sequences,
+ * order numbers reserved a batch at a time. Product names are turned into
+ * their productIDs through the product dictionary; a name no store sells
+ * fails its line.
+ * Bulk orders are not checked against the stock. Orders of months that
+ * have no partition yet get one before their batch is written.
+ *
+ */
+public class BulkIngestor {
+
+   public static final int DEFAULT_BATCH_SIZE = 5000;
+
+   private final Amazon _esql;
+   private int _batchSize = DEFAULT_BATCH_SIZE;
+
+   private long _rows = 0;
+   private long _batches = 0;
+   private long _productUpdates = 0;
+
+   // what one kind of input is written as.
+   private static class Target {
+      final String[] columns;
+      final String insert;
+      final String adjust;
+      final int unitsColumn;
+
+      Target(String[] columns, String insert, String adjust, int unitsColumn) {
+         this.columns = columns;
+         this.insert = insert;
+         this.adjust = adjust;
+         this.unitsColumn = unitsColumn;
+      }
+   }//end Target
+
+   static final Target ORDERS = new Target(
+      new String[] {"customerID", "storeID", "productName", "unitsOrdered", "orderTime"},
+      "INSERT INTO Orders (orderNumber, customerID, storeID, productID, unitsOrdered, orderTime) VALUES (?, ?, ?, ?, ?, ?)",
+      "UPDATE Product SET numberOfUnits = numberOfUnits - ? WHERE storeID = ? AND productID = ?",
+      3);
+
+   static final Target SUPPLY_REQUESTS = new Target(
+      new String[] {"managerID", "warehouseID", "storeID", "productName", "unitsRequested"},
+      "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productID, unitsRequested) VALUES (?, ?, ?, ?, ?)",
+      "UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productID = ?",
+      4);
+
+   // the sales of one product of a store in one hour, see recordSale() in functions.sql.
+   static final String RECORD_SALES =
+      "INSERT INTO SalesRollupPending (storeID, productID, hourStart, unitsOrdered, revenue)"
+      + " SELECT p.storeID, p.productID, ?, ?, ? * p.pricePerUnit FROM Product p WHERE p.storeID = ? AND p.productID = ?";
+
+   public BulkIngestor(Amazon esql) {
+      this._esql = esql;
+   }
+
+   public void setBatchSize(int batchSize) {
+      this._batchSize = batchSize;
+   }
+
+   /**
+    * Loads orders from CSV input.
+    *
+    * @return the number of orders loaded
+    * @throws java.io.IOException when the input cannot be read or parsed
+    * @throws java.sql.SQLException when a batch failed; earlier batches stay
+    */
+   public long ingestOrders(BufferedReader csv) throws IOException, SQLException {
+      return ingest(csv, ORDERS);
+   }
+
+   /**
+    * Loads product supply requests from CSV input.
+    *
+    * @return the number of supply requests loaded
+    * @throws java.io.IOException when the input cannot be read or parsed
+    * @throws java.sql.SQLException when a batch failed; earlier batches stay
+    */
+   public long ingestSupplyRequests(BufferedReader csv) throws IOException, SQLException {
+      return ingest(csv, SUPPLY_REQUESTS);
+   }
+
+   private long ingest(BufferedReader csv, Target target) throws IOException, SQLException {
+      String header = csv.readLine();
+      if (header == null)
+         return 0;
+      int[] positions = columnPositions(parseLine(header), target.columns);
+
+      long loaded = 0;
+      List<Object[]> batch = new ArrayList<Object[]>(this._batchSize);
+      String line;
+      int lineNumber = 1;
+      while ((line = csv.readLine()) != null) {
+         lineNumber++;
+         if (line.trim().isEmpty())
+            continue;
+         try {
+            batch.add(toRow(parseLine(line), positions, target));
+         }catch (RuntimeException e) {
+            throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+         }
+         if (batch.size() == this._batchSize) {
+            writeBatch(batch, target);
+            loaded += batch.size();
+            batch.clear();
+         }
+      }
+      if (!batch.isEmpty()) {
+         writeBatch(batch, target);
+         loaded += batch.size();
+      }
+      return loaded;
+   }//end ingest
+
+   // finds where each wanted column is in the header, -1 if it is missing.
+   private static int[] columnPositions(List<String> header, String[] columns) throws IOException {
+      int[] positions = new int[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+         positions[i] = -1;
+         for (int j = 0; j < header.size(); j++) {
+            if (header.get(j).trim().equalsIgnoreCase(columns[i]))
+               positions[i] = j;
+         }
+         if (positions[i] < 0 && !columns[i].equals("orderTime"))
+            throw new IOException("Missing column " + columns[i]);
+      }
+      return positions;
+   }//end columnPositions
+
+   private Object[] toRow(List<String> fields, int[] positions, Target target) throws SQLException {
+      Object[] row = new Object[positions.length];
+      for (int i = 0; i < positions.length; i++) {
+         String column = target.columns[i];
+         String value = positions[i] < 0 ? null : fields.get(positions[i]).trim();
+         if (column.equals("productName")) {
+            row[i] = this._esql.getProductDictionary().id(value);
+            if ((Integer) row[i] < 0)
+               throw new IllegalArgumentException("No product " + value);
+         }
+         else if (column.equals("orderTime"))
+            row[i] = value == null || value.isEmpty() ? new Timestamp(System.currentTimeMillis()) : Timestamp.valueOf(value);
+         else
+            row[i] = Integer.valueOf(value);
+      }
+      return row;
+   }//end toRow
+
+   /*
+    * Writes one batch in one transaction: the rows, then one stock
+    * adjustment per product. Products are adjusted in key order so two
+    * loads running at once lock the rows in the same order.
+    */
+   private void writeBatch(List<Object[]> batch, Target target) throws SQLException {
+      int store = indexOf(target.columns, "storeID");
+      int product = indexOf(target.columns, "productName");
+      Map<String, Object[]> deltas = new TreeMap<String, Object[]>();
+      for (Object[] row : batch) {
+         String key = String.format("%010d|%010d", (Integer) row[store], (Integer) row[product]);
+         Object[] delta = deltas.get(key);
+         if (delta == null) {
+            delta = new Object[] {0, row[store], row[product]};
+            deltas.put(key, delta);
+         }
+         delta[0] = (Integer) delta[0] + (Integer) row[target.unitsColumn];
+      }
+
+      // orders get their numbers up front so they can be recorded as recent
+      int[] numbers = target == ORDERS ? this._esql.reserveOrderNumbers(batch.size()) : null;
+
+      // old orders may fall in months without a partition; they are created
+      // outside the batch so the batch doesn't hold the lock on Orders
+      if (target == ORDERS) {
+         int time = indexOf(target.columns, "orderTime");
+         Timestamp first = null;
+         Timestamp last = null;
+         for (Object[] row : batch) {
+            Timestamp orderTime = (Timestamp) row[time];
+            if (first == null || orderTime.before(first)) first = orderTime;
+            if (last == null || orderTime.after(last)) last = orderTime;
+         }
+         this._esql.executeQueryAndReturnBatch("SELECT createPartitions('Orders', ?, ?)", new ColumnBatch(1), first, last);
+      }
+
+      ConnectionPool.PooledConnection pooled = this._esql.getPool().acquire();
+      Connection conn = pooled.getConnection();
+      try {
+         conn.setAutoCommit(false);
+         PreparedStatement bulk = conn.prepareStatement("SELECT set_config('amazon.bulk_load', 'on', true)");
+         bulk.execute();
+         bulk.close();
+
+         PreparedStatement insert = conn.prepareStatement(target.insert);
+         for (int i = 0; i < batch.size(); i++) {
+            Object[] row = batch.get(i);
+            if (numbers != null) {
+               Object[] numbered = new Object[row.length + 1];
+               numbered[0] = numbers[i];
+               System.arraycopy(row, 0, numbered, 1, row.length);
+               row = numbered;
+            }
+            StatementCache.bind(insert, row);
+            insert.addBatch();
+         }
+         insert.executeBatch();
+         insert.close();
+
+         PreparedStatement adjust = conn.prepareStatement(target.adjust);
+         for (Object[] delta : deltas.values()) {
+            StatementCache.bind(adjust, delta);
+            adjust.addBatch();
+         }
+         adjust.executeBatch();
+         adjust.close();
+
+         if (target == ORDERS) {
+            PreparedStatement record = conn.prepareStatement(RECORD_SALES);
+            for (Object[] sale : sales(batch).values()) {
+               StatementCache.bind(record, sale);
+               record.addBatch();
+            }
+            record.executeBatch();
+            record.close();
+         }
+
+         conn.commit();
+         if (target == ORDERS) {
+            for (int i = 0; i < batch.size(); i++) {
+               Object[] row = batch.get(i);
+               this._esql.getPopularity().recordOrder((Integer) row[1], (Integer) row[0], (Integer) row[2], (Integer) row[3]);
+               this._esql.getRecentActivity().recordOrder(new RecentActivity.Order(numbers[i], (Integer) row[0], null,
+                  (Integer) row[1], (Integer) row[2], (Integer) row[3], (Timestamp) row[4]));
+            }
+         }
+         this._rows += batch.size();
+         this._batches++;
+         this._productUpdates += deltas.size();
+      }catch (SQLException e) {
+         conn.rollback();
+         throw e;
+      } finally {
+         try {
+            conn.setAutoCommit(true);
+         } finally {
+            this._esql.getPool().release(pooled);
+         }
+      }
+   }//end writeBatch
+
+   // sums the units of an order batch by (storeID, productID, hour), as RECORD_SALES parameters.
+   private static Map<String, Object[]> sales(List<Object[]> batch) {
+      Map<String, Object[]> sales = new TreeMap<String, Object[]>();
+      for (Object[] row : batch) {
+         Timestamp hour = Timestamp.valueOf(((Timestamp) row[4]).toLocalDateTime().truncatedTo(ChronoUnit.HOURS));
+         String key = String.format("%010d|%010d|%s", (Integer) row[1], (Integer) row[2], hour);
+         Object[] sale = sales.get(key);
+         if (sale == null) {
+            sale = new Object[] {hour, 0, 0, row[1], row[2]};
+            sales.put(key, sale);
+         }
+         sale[1] = (Integer) sale[1] + (Integer) row[3];
+         sale[2] = sale[1];
+      }
+      return sales;
+   }//end sales
+
+   private static int indexOf(String[] columns, String column) {
+      for (int i = 0; i < columns.length; i++) {
+         if (columns[i].equals(column))
+            return i;
+      }
+      return -1;
+   }
+
+   /**
+    * Splits one CSV line, honouring double quoted fields.
+    */
+   static List<String> parseLine(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+               field.append('"');
+               i++;
+            }
+            else if (c == '"')
+               quoted = false;
+            else
+               field.append(c);
+         }
+         else if (c == '"')
+            quoted = true;
+         else if (c == ',') {
+            fields.add(field.toString());
+            field.setLength(0);
+         }
+         else
+            field.append(c);
+      }
+      fields.add(field.toString());
+      return fields;
+   }//end parseLine
+
+   @Override
+   public String toString() {
+      return String.format("%d rows in %d batches, %d aggregated product updates", this._rows, this._batches, this._productUpdates);
+   }
+}//end BulkIngestor
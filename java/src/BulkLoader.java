@@ -0,0 +1,602 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class creates the database from scratch: the tables of
+ * create_tables.sql with the partitions of partitions.sql, the rows of
+ * data/*.csv, then the indexes, triggers, functions and sales rollups,
+ * which are left until the rows are in so they are built once instead of
+ * maintained row by row.
+ *
+ * Rows are streamed from the client with COPY FROM STDIN, so the files
+ * don't have to be on the database host. Tables load level by level in the
+ * order their foreign keys need, the tables of a level in parallel, each
+ * over its own connection. The foreign keys themselves are dropped for the
+ * load and added back after it, which checks every row with one join per
+ * key instead of one lookup per row. Drivers without the COPY API, such as
+ * lib/pg73jdbc3.jar, get batched inserts instead.
+ *
+ * Product names go into ProductNames once, numbered in the order
+ * products.csv first names them, and the productName column of every
+ * other file is loaded as the productID of its name.
+ *
+ * With a scale factor every file is loaded that many times. Each copy
+ * gets its own users, stores, warehouses, orders, supply requests and
+ * updates, with keys shifted past the previous copy, locations moved by a
+ * fraction of a degree and user names suffixed with the copy number, so
+ * the rows of a copy only refer to each other; the copies share the
+ * product names. The copies of a large table are split over the threads.
+ *
+ */
+public class BulkLoader {
+
+   public static final int DEFAULT_THREADS = 4;
+
+   // rows per insert batch, for drivers without COPY.
+   static final int BATCH_SIZE = 1000;
+
+   // bytes of rows sent per COPY write.
+   static final int COPY_CHUNK = 1 << 20;
+
+   // the tables with the file each one is loaded from, by level; a level
+   // only refers to the levels before it.
+   static final String[][][] LEVELS = {
+      {{"Users", "users.csv"}, {"Warehouse", "warehouse.csv"}},
+      {{"Store", "stores.csv"}},
+      {{"Product", "products.csv"}},
+      {{"Orders", "orders.csv"}, {"ProductSupplyRequests", "productSupplyRequests.csv"}, {"ProductUpdates", "productUpdates.csv"}}
+   };
+
+   // key columns shifted per copy, by the file whose first column they refer to.
+   static final Map<String, String> KEYS = new HashMap<String, String>();
+   static {
+      KEYS.put("userid", "users.csv");
+      KEYS.put("customerid", "users.csv");
+      KEYS.put("managerid", "users.csv");
+      KEYS.put("storeid", "stores.csv");
+      KEYS.put("warehouseid", "warehouse.csv");
+      KEYS.put("ordernumber", "orders.csv");
+      KEYS.put("requestnumber", "productSupplyRequests.csv");
+      KEYS.put("updatenumber", "productUpdates.csv");
+   }
+
+   // partitioned tables with their file and the time column they are partitioned by.
+   static final String[][] PARTITIONED = {
+      {"Orders", "orders.csv", "orderTime"}, {"ProductUpdates", "productUpdates.csv", "updatedOn"}
+   };
+
+   // serial columns whose sequences continue after the loaded rows.
+   static final String[][] SERIALS = {
+      {"Users", "userID"}, {"ProductNames", "productID"}, {"Orders", "orderNumber"}, {"ProductSupplyRequests", "requestNumber"}, {"ProductUpdates", "updateNumber"}
+   };
+
+   private final String _url;
+   private final String _user;
+   private final String _password;
+   private final File _data;
+   private final File _sql;
+   private int _scale = 1;
+   private int _threads = DEFAULT_THREADS;
+
+   // the productID of every product name, once products.csv is read.
+   private Map<String, Integer> _productIDs = null;
+
+   private final AtomicLong _rows = new AtomicLong();
+   private volatile boolean _copied = false;
+
+   /**
+    * @param url the JDBC connection URL of the database, which must exist
+    * @param user the user name used to login to the database
+    * @param password the user login password
+    * @param data the directory of the CSV files
+    * @param sql the directory of the SQL scripts
+    */
+   public BulkLoader(String url, String user, String password, File data, File sql) {
+      this._url = url;
+      this._user = user;
+      this._password = password;
+      this._data = data;
+      this._sql = sql;
+   }//end BulkLoader
+
+   public void setScale(int scale) {
+      this._scale = scale;
+   }
+
+   public void setThreads(int threads) {
+      this._threads = threads;
+   }
+
+   private Connection connect() throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._password);
+   }
+
+   /**
+    * Drops and creates the tables, loads them, and creates the indexes,
+    * triggers, functions and sales rollups.
+    *
+    * @throws java.sql.SQLException when a statement or load failed
+    * @throws java.io.IOException when a file could not be read
+    */
+   public void load() throws SQLException, IOException {
+      Connection conn = connect();
+      try {
+         Statement stmt = conn.createStatement();
+         runScript(stmt, "create_tables.sql");
+         runScript(stmt, "partitions.sql");
+         createPartitions(conn);
+         List<String> foreignKeys = dropForeignKeys(stmt);
+         List<String[]> productNames = productNames();
+         Map<String, Integer> offsets = new HashMap<String, Integer>();
+         for (String[][] level : LEVELS) {
+            for (String[] table : level)
+               offsets.put(table[1], maxKey(read(table[1])));
+         }
+         ExecutorService executor = Executors.newFixedThreadPool(this._threads);
+         try {
+            long named = System.currentTimeMillis();
+            loadPart("ProductNames", productNames, offsets, 0, 1);
+            System.out.println("Loaded ProductNames in " + (System.currentTimeMillis() - named) + " ms");
+            for (String[][] level : LEVELS) {
+               long start = System.currentTimeMillis();
+               loadLevel(executor, level, offsets);
+               StringBuilder tables = new StringBuilder();
+               for (String[] table : level)
+                  tables.append(tables.length() == 0 ? "" : ", ").append(table[0]);
+               System.out.println("Loaded " + tables + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+         } finally {
+            executor.shutdownNow();
+         }
+         for (String[] serial : SERIALS) {
+            stmt.execute("SELECT setval(pg_get_serial_sequence('" + serial[0] + "', '" + serial[1].toLowerCase(Locale.ROOT) + "'),"
+               + " (SELECT max(" + serial[1] + ") FROM " + serial[0] + "))");
+         }
+         long start = System.currentTimeMillis();
+         // one check of every key per constraint instead of one per row
+         for (String foreignKey : foreignKeys)
+            stmt.execute(foreignKey);
+         runScript(stmt, "create_indexes.sql");
+         runScript(stmt, "triggers.sql");
+         runScript(stmt, "functions.sql");
+         // the orders went in before the recordSales trigger existed
+         stmt.execute("SELECT rebuildSalesRollup()");
+         stmt.execute("ANALYZE");
+         System.out.println("Built foreign keys, indexes, triggers, functions and sales rollups in " + (System.currentTimeMillis() - start) + " ms");
+         stmt.close();
+      } finally {
+         conn.close();
+      }
+   }//end load
+
+   /*
+    * Creates the monthly partitions the rows of each partitioned table
+    * fall in, which copies don't change, and those of the coming months.
+    */
+   private void createPartitions(Connection conn) throws SQLException, IOException {
+      PreparedStatement stmt = conn.prepareStatement("SELECT createPartitions(?, ?, ?)");
+      try {
+         for (String[] table : PARTITIONED) {
+            List<String[]> rows = read(table[1]);
+            int column = -1;
+            for (int c = 0; c < rows.get(0).length; c++) {
+               if (rows.get(0)[c].trim().equalsIgnoreCase(table[2]))
+                  column = c;
+            }
+            Timestamp first = null;
+            Timestamp last = null;
+            for (int r = 1; r < rows.size(); r++) {
+               Timestamp time = Timestamp.valueOf(rows.get(r)[column].trim());
+               if (first == null || time.before(first)) first = time;
+               if (last == null || time.after(last)) last = time;
+            }
+            if (first == null)
+               continue;
+            stmt.setString(1, table[0]);
+            stmt.setTimestamp(2, first);
+            stmt.setTimestamp(3, last);
+            stmt.executeQuery().close();
+         }
+      } finally {
+         stmt.close();
+      }
+      Statement maintain = conn.createStatement();
+      maintain.executeQuery("SELECT maintainPartitions(" + PartitionMaintainer.DEFAULT_MONTHS_AHEAD + ")").close();
+      maintain.close();
+   }//end createPartitions
+
+   /*
+    * Drops the foreign keys of the new tables, so rows are not checked one
+    * at a time while loading, and returns the statements that add them back.
+    */
+   private static List<String> dropForeignKeys(Statement stmt) throws SQLException {
+      List<String> adds = new ArrayList<String>();
+      List<String> drops = new ArrayList<String>();
+      ResultSet rs = stmt.executeQuery("SELECT conrelid::regclass, conname, pg_get_constraintdef(oid) FROM pg_constraint"
+         + " WHERE contype = 'f' AND connamespace = current_schema()::regnamespace"
+         // the copies on partitions go with the key of their table
+         + " AND conparentid = 0");
+      while (rs.next()) {
+         String table = rs.getString(1);
+         String name = "\"" + rs.getString(2) + "\"";
+         drops.add("ALTER TABLE " + table + " DROP CONSTRAINT " + name);
+         adds.add("ALTER TABLE " + table + " ADD CONSTRAINT " + name + " " + rs.getString(3));
+      }
+      rs.close();
+      for (String drop : drops)
+         stmt.execute(drop);
+      return adds;
+   }//end dropForeignKeys
+
+   /*
+    * Loads the tables of one level together, the copies of each split in
+    * as many parts as there are threads, and waits for all of them.
+    */
+   private void loadLevel(ExecutorService executor, String[][] level, final Map<String, Integer> offsets)
+         throws SQLException, IOException {
+      List<Future<Void>> parts = new ArrayList<Future<Void>>();
+      for (final String[] table : level) {
+         final List<String[]> rows = read(table[1]);
+         int split = Math.min(this._threads, this._scale);
+         for (int part = 0; part < split; part++) {
+            final int from = (int) ((long) this._scale * part / split);
+            final int to = (int) ((long) this._scale * (part + 1) / split);
+            parts.add(executor.submit(new Callable<Void>() {
+               public Void call() throws Exception {
+                  loadPart(table[0], rows, offsets, from, to);
+                  return null;
+               }
+            }));
+         }
+      }
+      for (Future<Void> part : parts) {
+         try {
+            part.get();
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading");
+         }catch (ExecutionException e) {
+            for (Future<Void> other : parts)
+               other.cancel(true);
+            if (e.getCause() instanceof SQLException)
+               throw (SQLException) e.getCause();
+            if (e.getCause() instanceof IOException)
+               throw (IOException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+         }
+      }
+   }//end loadLevel
+
+   // loads copies [from, to) of a file into its table, in one transaction.
+   private void loadPart(String table, List<String[]> rows, Map<String, Integer> offsets, int from, int to)
+         throws SQLException {
+      Connection conn = connect();
+      try {
+         Statement stmt = conn.createStatement();
+         stmt.execute("SET synchronous_commit = off");
+         stmt.close();
+         conn.setAutoCommit(false);
+         String[] header = rows.get(0);
+         StringBuilder columns = new StringBuilder();
+         for (int c = 0; c < header.length; c++)
+            columns.append(c == 0 ? "" : ", ").append(header[c].trim());
+         Object copyManager = copyManager(conn);
+         if (copyManager != null)
+            copy(copyManager, "COPY " + table + " (" + columns + ") FROM STDIN WITH (FORMAT csv)", table, rows, offsets, from, to);
+         else
+            insert(conn, "INSERT INTO " + table + " (" + columns + ") VALUES (" + placeholders(header.length) + ")", table, rows, offsets, from, to);
+         conn.commit();
+      } finally {
+         conn.close();
+      }
+   }//end loadPart
+
+   private static String placeholders(int count) {
+      StringBuilder placeholders = new StringBuilder();
+      for (int i = 0; i < count; i++)
+         placeholders.append(i == 0 ? "?" : ", ?");
+      return placeholders.toString();
+   }
+
+   /*
+    * The values of a row in the given copy: keys shifted by copy times the
+    * largest key of their table, coordinates by a fraction of a degree
+    * that differs per copy, and user names with the copy number.
+    */
+   static String[] row(String table, String[] header, String[] row, Map<String, Integer> offsets, int copy) {
+      String[] values = new String[row.length];
+      double shift = (copy * 0.6180339887) % 1.0;
+      for (int c = 0; c < row.length; c++) {
+         String column = header[c].trim().toLowerCase(Locale.ROOT);
+         String value = row[c];
+         if (copy > 0 && KEYS.containsKey(column))
+            value = String.valueOf(Integer.parseInt(value) + copy * offsets.get(KEYS.get(column)));
+         else if (copy > 0 && (column.equals("latitude") || column.equals("longitude")))
+            value = BigDecimal.valueOf((Double.parseDouble(value) + shift) % 100.0).setScale(6, RoundingMode.HALF_UP).toPlainString();
+         else if (copy > 0 && table.equals("Users") && column.equals("name"))
+            value = value + "_" + copy;
+         values[c] = value;
+      }
+      return values;
+   }//end row
+
+   // streams the rows through the COPY API of the driver, found by reflection.
+   private void copy(Object copyManager, String sql, String table, List<String[]> rows, Map<String, Integer> offsets, int from, int to)
+         throws SQLException {
+      Object copyIn = invoke(method("org.postgresql.copy.CopyManager", "copyIn", String.class), copyManager, sql);
+      Method write = method("org.postgresql.copy.CopyIn", "writeToCopy", byte[].class, int.class, int.class);
+      try {
+         StringBuilder out = new StringBuilder();
+         String[] header = rows.get(0);
+         for (int copy = from; copy < to; copy++) {
+            for (int r = 1; r < rows.size(); r++) {
+               String[] values = row(table, header, rows.get(r), offsets, copy);
+               // an empty value goes unquoted, which COPY reads as a null
+               for (int c = 0; c < values.length; c++)
+                  out.append(c == 0 ? "" : ",").append(ReportExporter.csv(values[c].isEmpty() ? null : values[c]));
+               out.append('\n');
+            }
+            this._rows.addAndGet(rows.size() - 1);
+            if (out.length() > COPY_CHUNK || copy == to - 1) {
+               byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+               invoke(write, copyIn, bytes, 0, bytes.length);
+               out.setLength(0);
+            }
+         }
+         invoke(method("org.postgresql.copy.CopyIn", "endCopy"), copyIn);
+         this._copied = true;
+      } finally {
+         if ((Boolean) invoke(method("org.postgresql.copy.CopyOperation", "isActive"), copyIn))
+            invoke(method("org.postgresql.copy.CopyOperation", "cancelCopy"), copyIn);
+      }
+   }//end copy
+
+   // writes the rows with batched inserts; an empty value is a null.
+   private void insert(Connection conn, String sql, String table, List<String[]> rows, Map<String, Integer> offsets, int from, int to)
+         throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(sql);
+      try {
+         String[] header = rows.get(0);
+         int batched = 0;
+         for (int copy = from; copy < to; copy++) {
+            for (int r = 1; r < rows.size(); r++) {
+               String[] values = row(table, header, rows.get(r), offsets, copy);
+               for (int c = 0; c < values.length; c++) {
+                  // sent untyped, so the server casts the text to the column type
+                  if (values[c].isEmpty())
+                     stmt.setNull(c + 1, Types.OTHER);
+                  else
+                     stmt.setObject(c + 1, values[c], Types.OTHER);
+               }
+               stmt.addBatch();
+               if (++batched == BATCH_SIZE) {
+                  stmt.executeBatch();
+                  batched = 0;
+               }
+            }
+            this._rows.addAndGet(rows.size() - 1);
+         }
+         if (batched > 0)
+            stmt.executeBatch();
+      } finally {
+         stmt.close();
+      }
+   }//end insert
+
+   /*
+    * The CopyManager of a connection, or null when the driver has no COPY
+    * API. The driver is only known at run time, so this goes through
+    * reflection instead of importing org.postgresql.
+    */
+   static Object copyManager(Connection conn) {
+      try {
+         Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+         if (!pgConnection.isInstance(conn))
+            return null;
+         return pgConnection.getMethod("getCopyAPI").invoke(conn);
+      }catch (ReflectiveOperationException e) {
+         return null;
+      }
+   }//end copyManager
+
+   static Method method(String type, String name, Class<?>... params) throws SQLException {
+      try {
+         return Class.forName(type).getMethod(name, params);
+      }catch (ReflectiveOperationException e) {
+         throw new SQLException("The driver has no " + type + "." + name + ": " + e);
+      }
+   }
+
+   static Object invoke(Method method, Object target, Object... args) throws SQLException {
+      try {
+         return method.invoke(target, args);
+      }catch (InvocationTargetException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(String.valueOf(e.getCause()));
+      }catch (IllegalAccessException e) {
+         throw new SQLException(e.toString());
+      }
+   }//end invoke
+
+   private void runScript(Statement stmt, String script) throws SQLException, IOException {
+      stmt.execute(new String(Files.readAllBytes(new File(this._sql, script).toPath()), StandardCharsets.UTF_8));
+   }
+
+   /*
+    * Reads a file. Once the product names are numbered, a productName
+    * column is read as the productID of the name instead.
+    */
+   private List<String[]> read(String csv) throws IOException {
+      List<String[]> rows;
+      BufferedReader in = new BufferedReader(new FileReader(new File(this._data, csv)));
+      try {
+         rows = parse(csv, in);
+      } finally {
+         in.close();
+      }
+      if (this._productIDs == null || rows.isEmpty())
+         return rows;
+      String[] header = rows.get(0);
+      for (int c = 0; c < header.length; c++) {
+         if (!header[c].trim().equalsIgnoreCase("productName"))
+            continue;
+         header[c] = "productID";
+         for (int r = 1; r < rows.size(); r++) {
+            Integer productID = this._productIDs.get(rows.get(r)[c].trim());
+            if (productID == null)
+               throw new IOException(csv + " line " + (r + 1) + ": " + rows.get(r)[c].trim() + " is not in products.csv");
+            rows.get(r)[c] = String.valueOf(productID);
+         }
+      }
+      return rows;
+   }//end read
+
+   /*
+    * Splits CSV text into rows of fields, as COPY reads it: a field in
+    * double quotes may hold commas, line breaks and doubled quotes, and is
+    * kept as written; other fields are trimmed. Blank lines are skipped.
+    */
+   static List<String[]> parse(String csv, BufferedReader in) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      // in a quoted field, and whether the current field was quoted
+      boolean quoting = false;
+      boolean quoted = false;
+      String line;
+      int number = 0;
+      while ((line = in.readLine()) != null) {
+         number++;
+         if (!quoting && line.trim().isEmpty())
+            continue;
+         for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoting) {
+               if (c != '"')
+                  field.append(c);
+               else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+                  field.append(line.charAt(++i));
+               else
+                  quoting = false;
+            }
+            else if (c == ',') {
+               fields.add(quoted ? field.toString() : field.toString().trim());
+               field.setLength(0);
+               quoted = false;
+            }
+            else if (quoted) {
+               if (!Character.isWhitespace(c))
+                  throw new IOException(csv + " line " + number + ": text after a closing quote");
+            }
+            else if (c == '"' && field.toString().trim().isEmpty()) {
+               field.setLength(0);
+               quoting = true;
+               quoted = true;
+            }
+            else
+               field.append(c);
+         }
+         if (quoting) {
+            field.append('\n');
+            continue;
+         }
+         fields.add(quoted ? field.toString() : field.toString().trim());
+         rows.add(fields.toArray(new String[fields.size()]));
+         fields.clear();
+         field.setLength(0);
+         quoted = false;
+      }
+      if (quoting)
+         throw new IOException(csv + " line " + number + ": a quoted field is not closed");
+      return rows;
+   }//end parse
+
+   // numbers the product names of products.csv and returns the rows of ProductNames.
+   private List<String[]> productNames() throws IOException {
+      this._productIDs = null;
+      List<String[]> products = read("products.csv");
+      int column = -1;
+      for (int c = 0; c < products.get(0).length; c++) {
+         if (products.get(0)[c].trim().equalsIgnoreCase("productName"))
+            column = c;
+      }
+      Map<String, Integer> productIDs = new LinkedHashMap<String, Integer>();
+      List<String[]> rows = new ArrayList<String[]>();
+      rows.add(new String[] {"productID", "productName"});
+      for (int r = 1; r < products.size(); r++) {
+         String name = products.get(r)[column].trim();
+         if (!productIDs.containsKey(name)) {
+            productIDs.put(name, productIDs.size() + 1);
+            rows.add(new String[] {String.valueOf(productIDs.size()), name});
+         }
+      }
+      this._productIDs = productIDs;
+      return rows;
+   }//end productNames
+
+   // the largest value in the first column, which every copy shifts its keys by.
+   private static int maxKey(List<String[]> rows) {
+      int max = 0;
+      for (int i = 1; i < rows.size(); i++)
+         max = Math.max(max, Integer.parseInt(rows.get(i)[0].trim()));
+      return max;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%d rows at scale %d with %s", this._rows.get(), this._scale, this._copied ? "COPY" : "batched inserts");
+   }
+
+   /**
+    * Loads a database from the command line.
+    */
+   public static void main(String[] args) {
+      if (args.length < 5) {
+         System.err.println("Usage: java [-classpath <classpath>] " + BulkLoader.class.getName()
+            + " <dbname> <port> <user> <data dir> <sql dir> [scale [threads]]");
+         return;
+      }
+      try {
+         Class.forName("org.postgresql.Driver");
+         BulkLoader loader = new BulkLoader("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "",
+            new File(args[3]), new File(args[4]));
+         if (args.length > 5) loader.setScale(Integer.parseInt(args[5]));
+         if (args.length > 6) loader.setThreads(Integer.parseInt(args[6]));
+         long start = System.currentTimeMillis();
+         loader.load();
+         System.out.println("Loaded " + loader + " in " + (System.currentTimeMillis() - start) + " ms");
+      }catch (Exception e) {
+         System.err.println(e.getMessage());
+         System.exit(1);
+      }
+   }//end main
+}//end BulkLoader
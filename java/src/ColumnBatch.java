@@ -0,0 +1,306 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds a query result column by column, decoded once into
+ * primitive arrays. Integer columns become int[], bigint, date and
+ * timestamp columns long[] (dates as epoch milliseconds), floating point
+ * and numeric columns double[], and every other column is dictionary
+ * encoded: each distinct string is kept once and the cells hold its code.
+ * Columns and rows are 0 based.
+ *
+ * A batch is meant to be reused. reset() empties it but keeps the arrays,
+ * so filling it again with a result of the same shape allocates nothing
+ * but the new dictionary strings. As a RowHandler it can also collect the
+ * rows of a streamed query.
+ *
+ */
+public class ColumnBatch implements RowHandler {
+
+   public enum Kind { INT, LONG, DOUBLE, STRING }
+
+   public static final int DEFAULT_CAPACITY = 64;
+
+   private int _capacity;
+   private int _rows = 0;
+
+   // set by describe(), null until the batch knows its columns.
+   private Kind[] _kinds = null;
+   private int[] _sqlTypes = null;
+   private String[] _names = null;
+
+   // one array per column; only the one matching its kind is used.
+   private int[][] _ints = new int[0][];
+   private long[][] _longs = new long[0][];
+   private double[][] _doubles = new double[0][];
+   private boolean[][] _nulls = new boolean[0][];
+
+   // the distinct strings of every STRING column, by code.
+   private final List<String> _dictionary = new ArrayList<String>();
+   private final Map<String, Integer> _codes = new HashMap<String, Integer>();
+
+   public ColumnBatch(int capacity) {
+      this._capacity = Math.max(capacity, 1);
+   }
+
+   public ColumnBatch() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   /**
+    * Empties the batch for the next result, keeping the allocated arrays.
+    */
+   public void reset() {
+      this._rows = 0;
+      this._kinds = null;
+      this._dictionary.clear();
+      this._codes.clear();
+   }//end reset
+
+   /**
+    * Sets up the columns for a result. Arrays left from an earlier result
+    * are reused where the column kind is the same.
+    *
+    * @throws java.sql.SQLException when the metadata cannot be read
+    */
+   public void describe(ResultSetMetaData rsmd) throws SQLException {
+      int numCol = rsmd.getColumnCount();
+      Kind[] kinds = new Kind[numCol];
+      int[] sqlTypes = new int[numCol];
+      String[] names = new String[numCol];
+      for (int i = 0; i < numCol; i++) {
+         sqlTypes[i] = rsmd.getColumnType(i + 1);
+         kinds[i] = kindOf(sqlTypes[i]);
+         names[i] = rsmd.getColumnName(i + 1);
+      }
+      if (this._ints.length < numCol) {
+         this._ints = Arrays.copyOf(this._ints, numCol);
+         this._longs = Arrays.copyOf(this._longs, numCol);
+         this._doubles = Arrays.copyOf(this._doubles, numCol);
+         this._nulls = Arrays.copyOf(this._nulls, numCol);
+      }
+      for (int i = 0; i < numCol; i++) {
+         if (this._nulls[i] == null || this._nulls[i].length < this._capacity)
+            this._nulls[i] = new boolean[this._capacity];
+         switch (kinds[i]) {
+         case LONG:
+            if (this._longs[i] == null || this._longs[i].length < this._capacity)
+               this._longs[i] = new long[this._capacity];
+            break;
+         case DOUBLE:
+            if (this._doubles[i] == null || this._doubles[i].length < this._capacity)
+               this._doubles[i] = new double[this._capacity];
+            break;
+         default:
+            // INT values and STRING codes
+            if (this._ints[i] == null || this._ints[i].length < this._capacity)
+               this._ints[i] = new int[this._capacity];
+         }
+      }
+      this._kinds = kinds;
+      this._sqlTypes = sqlTypes;
+      this._names = names;
+   }//end describe
+
+   private static Kind kindOf(int sqlType) {
+      switch (sqlType) {
+      case Types.INTEGER:
+      case Types.SMALLINT:
+      case Types.TINYINT:
+         return Kind.INT;
+      case Types.BIGINT:
+      case Types.DATE:
+      case Types.TIMESTAMP:
+         return Kind.LONG;
+      case Types.REAL:
+      case Types.FLOAT:
+      case Types.DOUBLE:
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+         return Kind.DOUBLE;
+      default:
+         return Kind.STRING;
+      }
+   }//end kindOf
+
+   /**
+    * Appends the current row of the result set, describing the columns
+    * first if this is the first row since reset().
+    *
+    * @return true, so a streamed query goes on to the next row
+    * @throws java.sql.SQLException when a column cannot be read
+    */
+   public boolean row(ResultSet rs) throws SQLException {
+      if (this._kinds == null)
+         describe(rs.getMetaData());
+      if (this._rows == this._capacity)
+         grow();
+      int r = this._rows;
+      for (int i = 0; i < this._kinds.length; i++) {
+         boolean isNull;
+         switch (this._kinds[i]) {
+         case INT:
+            this._ints[i][r] = rs.getInt(i + 1);
+            isNull = rs.wasNull();
+            break;
+         case LONG:
+            if (this._sqlTypes[i] == Types.BIGINT) {
+               this._longs[i][r] = rs.getLong(i + 1);
+               isNull = rs.wasNull();
+            }
+            else {
+               java.util.Date time = this._sqlTypes[i] == Types.DATE ? rs.getDate(i + 1) : rs.getTimestamp(i + 1);
+               isNull = time == null;
+               this._longs[i][r] = isNull ? 0 : time.getTime();
+            }
+            break;
+         case DOUBLE:
+            this._doubles[i][r] = rs.getDouble(i + 1);
+            isNull = rs.wasNull();
+            break;
+         default:
+            String value = rs.getString(i + 1);
+            isNull = value == null;
+            this._ints[i][r] = isNull ? -1 : encode(value);
+         }
+         this._nulls[i][r] = isNull;
+      }
+      this._rows++;
+      return true;
+   }//end row
+
+   private int encode(String value) {
+      Integer code = this._codes.get(value);
+      if (code == null) {
+         code = this._dictionary.size();
+         this._dictionary.add(value);
+         this._codes.put(value, code);
+      }
+      return code;
+   }//end encode
+
+   // doubles the room of every column in use.
+   private void grow() {
+      this._capacity *= 2;
+      for (int i = 0; i < this._kinds.length; i++) {
+         this._nulls[i] = Arrays.copyOf(this._nulls[i], this._capacity);
+         switch (this._kinds[i]) {
+         case LONG:
+            this._longs[i] = Arrays.copyOf(this._longs[i], this._capacity);
+            break;
+         case DOUBLE:
+            this._doubles[i] = Arrays.copyOf(this._doubles[i], this._capacity);
+            break;
+         default:
+            this._ints[i] = Arrays.copyOf(this._ints[i], this._capacity);
+         }
+      }
+   }//end grow
+
+   public int getRowCount() {
+      return this._rows;
+   }
+
+   public int getColumnCount() {
+      return this._kinds == null ? 0 : this._kinds.length;
+   }
+
+   public String getColumnName(int col) {
+      return this._names[col];
+   }
+
+   public Kind getKind(int col) {
+      return this._kinds[col];
+   }
+
+   public boolean isNull(int row, int col) {
+      return this._nulls[col][row];
+   }
+
+   public int getInt(int row, int col) {
+      check(col, Kind.INT);
+      return this._ints[col][row];
+   }
+
+   public long getLong(int row, int col) {
+      check(col, Kind.LONG);
+      return this._longs[col][row];
+   }
+
+   public double getDouble(int row, int col) {
+      if (this._kinds[col] == Kind.INT)
+         return this._ints[col][row];
+      check(col, Kind.DOUBLE);
+      return this._doubles[col][row];
+   }
+
+   /**
+    * @return the cell as a string, null for SQL NULL. Only STRING cells are
+    *         stored as strings, other kinds are formatted on every call.
+    */
+   public String getString(int row, int col) {
+      if (this._nulls[col][row])
+         return null;
+      switch (this._kinds[col]) {
+      case INT:
+         return String.valueOf(this._ints[col][row]);
+      case LONG:
+         return String.valueOf(this._longs[col][row]);
+      case DOUBLE:
+         return String.valueOf(this._doubles[col][row]);
+      default:
+         return this._dictionary.get(this._ints[col][row]);
+      }
+   }//end getString
+
+   /**
+    * @return the dictionary code of a STRING cell, -1 for SQL NULL
+    */
+   public int getCode(int row, int col) {
+      check(col, Kind.STRING);
+      return this._ints[col][row];
+   }
+
+   /**
+    * @return the distinct strings of the batch, indexed by code
+    */
+   public List<String> getDictionary() {
+      return this._dictionary;
+   }
+
+   /**
+    * The raw column vectors. They may be longer than the row count and are
+    * overwritten once the batch is reused.
+    */
+   public int[] intColumn(int col) {
+      check(col, Kind.INT);
+      return this._ints[col];
+   }
+
+   public long[] longColumn(int col) {
+      check(col, Kind.LONG);
+      return this._longs[col];
+   }
+
+   public double[] doubleColumn(int col) {
+      check(col, Kind.DOUBLE);
+      return this._doubles[col];
+   }
+
+   public int[] codeColumn(int col) {
+      check(col, Kind.STRING);
+      return this._ints[col];
+   }
+
+   private void check(int col, Kind kind) {
+      if (this._kinds[col] != kind)
+         throw new IllegalArgumentException("Column " + this._names[col] + " is " + this._kinds[col] + ", not " + kind);
+   }
+}//end ColumnBatch
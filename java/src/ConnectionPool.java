@@ -0,0 +1,204 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps a bounded pool of physical database connections that are
+ * shared by every session of the program. Connections are opened lazily, up
+ * to the maximum size, and each one carries its own statement cache so the
+ * prepared statements survive between borrowers.
+ *
+ */
+public class ConnectionPool {
+
+   // how long a session waits for a free connection before giving up.
+   public static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+
+   private final String _url;
+   private final String _user;
+   private final String _password;
+   private final int _maxSize;
+
+   // one permit per connection that may still be handed out.
+   private final Semaphore _permits;
+
+   // connections that are open but not borrowed, most recently used first.
+   private final ConcurrentLinkedDeque<PooledConnection> _idle = new ConcurrentLinkedDeque<PooledConnection>();
+
+   // every connection opened by the pool, for cleanup and statistics.
+   private final List<PooledConnection> _all = new ArrayList<PooledConnection>();
+
+   private volatile boolean _closed = false;
+
+   // how long acquire() took, including opening new connections.
+   private final LatencyHistogram _waits = new LatencyHistogram();
+
+   /**
+    * A physical connection borrowed from the pool, with the prepared
+    * statements that were cached on it.
+    */
+   public static class PooledConnection {
+      private final Connection _connection;
+      private final StatementCache _statements;
+
+      PooledConnection(Connection connection) {
+         this._connection = connection;
+         this._statements = new StatementCache(connection);
+      }
+
+      public Connection getConnection() {
+         return this._connection;
+      }
+
+      public StatementCache getStatements() {
+         return this._statements;
+      }
+
+      void close() {
+         this._statements.close();
+         try {
+            this._connection.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end PooledConnection
+
+   /**
+    * Creates a connection pool
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param password the user login password
+    * @param maxSize the maximum number of open connections
+    */
+   public ConnectionPool(String url, String user, String password, int maxSize) {
+      this._url = url;
+      this._user = user;
+      this._password = password;
+      this._maxSize = maxSize;
+      this._permits = new Semaphore(maxSize, true);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, opening a new one if none is idle and the pool
+    * is not full yet. Blocks while every connection is in use.
+    *
+    * @return a connection owned by the caller until it is released
+    * @throws java.sql.SQLException when no connection could be obtained
+    */
+   public PooledConnection acquire() throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool is closed");
+      long start = System.nanoTime();
+      try {
+         if (!this._permits.tryAcquire(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            throw new SQLException("Timed out waiting for a database connection");
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted waiting for a database connection");
+      }
+      try {
+         PooledConnection conn = this._idle.pollFirst();
+         if (conn == null)
+            conn = open();
+         this._waits.record(System.nanoTime() - start);
+         return conn;
+      }catch (SQLException e) {
+         this._permits.release();
+         throw e;
+      }
+   }//end acquire
+
+   /**
+    * Returns a borrowed connection to the pool. Connections that were
+    * closed underneath us are dropped so a fresh one is opened next time.
+    */
+   public void release(PooledConnection conn) {
+      boolean broken;
+      try {
+         broken = conn.getConnection().isClosed();
+      }catch (SQLException e) {
+         broken = true;
+      }
+      if (broken || this._closed) {
+         synchronized (this._all) {
+            this._all.remove(conn);
+         }
+         conn.close();
+      }
+      else {
+         this._idle.offerFirst(conn);
+      }
+      this._permits.release();
+   }//end release
+
+   private PooledConnection open() throws SQLException {
+      PooledConnection conn = new PooledConnection(DriverManager.getConnection(this._url, this._user, this._password));
+      synchronized (this._all) {
+         this._all.add(conn);
+      }
+      return conn;
+   }//end open
+
+   /**
+    * Opens a connection outside of the pool, for work that keeps its
+    * connection for good, such as listening for notifications. The caller
+    * closes it.
+    *
+    * @throws java.sql.SQLException when the connection cannot be opened
+    */
+   public Connection openDedicated() throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._password);
+   }
+
+   public int getMaxSize() {
+      return this._maxSize;
+   }
+
+   /**
+    * @return how long every acquire() waited for its connection
+    */
+   public LatencyHistogram getWaits() {
+      return this._waits;
+   }
+
+   /**
+    * @return the statement cache statistics summed over every connection
+    */
+   public String statementCacheSummary() {
+      long hits = 0, misses = 0;
+      int cached = 0, connections;
+      synchronized (this._all) {
+         connections = this._all.size();
+         for (PooledConnection conn : this._all) {
+            hits += conn.getStatements().getHits();
+            misses += conn.getStatements().getMisses();
+            cached += conn.getStatements().size();
+         }
+      }
+      long total = hits + misses;
+      return String.format("Statement cache: %d hits, %d misses, %d cached on %d connections (%.1f%% hit rate)",
+         hits, misses, cached, connections, total == 0 ? 0.0 : 100.0 * hits / total);
+   }//end statementCacheSummary
+
+   /**
+    * Closes every connection. Connections still borrowed are closed when
+    * they are released.
+    */
+   public void close() {
+      this._closed = true;
+      PooledConnection conn;
+      while ((conn = this._idle.pollFirst()) != null) {
+         synchronized (this._all) {
+            this._all.remove(conn);
+         }
+         conn.close();
+      }
+   }//end close
+}//end ConnectionPool
@@ -0,0 +1,86 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class hands out keys from a database sequence without a round trip
+ * per key. It reserves a block of sequence values in one query and then
+ * serves them from memory; handing out a key is a single atomic increment,
+ * only the thread that finds the block used up goes back to the database.
+ * Keys are unique across every program sharing the sequence, but values
+ * reserved and not used before the program exits are skipped, so the keys
+ * may have gaps.
+ *
+ */
+public class IdAllocator {
+
+   public static final int DEFAULT_BLOCK_SIZE = 50;
+
+   private final Amazon _esql;
+   private final String _sequence;
+   private final int _blockSize;
+
+   // the block keys are currently served from.
+   private volatile Block _current = null;
+
+   private static class Block {
+      final int[] ids;
+      final AtomicInteger next = new AtomicInteger(0);
+
+      Block(int[] ids) {
+         this.ids = ids;
+      }
+   }//end Block
+
+   /**
+    * Creates an allocator for a sequence
+    *
+    * @param esql the program whose connections reserve the blocks
+    * @param sequence the name of the sequence, e.g. orders_orderNumber_seq
+    * @param blockSize the number of keys reserved per round trip
+    */
+   public IdAllocator(Amazon esql, String sequence, int blockSize) {
+      this._esql = esql;
+      this._sequence = sequence;
+      this._blockSize = blockSize;
+   }//end IdAllocator
+
+   public IdAllocator(Amazon esql, String sequence) {
+      this(esql, sequence, DEFAULT_BLOCK_SIZE);
+   }
+
+   /**
+    * @return the next unused key of the sequence
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public int next() throws SQLException {
+      while (true) {
+         Block block = this._current;
+         if (block != null) {
+            int i = block.next.getAndIncrement();
+            if (i < block.ids.length)
+               return block.ids[i];
+         }
+         refill(block);
+      }
+   }//end next
+
+   // replaces the exhausted block, unless another thread already did.
+   private synchronized void refill(Block exhausted) throws SQLException {
+      if (this._current == exhausted)
+         this._current = new Block(reserve(this._blockSize));
+   }//end refill
+
+   /**
+    * Reserves the given number of keys straight from the sequence, all in
+    * one round trip, e.g. for a bulk insert.
+    *
+    * @return the reserved keys
+    * @throws java.sql.SQLException when the keys could not be reserved
+    */
+   public int[] reserve(int count) throws SQLException {
+      ColumnBatch result = this._esql.executeQueryAndReturnBatch(
+         "SELECT CAST(nextval(CAST(? AS regclass)) AS integer) FROM generate_series(1, ?)", new ColumnBatch(count), this._sequence, count);
+      return Arrays.copyOf(result.intColumn(0), result.getRowCount());
+   }//end reserve
+}//end IdAllocator
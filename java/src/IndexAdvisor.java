@@ -0,0 +1,688 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class suggests indexes for the statements a run of the program
+ * actually issued. The execute methods hand it every statement; it keeps
+ * one sample with bind values per statement and counts them by shape, as
+ * Metrics shapes them.
+ *
+ * When asked for advice, it reads the plan of every shape with EXPLAIN
+ * (VERBOSE) and collects, per table, the columns compared for equality,
+ * those compared by range and those sorted or grouped by. Those give the
+ * candidate indexes: the equality columns, then one range or sort column,
+ * or the sort or group columns alone.
+ * Candidates are chosen greedily: each round every candidate is created in
+ * a savepoint, the shapes reading its table are planned again, and the
+ * savepoint is rolled back; the one lowering the planner cost of the whole
+ * workload the most is kept for the next round. Each kept index is also
+ * measured, running the SELECT shapes it helps under EXPLAIN ANALYZE
+ * before and after creating it. Everything happens in one transaction that
+ * is rolled back, but creating an index holds off writes to its table
+ * until then, so advice is meant for a test database after a load run.
+ *
+ * The script written lists the indexes to create, best first, and, as
+ * comments, the existing indexes another one makes redundant and those
+ * no recorded statement used. Statements run inside triggers and
+ * functions are not seen, and the cost of keeping an index up to date is
+ * not counted, so the script is advice to be read rather than applied.
+ *
+ */
+public class IndexAdvisor {
+
+   // indexes suggested at most.
+   static final int MAX_INDEXES = 5;
+
+   // an index must save at least this part of the workload cost.
+   static final double MIN_GAIN = 0.01;
+
+   // columns in a candidate index at most.
+   static final int MAX_COLUMNS = 3;
+
+   // runs of each shape when measuring an index; the fastest counts.
+   static final int MEASURE_RUNS = 3;
+
+   // statements kept at most, so generated SQL can't grow the map without bound.
+   static final int MAX_STATEMENTS = 4 * Metrics.MAX_SHAPES;
+
+   // a scan of a table in a verbose plan: the index used, the relation and its alias.
+   private static final Pattern SCAN = Pattern.compile(
+      "(?:Seq|Index|Index Only|Bitmap Heap|Tid) Scan(?: Backward)?(?: using (\\w+))? on (?:\\w+\\.)?(\\w+)(?: (\\w+))?");
+   private static final Pattern BITMAP_INDEX = Pattern.compile("Bitmap Index Scan on (\\w+)");
+   // a column compared with something, on either side of the operator.
+   private static final Pattern LEFT = Pattern.compile("(\\w+)\\.(\\w+)(?:\\)?::[a-z ]+)?\\)? (=|>=|<=|<|>) ");
+   private static final Pattern RIGHT = Pattern.compile(" (=|>=|<=|<|>) \\(?(\\w+)\\.(\\w+)");
+   private static final Pattern COLUMN = Pattern.compile("(\\w+)\\.(\\w+)");
+   private static final Pattern CONDITION = Pattern.compile("^\\s*(Filter|Index Cond|Recheck Cond|Hash Cond|Merge Cond|Join Filter|Sort Key|Presorted Key|Group Key): (.*)$");
+   private static final Pattern COST = Pattern.compile("cost=[0-9.]+\\.\\.([0-9.]+)");
+   private static final Pattern EXECUTION = Pattern.compile("Execution Time: ([0-9.]+) ms");
+
+   // one statement as issued, with the bind values of its latest run.
+   private static class Sample {
+      final String sql;
+      volatile Object[] params;
+      final AtomicLong count = new AtomicLong();
+
+      Sample(String sql, Object[] params) {
+         this.sql = sql;
+         this.params = params;
+      }
+   }//end Sample
+
+   // the statements of one shape, planned with one sample.
+   static class Shape {
+      final String shape;
+      final Sample sample;
+      long count = 0;
+      double cost;
+      double baseCost;
+      Plan plan;
+
+      Shape(String shape, Sample sample) {
+         this.shape = shape;
+         this.sample = sample;
+      }
+
+      // whether it can be run under EXPLAIN ANALYZE to measure it.
+      boolean measurable() {
+         return IndexAdvisor.measurable(this.sample.sql, this.plan.functions);
+      }
+   }//end Shape
+
+   // what a plan reads: the columns it uses per table, and the indexes it scans.
+   static class Plan {
+      double cost;
+      boolean functions = false;
+      final Map<String, Set<String>> equal = new LinkedHashMap<String, Set<String>>();
+      final Map<String, Set<String>> range = new LinkedHashMap<String, Set<String>>();
+      final Map<String, Set<String>> ordered = new LinkedHashMap<String, Set<String>>();
+      final Set<String> indexes = new HashSet<String>();
+      final Set<String> scanned = new HashSet<String>();
+
+      Set<String> tables() {
+         Set<String> tables = new HashSet<String>(this.scanned);
+         tables.addAll(this.equal.keySet());
+         tables.addAll(this.range.keySet());
+         tables.addAll(this.ordered.keySet());
+         return tables;
+      }
+   }//end Plan
+
+   // an index, existing or suggested, on a table that is not a partition.
+   static class Index {
+      final String name;
+      final String table;
+      final List<String> columns;
+      final boolean constraint;
+      double gain = 0;
+      int shapes = 0;
+      double beforeMillis = 0;
+      double afterMillis = 0;
+      int measured = 0;
+
+      Index(String name, String table, List<String> columns, boolean constraint) {
+         this.name = name;
+         this.table = table;
+         this.columns = columns;
+         this.constraint = constraint;
+      }
+
+      String create() {
+         return "CREATE INDEX " + this.name + " ON " + this.table + " USING BTREE (" + String.join(", ", this.columns) + ")";
+      }
+
+      @Override
+      public String toString() {
+         return this.name + " (" + String.join(", ", this.columns) + ")";
+      }
+   }//end Index
+
+   private final Amazon _esql;
+   private final String _file;
+   private final ConcurrentHashMap<String, Sample> _samples = new ConcurrentHashMap<String, Sample>();
+
+   // the catalog, read when advising: partitions by name to their table,
+   // and the columns and indexes of every table.
+   private final Map<String, String> _parents = new HashMap<String, String>();
+   private final Map<String, Set<String>> _columns = new HashMap<String, Set<String>>();
+   private final List<Index> _existing = new ArrayList<Index>();
+
+   /**
+    * @param esql the program, whose connection pool the advice is worked out on
+    * @param file the script file written by writeScript
+    */
+   public IndexAdvisor(Amazon esql, String file) {
+      this._esql = esql;
+      this._file = file;
+   }//end IndexAdvisor
+
+   /**
+    * Records a statement run by the execute methods.
+    *
+    * @param sql the statement as given
+    * @param params its bind values
+    */
+   public void record(String sql, Object[] params) {
+      Sample sample = this._samples.get(sql);
+      if (sample == null) {
+         if (this._samples.size() >= MAX_STATEMENTS)
+            return;
+         Sample fresh = new Sample(sql, params.clone());
+         sample = this._samples.putIfAbsent(sql, fresh);
+         if (sample == null)
+            sample = fresh;
+      }
+      else {
+         sample.params = params.clone();
+      }
+      sample.count.incrementAndGet();
+   }//end record
+
+   /**
+    * Works the advice out and writes it to the script file.
+    *
+    * @throws java.sql.SQLException when the plans could not be read
+    * @throws java.io.IOException when the script could not be written
+    */
+   public void writeScript() throws SQLException, IOException {
+      String script = advise();
+      Writer out = new FileWriter(new File(this._file));
+      try {
+         out.write(script);
+      } finally {
+         out.close();
+      }
+   }//end writeScript
+
+   /**
+    * @return the script of suggested indexes for the statements recorded so far
+    * @throws java.sql.SQLException when the plans could not be read
+    */
+   public String advise() throws SQLException {
+      ConnectionPool.PooledConnection pooled = this._esql.getPool().acquire();
+      Connection conn = pooled.getConnection();
+      try {
+         conn.setAutoCommit(false);
+         try {
+            readCatalog(conn);
+            return advise(conn);
+         } finally {
+            conn.rollback();
+            conn.setAutoCommit(true);
+         }
+      } finally {
+         this._esql.getPool().release(pooled);
+      }
+   }//end advise
+
+   private String advise(Connection conn) throws SQLException {
+      // the shapes, each planned with the sample of its most run statement
+      Map<String, Shape> byShape = new LinkedHashMap<String, Shape>();
+      long statements = 0;
+      for (Sample sample : this._samples.values()) {
+         String key = Metrics.shape(sample.sql);
+         Shape shape = byShape.get(key);
+         if (shape == null || sample.count.get() > shape.sample.count.get()) {
+            Shape most = new Shape(key, sample);
+            most.count = shape == null ? 0 : shape.count;
+            byShape.put(key, most);
+            shape = most;
+         }
+         shape.count += sample.count.get();
+         statements += sample.count.get();
+      }
+      List<Shape> shapes = new ArrayList<Shape>();
+      Set<String> used = new HashSet<String>();
+      for (Shape shape : byShape.values()) {
+         Savepoint savepoint = conn.setSavepoint();
+         try {
+            shape.plan = plan(conn, shape.sample);
+         }catch (SQLException e) {
+            // not a statement EXPLAIN takes, or one of a table since gone
+            conn.rollback(savepoint);
+            continue;
+         }
+         if (shape.plan.tables().isEmpty())
+            continue;
+         shape.cost = shape.plan.cost;
+         shape.baseCost = shape.cost;
+         used.addAll(shape.plan.indexes);
+         shapes.add(shape);
+      }
+      double before = workloadCost(shapes);
+
+      List<Index> candidates = candidates(shapes);
+      List<Index> chosen = new ArrayList<Index>();
+      while (chosen.size() < MAX_INDEXES && !candidates.isEmpty()) {
+         Index best = null;
+         for (Index candidate : candidates) {
+            candidate.gain = 0;
+            candidate.shapes = 0;
+            Savepoint savepoint = conn.setSavepoint();
+            try {
+               execute(conn, candidate.create());
+               for (Shape shape : shapes) {
+                  if (!shape.plan.tables().contains(candidate.table))
+                     continue;
+                  double cost = plan(conn, shape.sample).cost;
+                  if (cost < shape.cost) {
+                     candidate.gain += shape.count * (shape.cost - cost);
+                     candidate.shapes++;
+                  }
+               }
+            } finally {
+               conn.rollback(savepoint);
+            }
+            if (best == null || candidate.gain > best.gain)
+               best = candidate;
+         }
+         if (best.gain < MIN_GAIN * before)
+            break;
+         candidates.remove(best);
+         keep(conn, best, shapes);
+         chosen.add(best);
+      }
+      double after = workloadCost(shapes);
+      return script(statements, shapes, before, after, chosen, used, scans(conn));
+   }//end advise
+
+   /*
+    * Creates an index for good, for this transaction, measuring the SELECT
+    * shapes it helps before and after, and plans the shapes of its table
+    * again so the next round starts from it.
+    */
+   private void keep(Connection conn, Index index, List<Shape> shapes) throws SQLException {
+      List<Shape> helped = new ArrayList<Shape>();
+      for (Shape shape : shapes) {
+         if (shape.plan.tables().contains(index.table) && shape.measurable())
+            helped.add(shape);
+      }
+      for (Shape shape : helped)
+         index.beforeMillis += shape.count * measure(conn, shape.sample);
+      execute(conn, index.create());
+      for (Shape shape : shapes) {
+         if (shape.plan.tables().contains(index.table)) {
+            Plan plan = plan(conn, shape.sample);
+            shape.cost = plan.cost;
+            shape.plan = plan;
+         }
+      }
+      for (Shape shape : helped)
+         index.afterMillis += shape.count * measure(conn, shape.sample);
+      index.measured = helped.size();
+   }//end keep
+
+   /*
+    * Whether a statement may be run again under EXPLAIN ANALYZE: only a
+    * plain SELECT that takes no sequence values, sets nothing and calls no
+    * functions, which are what write and lock rows here.
+    */
+   static boolean measurable(String sql, boolean functions) {
+      String text = sql.trim().toLowerCase(Locale.ROOT);
+      return text.startsWith("select") && !text.contains("nextval") && !text.contains("set_config") && !functions;
+   }//end measurable
+
+   /*
+    * Whether a plan calls functions: it scans one, or it reads no table at
+    * all, as SELECT placeOrder(...) does.
+    */
+   static boolean callsFunctions(List<String> lines) {
+      boolean reads = false;
+      for (String line : lines) {
+         if (line.contains("Function Scan"))
+            return true;
+         if (SCAN.matcher(line).find() || BITMAP_INDEX.matcher(line).find())
+            reads = true;
+      }
+      return !reads;
+   }//end callsFunctions
+
+   private static double workloadCost(List<Shape> shapes) {
+      double cost = 0;
+      for (Shape shape : shapes)
+         cost += shape.count * shape.cost;
+      return cost;
+   }
+
+   /*
+    * The candidate indexes of the plans: per table, its equality columns,
+    * then each of them alone, each with a range or sort column after,
+    * and the range and sort columns alone. Indexes that exist, or that an
+    * existing index starts with, are left out.
+    */
+   private List<Index> candidates(List<Shape> shapes) {
+      Map<String, Index> candidates = new LinkedHashMap<String, Index>();
+      for (Shape shape : shapes) {
+         for (String table : shape.plan.tables()) {
+            List<String> equal = new ArrayList<String>(columns(shape.plan.equal, table));
+            List<String> trailing = new ArrayList<String>();
+            for (String column : columns(shape.plan.range, table)) {
+               if (!equal.contains(column)) trailing.add(column);
+            }
+            for (String column : columns(shape.plan.ordered, table)) {
+               if (!equal.contains(column) && !trailing.contains(column)) trailing.add(column);
+            }
+            List<List<String>> lists = new ArrayList<List<String>>();
+            if (!equal.isEmpty())
+               lists.add(equal.subList(0, Math.min(MAX_COLUMNS, equal.size())));
+            for (String column : equal) {
+               List<String> one = new ArrayList<String>();
+               one.add(column);
+               lists.add(one);
+               for (String last : trailing) {
+                  List<String> two = new ArrayList<String>(one);
+                  two.add(last);
+                  lists.add(two);
+               }
+            }
+            if (equal.size() > 1 && equal.size() < MAX_COLUMNS && !trailing.isEmpty()) {
+               List<String> all = new ArrayList<String>(equal);
+               all.add(trailing.get(0));
+               lists.add(all);
+            }
+            for (String column : trailing) {
+               List<String> one = new ArrayList<String>();
+               one.add(column);
+               lists.add(one);
+            }
+            // the sort or group columns together, read in their order
+            List<String> ordered = new ArrayList<String>(columns(shape.plan.ordered, table));
+            if (equal.isEmpty() && ordered.size() > 1)
+               lists.add(ordered.subList(0, Math.min(MAX_COLUMNS, ordered.size())));
+            for (List<String> columns : lists) {
+               String key = table + columns;
+               if (!candidates.containsKey(key) && !covered(table, columns))
+                  candidates.put(key, new Index(indexName(table, columns), table, columns, false));
+            }
+         }
+      }
+      return new ArrayList<Index>(candidates.values());
+   }//end candidates
+
+   private static Set<String> columns(Map<String, Set<String>> columns, String table) {
+      Set<String> of = columns.get(table);
+      return of == null ? new LinkedHashSet<String>() : of;
+   }
+
+   // whether an existing index starts with the columns.
+   private boolean covered(String table, List<String> columns) {
+      for (Index index : this._existing) {
+         if (index.table.equals(table) && index.columns.size() >= columns.size()
+               && index.columns.subList(0, columns.size()).equals(columns))
+            return true;
+      }
+      return false;
+   }//end covered
+
+   private String indexName(String table, List<String> columns) {
+      String name = table + "_" + String.join("_", columns) + "_idx";
+      for (Index index : this._existing) {
+         if (index.name.equals(name))
+            return table + "_" + String.join("_", columns) + "_advised_idx";
+      }
+      return name;
+   }//end indexName
+
+   /*
+    * Reads the partitions, the columns of the tables and their indexes,
+    * leaving out the indexes of partitions, which come with those of
+    * their table, and indexes on expressions or with a predicate.
+    */
+   private void readCatalog(Connection conn) throws SQLException {
+      this._parents.clear();
+      this._columns.clear();
+      this._existing.clear();
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery("SELECT c.relname, p.relname FROM pg_inherits i"
+            + " JOIN pg_class c ON c.oid = i.inhrelid JOIN pg_class p ON p.oid = i.inhparent");
+         while (rs.next())
+            this._parents.put(rs.getString(1), rs.getString(2));
+         rs.close();
+         rs = stmt.executeQuery("SELECT c.relname, a.attname FROM pg_attribute a JOIN pg_class c ON c.oid = a.attrelid"
+            + " WHERE c.relnamespace = current_schema()::regnamespace AND c.relkind IN ('r', 'p') AND NOT c.relispartition"
+            + " AND a.attnum > 0 AND NOT a.attisdropped");
+         while (rs.next()) {
+            Set<String> columns = this._columns.get(rs.getString(1));
+            if (columns == null) {
+               columns = new HashSet<String>();
+               this._columns.put(rs.getString(1), columns);
+            }
+            columns.add(rs.getString(2));
+         }
+         rs.close();
+         rs = stmt.executeQuery("SELECT i.relname, t.relname, x.indisunique OR x.indisprimary,"
+            + " (SELECT string_agg(a.attname, ',' ORDER BY k.n) FROM unnest(x.indkey) WITH ORDINALITY AS k(attnum, n)"
+            + " JOIN pg_attribute a ON a.attrelid = x.indrelid AND a.attnum = k.attnum)"
+            + " FROM pg_index x JOIN pg_class i ON i.oid = x.indexrelid JOIN pg_class t ON t.oid = x.indrelid"
+            + " JOIN pg_am m ON m.oid = i.relam"
+            + " WHERE t.relnamespace = current_schema()::regnamespace AND NOT t.relispartition AND m.amname = 'btree'"
+            + " AND x.indexprs IS NULL AND x.indpred IS NULL ORDER BY t.relname, i.relname");
+         while (rs.next()) {
+            List<String> columns = new ArrayList<String>();
+            for (String column : rs.getString(4).split(","))
+               columns.add(column);
+            this._existing.add(new Index(rs.getString(1), rs.getString(2), columns, rs.getBoolean(3)));
+         }
+         rs.close();
+      } finally {
+         stmt.close();
+      }
+   }//end readCatalog
+
+   // the table a relation of a plan belongs to: its own, or that of the partition.
+   private String table(String relation) {
+      String parent = this._parents.get(relation);
+      return parent == null ? relation : table(parent);
+   }
+
+   /*
+    * Plans a sample with EXPLAIN (VERBOSE), where every column is named
+    * with the alias of its relation, and reads what the plan uses.
+    */
+   private Plan plan(Connection conn, Sample sample) throws SQLException {
+      List<String> lines = explain(conn, "EXPLAIN (VERBOSE) ", sample);
+      Plan plan = new Plan();
+      Matcher cost = COST.matcher(lines.get(0));
+      if (cost.find())
+         plan.cost = Double.parseDouble(cost.group(1));
+      // the aliases first, since a sort is printed above its scans
+      Map<String, String> aliases = new HashMap<String, String>();
+      plan.functions = callsFunctions(lines);
+      for (String line : lines) {
+         Matcher bitmap = BITMAP_INDEX.matcher(line);
+         if (bitmap.find()) {
+            plan.indexes.add(table(bitmap.group(1)));
+            continue;
+         }
+         Matcher scan = SCAN.matcher(line);
+         if (!scan.find())
+            continue;
+         String table = table(scan.group(2));
+         if (scan.group(1) != null)
+            plan.indexes.add(table(scan.group(1)));
+         plan.scanned.add(table);
+         String alias = scan.group(3) == null ? scan.group(2) : scan.group(3);
+         aliases.put(alias, table);
+         // a partition is aliased after its table's alias, e.g. o_1 for o
+         if (!table.equals(scan.group(2)) && alias.matches(".*_[0-9]+"))
+            aliases.put(alias.substring(0, alias.lastIndexOf('_')), table);
+      }
+      for (String line : lines) {
+         Matcher condition = CONDITION.matcher(line);
+         if (!condition.find())
+            continue;
+         String kind = condition.group(1);
+         String expression = condition.group(2);
+         if (kind.endsWith("Key")) {
+            Matcher column = COLUMN.matcher(expression);
+            while (column.find())
+               add(plan.ordered, aliases, column.group(1), column.group(2));
+            continue;
+         }
+         Matcher left = LEFT.matcher(expression);
+         while (left.find())
+            add(left.group(3).equals("=") ? plan.equal : plan.range, aliases, left.group(1), left.group(2));
+         Matcher right = RIGHT.matcher(expression);
+         while (right.find())
+            add(right.group(1).equals("=") ? plan.equal : plan.range, aliases, right.group(2), right.group(3));
+      }
+      return plan;
+   }//end plan
+
+   private void add(Map<String, Set<String>> columns, Map<String, String> aliases, String alias, String column) {
+      String table = aliases.get(alias);
+      if (table == null || this._columns.get(table) == null || !this._columns.get(table).contains(column))
+         return;
+      Set<String> of = columns.get(table);
+      if (of == null) {
+         of = new LinkedHashSet<String>();
+         columns.put(table, of);
+      }
+      of.add(column);
+   }//end add
+
+   // the fastest of a few runs of a sample, in milliseconds.
+   private static double measure(Connection conn, Sample sample) throws SQLException {
+      double fastest = Double.MAX_VALUE;
+      for (int run = 0; run < MEASURE_RUNS; run++) {
+         for (String line : explain(conn, "EXPLAIN (ANALYZE) ", sample)) {
+            Matcher execution = EXECUTION.matcher(line);
+            if (execution.find())
+               fastest = Math.min(fastest, Double.parseDouble(execution.group(1)));
+         }
+      }
+      return fastest;
+   }//end measure
+
+   private static List<String> explain(Connection conn, String explain, Sample sample) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(explain + sample.sql);
+      try {
+         StatementCache.bind(stmt, sample.params);
+         ResultSet rs = stmt.executeQuery();
+         List<String> lines = new ArrayList<String>();
+         while (rs.next())
+            lines.add(rs.getString(1));
+         rs.close();
+         return lines;
+      } finally {
+         stmt.close();
+      }
+   }//end explain
+
+   private static void execute(Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         stmt.execute(sql);
+      } finally {
+         stmt.close();
+      }
+   }
+
+   // the index scans counted by the statistics, those of partitions added to their table's index.
+   private Map<String, Long> scans(Connection conn) throws SQLException {
+      Map<String, Long> scans = new HashMap<String, Long>();
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery("SELECT indexrelname, idx_scan FROM pg_stat_user_indexes");
+         while (rs.next()) {
+            String index = table(rs.getString(1));
+            Long count = scans.get(index);
+            scans.put(index, (count == null ? 0 : count) + rs.getLong(2));
+         }
+         rs.close();
+      } finally {
+         stmt.close();
+      }
+      return scans;
+   }//end scans
+
+   private String script(long statements, List<Shape> shapes, double before, double after, List<Index> chosen,
+                         Set<String> used, Map<String, Long> scans) {
+      StringBuilder script = new StringBuilder();
+      script.append(String.format(Locale.ROOT, "-- Index advice for %d statements of %d shapes, %s%n", statements, shapes.size(),
+         new Timestamp(System.currentTimeMillis())));
+      script.append(String.format(Locale.ROOT, "-- Planner cost of the workload %.0f, %.0f with the indexes below%s%n",
+         before, after, percent(before, after)));
+      script.append("\n-- Shapes by cost, as the workload started: runs x planner cost\n");
+      List<Shape> byCost = new ArrayList<Shape>(shapes);
+      Collections.sort(byCost, new Comparator<Shape>() {
+         public int compare(Shape a, Shape b) {
+            return Double.compare(b.count * b.baseCost, a.count * a.baseCost);
+         }
+      });
+      for (Shape shape : byCost)
+         script.append(String.format(Locale.ROOT, "-- %8d x %10.2f  %s%n", shape.count, shape.baseCost, shape.shape));
+      int rank = 1;
+      for (Index index : chosen) {
+         script.append(String.format(Locale.ROOT, "%n-- %d. %.0f less cost over %d shapes", rank++, index.gain, index.shapes));
+         if (index.measured > 0)
+            script.append(String.format(Locale.ROOT, "; %d SELECT shapes measured %.3f ms -> %.3f ms for their recorded runs",
+               index.measured, index.beforeMillis, index.afterMillis));
+         script.append('\n').append(index.create()).append(";\n");
+      }
+      if (chosen.isEmpty())
+         script.append("\n-- No index saves ").append(Math.round(MIN_GAIN * 100)).append("% of the cost or more.\n");
+
+      List<String> redundant = new ArrayList<String>();
+      Set<String> flagged = new HashSet<String>();
+      for (Index index : this._existing) {
+         if (index.constraint)
+            continue;
+         for (Index other : this._existing) {
+            if (other == index || !other.table.equals(index.table) || flagged.contains(other.name)
+                  || other.columns.size() < index.columns.size()
+                  || !other.columns.subList(0, index.columns.size()).equals(index.columns))
+               continue;
+            redundant.add("-- " + index + " is covered by " + other + "\n-- DROP INDEX " + index.name + ";\n");
+            flagged.add(index.name);
+            break;
+         }
+      }
+      if (!redundant.isEmpty()) {
+         script.append("\n-- Redundant indexes\n");
+         for (String line : redundant)
+            script.append(line);
+      }
+
+      StringBuilder unused = new StringBuilder();
+      for (Index index : this._existing) {
+         if (index.constraint || used.contains(index.name) || flagged.contains(index.name))
+            continue;
+         Long count = scans.get(index.name);
+         unused.append("-- ").append(index).append(", ").append(count == null ? 0 : count)
+            .append(" scans since the statistics were reset\n-- DROP INDEX ").append(index.name).append(";\n");
+      }
+      if (unused.length() > 0)
+         script.append("\n-- Indexes no recorded statement used\n").append(unused);
+      return script.toString();
+   }//end script
+
+   private static String percent(double before, double after) {
+      return before > 0 ? String.format(Locale.ROOT, " (%+.0f%%)", 100 * (after - before) / before) : "";
+   }
+}//end IndexAdvisor
@@ -0,0 +1,602 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class reserves stock for orders in memory, so orders for the same
+ * product no longer queue on its Product row. Every product has a counter
+ * of the units reserved or released since the last flush; a reservation is
+ * a compare and set on it against the stock last read from Product. Every
+ * reservation is appended to a journal file before the order is inserted,
+ * and a background flush writes the net change of every product to Product
+ * in one transaction, together with the journal position it covers in
+ * InventoryJournalCheckpoint. On start, journal entries past the checkpoint
+ * whose orders made it into Orders are written to Product before any new
+ * reservation is taken.
+ *
+ * Only one program may run an engine against a database, since it assumes
+ * all orders go through it. Stock changed by anything else, such as product
+ * updates and supply requests, is announced by the product catalog's change
+ * notifications and read back at the next flush, in the same transaction
+ * that writes the engine's own changes. Units reserved for an order that was still being
+ * inserted when the program died stay taken: the engine may undersell after
+ * a crash but never oversells. The journal is forced to disk at every
+ * flush, so a machine crash can lose up to one flush interval of entries.
+ *
+ */
+public class InventoryEngine implements ProductCatalog.ChangeListener {
+
+   public static final long DEFAULT_FLUSH_MILLIS = 200;
+
+   // locks guarding the counters; a flush takes all of them, reservations
+   // only the read lock of their product's stripe.
+   static final int STRIPES = 16;
+
+   /**
+    * Units taken for one order, handed back by release() if the order
+    * does not go through.
+    */
+   public static class Reservation {
+      final long seq;
+      final int orderNumber;
+      final Stock stock;
+      final int units;
+
+      Reservation(long seq, int orderNumber, Stock stock, int units) {
+         this.seq = seq;
+         this.orderNumber = orderNumber;
+         this.stock = stock;
+         this.units = units;
+      }
+   }//end Reservation
+
+   // the stock of one product.
+   static class Stock {
+      final int storeID;
+      final int productID;
+      final int stripe;
+      // numberOfUnits as last read from Product.
+      volatile int base;
+      // reserved (negative) and released units not yet taken by a flush.
+      final AtomicInteger pending = new AtomicInteger(0);
+      // units taken by the flush being written, not yet in base.
+      volatile int inFlight = 0;
+      // Product changed under the engine; base is read again at the next flush.
+      volatile boolean stale = false;
+
+      Stock(int storeID, int productID, int base) {
+         this.storeID = storeID;
+         this.productID = productID;
+         this.stripe = (Long.hashCode(key(storeID, productID)) & 0x7fffffff) % STRIPES;
+         this.base = base;
+      }
+
+      int available() {
+         return this.base + this.inFlight + this.pending.get();
+      }
+   }//end Stock
+
+   private final Amazon _esql;
+   private final File _journal;
+   private final long _flushMillis;
+
+   private final Map<Long, Stock> _stocks = new ConcurrentHashMap<Long, Stock>();
+   private final ReadWriteLock[] _stripes = new ReadWriteLock[STRIPES];
+
+   private final AtomicLong _seq = new AtomicLong(0);
+   private FileChannel _channel = null;
+   private ScheduledExecutorService _flusher = null;
+
+   private long _flushedSeq = 0;
+   private volatile boolean _anyStale = false;
+   private long _flushes = 0;
+   private long _productsFlushed = 0;
+   private final AtomicLong _reservations = new AtomicLong(0);
+
+   /**
+    * Creates an engine journaling to the given file
+    *
+    * @param esql the program whose connections read and write the stock
+    * @param journal the journal file; rotated segments sit next to it
+    * @param flushMillis the time between flushes
+    */
+   public InventoryEngine(Amazon esql, String journal, long flushMillis) {
+      this._esql = esql;
+      this._journal = new File(journal).getAbsoluteFile();
+      this._flushMillis = flushMillis;
+      for (int i = 0; i < STRIPES; i++)
+         this._stripes[i] = new ReentrantReadWriteLock();
+   }//end InventoryEngine
+
+   public InventoryEngine(Amazon esql, String journal) {
+      this(esql, journal, DEFAULT_FLUSH_MILLIS);
+   }
+
+   static long key(int storeID, int productID) {
+      return ((long) storeID << 32) | (productID & 0xffffffffL);
+   }
+
+   /**
+    * Recovers what the last run left in the journal, then starts taking
+    * reservations and flushing.
+    *
+    * @throws java.sql.SQLException when the recovered changes could not be written
+    * @throws java.io.IOException when the journal could not be read or opened
+    */
+   public synchronized void start() throws SQLException, IOException {
+      recover();
+      this._channel = new RandomAccessFile(this._journal, "rw").getChannel();
+      this._channel.position(this._channel.size());
+      this._flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "inventory-flush");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this._flusher.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try {
+               flush();
+            }catch (Exception e) {
+               System.err.println("Inventory flush failed, retrying: " + e.getMessage());
+            }
+         }
+      }, this._flushMillis, this._flushMillis, TimeUnit.MILLISECONDS);
+   }//end start
+
+   /**
+    * Stops flushing in the background and writes what is left.
+    *
+    * @throws java.sql.SQLException when the last flush failed; the journal keeps it
+    */
+   public synchronized void stop() throws SQLException {
+      if (this._flusher == null)
+         return;
+      this._flusher.shutdown();
+      try {
+         this._flusher.awaitTermination(10, TimeUnit.SECONDS);
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      this._flusher = null;
+      try {
+         flush();
+      } finally {
+         try {
+            this._channel.close();
+         }catch (IOException e) {
+            // ignored.
+         }
+      }
+   }//end stop
+
+   // returns the stock of the product, reading it the first time.
+   private Stock stockOf(int storeID, int productID) throws SQLException {
+      long key = key(storeID, productID);
+      Stock stock = this._stocks.get(key);
+      if (stock != null)
+         return stock;
+      ColumnBatch result = this._esql.executeQueryAndReturnBatch(
+         "SELECT productID, numberOfUnits FROM Product WHERE storeID = ? AND productID = ?", new ColumnBatch(1), storeID, productID);
+      if (result.getRowCount() == 0)
+         return null;
+      stock = new Stock(storeID, productID, result.getInt(0, 1));
+      Stock raced = this._stocks.putIfAbsent(key, stock);
+      return raced != null ? raced : stock;
+   }//end stockOf
+
+   /**
+    * Takes units of a product for an order and journals it.
+    *
+    * @return the reservation, to release if the order does not go through
+    * @throws OrderRejectedException when the product does not exist, the
+    *         number of units is not positive or there are not enough left
+    * @throws java.sql.SQLException when the stock or the journal could not be read or written
+    */
+   public Reservation reserve(int orderNumber, int storeID, int productID, int units) throws SQLException {
+      if (units < 1)
+         throw new OrderRejectedException(OrderRejectedException.Reason.BAD_QUANTITY, "Enter a reasonable number of items");
+      Stock stock = stockOf(storeID, productID);
+      if (stock == null)
+         throw new OrderRejectedException(OrderRejectedException.Reason.NO_PRODUCT, "Product does not exist");
+      ReadWriteLock stripe = this._stripes[stock.stripe];
+      stripe.readLock().lock();
+      try {
+         while (true) {
+            int pending = stock.pending.get();
+            int available = stock.base + stock.inFlight + pending;
+            if (units > available)
+               throw new OrderRejectedException(OrderRejectedException.Reason.INSUFFICIENT_STOCK,
+                  "Only " + Math.max(available, 0) + " units left in stock");
+            if (stock.pending.compareAndSet(pending, pending - units))
+               break;
+         }
+         long seq = this._seq.incrementAndGet();
+         try {
+            journal("R", seq, 0, orderNumber, stock, units);
+         }catch (IOException e) {
+            stock.pending.addAndGet(units);
+            throw new SQLException("Could not journal the reservation: " + e.getMessage());
+         }
+         this._reservations.incrementAndGet();
+         return new Reservation(seq, orderNumber, stock, units);
+      } finally {
+         stripe.readLock().unlock();
+      }
+   }//end reserve
+
+   /**
+    * Gives back the units of an order that was not placed.
+    */
+   public void release(Reservation reservation) {
+      ReadWriteLock stripe = this._stripes[reservation.stock.stripe];
+      stripe.readLock().lock();
+      try {
+         reservation.stock.pending.addAndGet(reservation.units);
+         long seq = this._seq.incrementAndGet();
+         journal("X", seq, reservation.seq, reservation.orderNumber, reservation.stock, reservation.units);
+      }catch (IOException e) {
+         // recovery only replays releases of flushed reservations, and a
+         // reservation with no order is never replayed, so this is safe
+         // unless a flush took the reservation before the write failed.
+         System.err.println("Could not journal the release of order " + reservation.orderNumber + ": " + e.getMessage());
+      } finally {
+         stripe.readLock().unlock();
+      }
+   }//end release
+
+   /*
+    * Appends one journal line: the operation, R for a reservation and X for
+    * a release, its sequence number, the released reservation, the order,
+    * the store, the units and the productID.
+    */
+   private void journal(String op, long seq, long reserved, int orderNumber, Stock stock, int units) throws IOException {
+      String line = op + "," + seq + "," + reserved + "," + orderNumber + "," + stock.storeID + "," + units + "," + stock.productID + "\n";
+      ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+      synchronized (this._channel) {
+         while (bytes.hasRemaining())
+            this._channel.write(bytes);
+      }
+   }//end journal
+
+   /**
+    * A Product row changed. The units in the notification are not used:
+    * notifications arrive after the fact and may predate a flush the engine
+    * already applied, so the product is read back by the next flush instead.
+    * The engine's own flushes are announced too, which costs one read each.
+    */
+   public void productChanged(int storeID, int productID, int numberOfUnits, boolean deleted) {
+      Stock stock = this._stocks.get(key(storeID, productID));
+      if (stock != null) {
+         stock.stale = true;
+         this._anyStale = true;
+      }
+   }//end productChanged
+
+   private void lockAll() {
+      for (ReadWriteLock stripe : this._stripes)
+         stripe.writeLock().lock();
+   }
+
+   private void unlockAll() {
+      for (int i = STRIPES - 1; i >= 0; i--)
+         this._stripes[i].writeLock().unlock();
+   }
+
+   /**
+    * Writes the net stock change of every product reserved or released
+    * since the last flush to Product, in one transaction that also moves
+    * the checkpoint. Journal segments the checkpoint covers are deleted.
+    *
+    * @throws java.sql.SQLException when the write failed; the changes are kept for the next flush
+    */
+   public synchronized void flush() throws SQLException {
+      if (this._seq.get() == this._flushedSeq && !this._anyStale)
+         return;
+
+      // take the changes and start a new journal segment in one step, so
+      // the segment holds exactly the entries this flush covers
+      List<Stock> stocks = new ArrayList<Stock>();
+      List<Integer> deltas = new ArrayList<Integer>();
+      List<Stock> stale = new ArrayList<Stock>();
+      long upTo;
+      lockAll();
+      try {
+         upTo = this._seq.get();
+         this._anyStale = false;
+         for (Stock stock : this._stocks.values()) {
+            int delta = stock.pending.getAndSet(0);
+            if (delta != 0) {
+               stock.inFlight += delta;
+               stocks.add(stock);
+               deltas.add(delta);
+            }
+            else if (stock.stale)
+               stale.add(stock);
+            stock.stale = false;
+         }
+         if (upTo != this._flushedSeq)
+            rotate(upTo);
+      }catch (IOException e) {
+         undo(stocks, deltas, stale);
+         throw new SQLException("Could not rotate the inventory journal: " + e.getMessage());
+      } finally {
+         unlockAll();
+      }
+
+      Map<Long, Integer> written;
+      try {
+         written = write(stocks, deltas, stale, upTo);
+      }catch (SQLException e) {
+         lockAll();
+         try {
+            undo(stocks, deltas, stale);
+         } finally {
+            unlockAll();
+         }
+         throw e;
+      }
+
+      // the units read back replace base, which now holds the flushed
+      // changes and whatever else changed the rows
+      lockAll();
+      try {
+         for (int i = 0; i < stocks.size(); i++) {
+            Stock stock = stocks.get(i);
+            stock.inFlight -= deltas.get(i);
+            Integer units = written.get(key(stock.storeID, stock.productID));
+            if (units != null)
+               stock.base = units;
+         }
+         for (Stock stock : stale) {
+            Integer units = written.get(key(stock.storeID, stock.productID));
+            if (units != null)
+               stock.base = units;
+            else if (stock.pending.get() == 0)
+               this._stocks.remove(key(stock.storeID, stock.productID));
+         }
+      } finally {
+         unlockAll();
+      }
+      this._flushedSeq = upTo;
+      this._flushes++;
+      this._productsFlushed += stocks.size();
+      deleteSegments(upTo);
+   }//end flush
+
+   // puts back what a failed flush took, for the next one.
+   private void undo(List<Stock> stocks, List<Integer> deltas, List<Stock> stale) {
+      for (int i = 0; i < stocks.size(); i++) {
+         stocks.get(i).inFlight -= deltas.get(i);
+         stocks.get(i).pending.addAndGet(deltas.get(i));
+         stocks.get(i).stale = true;
+      }
+      for (Stock stock : stale)
+         stock.stale = true;
+      this._anyStale = true;
+   }//end undo
+
+   // renames the journal to a segment named after its last entry.
+   private void rotate(long upTo) throws IOException {
+      this._channel.force(false);
+      this._channel.close();
+      File segment = new File(this._journal.getPath() + "." + upTo);
+      if (!this._journal.renameTo(segment))
+         throw new IOException("Cannot rename " + this._journal + " to " + segment);
+      this._channel = new RandomAccessFile(this._journal, "rw").getChannel();
+   }//end rotate
+
+   private List<File> segments() {
+      List<File> segments = new ArrayList<File>();
+      File[] files = this._journal.getParentFile().listFiles();
+      if (files == null)
+         return segments;
+      String prefix = this._journal.getName() + ".";
+      for (File file : files) {
+         if (file.getName().startsWith(prefix) && file.getName().substring(prefix.length()).matches("[0-9]+"))
+            segments.add(file);
+      }
+      return segments;
+   }//end segments
+
+   private void deleteSegments(long upTo) {
+      String prefix = this._journal.getName() + ".";
+      for (File segment : segments()) {
+         if (Long.parseLong(segment.getName().substring(prefix.length())) <= upTo)
+            segment.delete();
+      }
+   }//end deleteSegments
+
+   /*
+    * Adds the deltas to Product, reads back the stale products and moves
+    * the checkpoint in one transaction, with the Product triggers skipped.
+    * @return the numberOfUnits written or read, by product key
+    */
+   private Map<Long, Integer> write(List<Stock> stocks, List<Integer> deltas, List<Stock> stale, long upTo) throws SQLException {
+      Map<Long, Integer> written = new HashMap<Long, Integer>();
+      ConnectionPool.PooledConnection pooled = this._esql.getPool().acquire();
+      Connection conn = pooled.getConnection();
+      try {
+         conn.setAutoCommit(false);
+         PreparedStatement bulk = conn.prepareStatement("SELECT set_config('amazon.bulk_load', 'on', true)");
+         bulk.execute();
+         bulk.close();
+
+         if (!stocks.isEmpty()) {
+            StringBuilder values = new StringBuilder();
+            Object[] params = new Object[stocks.size() * 3];
+            for (int i = 0; i < stocks.size(); i++) {
+               values.append(i == 0 ? "" : ", ").append("(CAST(? AS integer), CAST(? AS integer), CAST(? AS integer))");
+               params[3 * i] = stocks.get(i).storeID;
+               params[3 * i + 1] = stocks.get(i).productID;
+               params[3 * i + 2] = deltas.get(i);
+            }
+            PreparedStatement update = conn.prepareStatement(
+               "UPDATE Product p SET numberOfUnits = p.numberOfUnits + d.delta FROM (VALUES " + values + ") AS d (storeID, productID, delta)"
+               + " WHERE p.storeID = d.storeID AND p.productID = d.productID RETURNING p.storeID, p.productID, p.numberOfUnits");
+            StatementCache.bind(update, params);
+            ResultSet rs = update.executeQuery();
+            while (rs.next())
+               written.put(key(rs.getInt(1), rs.getInt(2)), rs.getInt(3));
+            rs.close();
+            update.close();
+         }
+         if (!stale.isEmpty()) {
+            StringBuilder values = new StringBuilder();
+            Object[] params = new Object[stale.size() * 2];
+            for (int i = 0; i < stale.size(); i++) {
+               values.append(i == 0 ? "" : ", ").append("(CAST(? AS integer), CAST(? AS integer))");
+               params[2 * i] = stale.get(i).storeID;
+               params[2 * i + 1] = stale.get(i).productID;
+            }
+            PreparedStatement select = conn.prepareStatement(
+               "SELECT p.storeID, p.productID, p.numberOfUnits FROM Product p, (VALUES " + values + ") AS d (storeID, productID)"
+               + " WHERE p.storeID = d.storeID AND p.productID = d.productID");
+            StatementCache.bind(select, params);
+            ResultSet rs = select.executeQuery();
+            while (rs.next())
+               written.put(key(rs.getInt(1), rs.getInt(2)), rs.getInt(3));
+            rs.close();
+            select.close();
+         }
+         checkpoint(conn, upTo);
+         conn.commit();
+         return written;
+      }catch (SQLException e) {
+         conn.rollback();
+         throw e;
+      } finally {
+         try {
+            conn.setAutoCommit(true);
+         } finally {
+            this._esql.getPool().release(pooled);
+         }
+      }
+   }//end write
+
+   private void checkpoint(Connection conn, long upTo) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(
+         "INSERT INTO InventoryJournalCheckpoint (journal, flushedSeq, flushedAt) VALUES (?, ?, current_timestamp)"
+         + " ON CONFLICT (journal) DO UPDATE SET flushedSeq = EXCLUDED.flushedSeq, flushedAt = EXCLUDED.flushedAt");
+      StatementCache.bind(stmt, this._journal.getPath(), upTo);
+      stmt.executeUpdate();
+      stmt.close();
+   }//end checkpoint
+
+   /*
+    * Replays the journal left by the last run. Reservations past the
+    * checkpoint count if their order exists; releases past it count if the
+    * reservation they give back was flushed.
+    */
+   private void recover() throws SQLException, IOException {
+      ColumnBatch result = this._esql.executeQueryAndReturnBatch(
+         "SELECT flushedSeq FROM InventoryJournalCheckpoint WHERE journal = ?", new ColumnBatch(1), this._journal.getPath());
+      long checkpoint = result.getRowCount() == 0 ? 0 : result.getLong(0, 0);
+
+      List<File> files = segments();
+      if (this._journal.exists())
+         files.add(this._journal);
+      List<String[]> entries = new ArrayList<String[]>();
+      long maxSeq = checkpoint;
+      for (File file : files) {
+         BufferedReader reader = new BufferedReader(new FileReader(file));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               String[] fields = line.split(",");
+               // a line cut short by a crash is skipped
+               if (fields.length < 7 || !line.matches("[RX],[0-9]+,[0-9]+,-?[0-9]+,-?[0-9]+,[0-9]+,-?[0-9]+"))
+                  continue;
+               long seq = Long.parseLong(fields[1]);
+               maxSeq = Math.max(maxSeq, seq);
+               if (seq > checkpoint)
+                  entries.add(fields);
+            }
+         } finally {
+            reader.close();
+         }
+      }
+
+      Set<Integer> placed = placedOrders(entries);
+      Map<Long, Object[]> deltas = new TreeMap<Long, Object[]>();
+      for (String[] fields : entries) {
+         boolean reservation = fields[0].equals("R");
+         if (reservation ? !placed.contains(Integer.parseInt(fields[3])) : Long.parseLong(fields[2]) > checkpoint)
+            continue;
+         int units = Integer.parseInt(fields[5]);
+         long key = key(Integer.parseInt(fields[4]), Integer.parseInt(fields[6]));
+         Object[] delta = deltas.get(key);
+         if (delta == null) {
+            delta = new Object[] {Integer.parseInt(fields[4]), Integer.parseInt(fields[6]), 0};
+            deltas.put(key, delta);
+         }
+         delta[2] = (Integer) delta[2] + (reservation ? -units : units);
+      }
+
+      List<Stock> stocks = new ArrayList<Stock>();
+      List<Integer> changes = new ArrayList<Integer>();
+      for (Object[] delta : deltas.values()) {
+         if ((Integer) delta[2] != 0) {
+            stocks.add(new Stock((Integer) delta[0], (Integer) delta[1], 0));
+            changes.add((Integer) delta[2]);
+         }
+      }
+      if (maxSeq > checkpoint)
+         write(stocks, changes, new ArrayList<Stock>(), maxSeq);
+      for (File file : files)
+         file.delete();
+      this._seq.set(maxSeq);
+      this._flushedSeq = maxSeq;
+   }//end recover
+
+   // the order numbers of the journaled reservations found in Orders.
+   private Set<Integer> placedOrders(List<String[]> entries) throws SQLException {
+      Set<Integer> placed = new HashSet<Integer>();
+      List<Integer> batch = new ArrayList<Integer>();
+      for (int i = 0; i <= entries.size(); i++) {
+         if (i < entries.size() && entries.get(i)[0].equals("R"))
+            batch.add(Integer.parseInt(entries.get(i)[3]));
+         if (batch.size() == 1000 || (i == entries.size() && !batch.isEmpty())) {
+            ColumnBatch result = this._esql.executeQueryAndReturnBatch(
+               "SELECT orderNumber FROM Orders WHERE orderNumber = ANY (CAST(? AS integer[]))", new ColumnBatch(),
+               StatementCache.array(batch));
+            for (int row = 0; row < result.getRowCount(); row++)
+               placed.add(result.getInt(row, 0));
+            batch.clear();
+         }
+      }
+      return placed;
+   }//end placedOrders
+
+   @Override
+   public String toString() {
+      return String.format("Inventory engine: %d reservations, %d flushes, %d product updates written",
+         this._reservations.get(), this._flushes, this._productsFlushed);
+   }
+}//end InventoryEngine
@@ -0,0 +1,124 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in log-linear buckets, so any percentile can
+ * be read back to within about 1.5% without keeping every sample. Values
+ * below 64 ns have a bucket each; above that every power of two is split
+ * into 64 buckets. Recording is one atomic increment, safe from any number
+ * of threads.
+ *
+ */
+public class LatencyHistogram {
+
+   // sub-buckets per power of two, as a number of bits.
+   static final int SUB_BITS = 6;
+   static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+   private final AtomicLongArray _counts = new AtomicLongArray((64 - SUB_BITS + 1) << SUB_BITS);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _total = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   static int bucket(long nanos) {
+      if (nanos < SUB_BUCKETS)
+         return (int) nanos;
+      int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+      int shift = magnitude - SUB_BITS;
+      return ((shift + 1) << SUB_BITS) + (int) ((nanos >>> shift) - SUB_BUCKETS);
+   }//end bucket
+
+   // the largest value that falls in the bucket.
+   static long highest(int bucket) {
+      if (bucket < SUB_BUCKETS)
+         return bucket;
+      int shift = (bucket >>> SUB_BITS) - 1;
+      long lowest = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+      return lowest + (1L << shift) - 1;
+   }//end highest
+
+   /**
+    * Counts one latency.
+    *
+    * @param nanos the latency in nanoseconds; negative values count as 0
+    */
+   public void record(long nanos) {
+      if (nanos < 0)
+         nanos = 0;
+      this._counts.incrementAndGet(bucket(nanos));
+      this._count.incrementAndGet();
+      this._total.addAndGet(nanos);
+      long max = this._max.get();
+      while (nanos > max && !this._max.compareAndSet(max, nanos))
+         max = this._max.get();
+   }//end record
+
+   public long getCount() {
+      return this._count.get();
+   }
+
+   public long getMax() {
+      return this._max.get();
+   }
+
+   public long getTotal() {
+      return this._total.get();
+   }
+
+   public double getMean() {
+      long count = this._count.get();
+      return count == 0 ? 0 : (double) this._total.get() / count;
+   }
+
+   /**
+    * @param percentile between 0 and 100
+    * @return the latency in nanoseconds that the given percentage of the
+    *         values do not exceed, 0 when nothing was recorded
+    */
+   public long getPercentile(double percentile) {
+      long count = this._count.get();
+      if (count == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+      long seen = 0;
+      for (int bucket = 0; bucket < this._counts.length(); bucket++) {
+         seen += this._counts.get(bucket);
+         if (seen >= rank)
+            return Math.min(highest(bucket), this._max.get());
+      }
+      return this._max.get();
+   }//end getPercentile
+
+   /**
+    * Adds the counts of another histogram to this one.
+    */
+   public void add(LatencyHistogram other) {
+      for (int bucket = 0; bucket < this._counts.length(); bucket++) {
+         long count = other._counts.get(bucket);
+         if (count != 0)
+            this._counts.addAndGet(bucket, count);
+      }
+      this._count.addAndGet(other._count.get());
+      this._total.addAndGet(other._total.get());
+      long max = this._max.get();
+      while (other._max.get() > max && !this._max.compareAndSet(max, other._max.get()))
+         max = this._max.get();
+   }//end add
+
+   /**
+    * Forgets every value recorded so far.
+    */
+   public void reset() {
+      for (int bucket = 0; bucket < this._counts.length(); bucket++)
+         this._counts.set(bucket, 0);
+      this._count.set(0);
+      this._total.set(0);
+      this._max.set(0);
+   }//end reset
+
+   @Override
+   public String toString() {
+      return String.format("n=%d p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms", getCount(),
+         getPercentile(50) / 1e6, getPercentile(99) / 1e6, getPercentile(99.9) / 1e6, getMax() / 1e6);
+   }
+}//end LatencyHistogram
@@ -0,0 +1,386 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class puts load on the program without a console. It builds a
+ * population of simulated users from users.csv, stores.csv and
+ * products.csv, and has a number of them run menu operations at the same
+ * time, each in its own session whose prompts are answered from generated
+ * input, just like clients of the server. The operations are picked from
+ * a mix of browse, order, report and supply weights.
+ *
+ * With a target rate every simulated user starts its operations on a fixed
+ * schedule, and latency is measured from when an operation was due rather
+ * than when it started, so a stall shows up in the latency of everything
+ * that queued behind it. Without a rate the users run back to back.
+ *
+ * An operation fails when it writes an error or runs out of input, which
+ * happens when a prompt is asked again, e.g. for an order the stock can't
+ * cover.
+ *
+ */
+public class LoadDriver {
+
+   public static final String DEFAULT_MIX = "browse=60,order=25,report=10,supply=5";
+   public static final int DEFAULT_USERS = 16;
+
+   static final long SEED = 166;
+   static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+   /**
+    * A simulated user: the session LogIn would make for a row of users.csv,
+    * with the stores the user orders from or manages.
+    */
+   static class Persona {
+      final UserSession user;
+      final List<Integer> stores;
+
+      Persona(UserSession user, List<Integer> stores) {
+         this.user = user;
+         this.stores = stores;
+      }
+   }//end Persona
+
+   /**
+    * One menu operation, with the answers to its prompts and its results.
+    */
+   abstract static class Operation {
+      final String name;
+      final boolean manager;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+      volatile String lastError = null;
+
+      Operation(String name, boolean manager) {
+         this.name = name;
+         this.manager = manager;
+      }
+
+      // the input of the session, one answer per line.
+      abstract String input(LoadDriver driver, Persona persona, Random random);
+
+      abstract void run(Amazon session, UserSession user);
+   }//end Operation
+
+   private final Amazon _esql;
+   private final Map<String, List<Operation>> _kinds = new LinkedHashMap<String, List<Operation>>();
+   private final Map<Integer, List<String>> _products = new HashMap<Integer, List<String>>();
+   private final List<Integer> _warehouses = new ArrayList<Integer>();
+   private final List<Persona> _customers = new ArrayList<Persona>();
+   private final List<Persona> _managers = new ArrayList<Persona>();
+
+   /**
+    * Builds the user population from the CSV files of the data directory.
+    *
+    * @param esql the program the sessions are opened on
+    * @param data the directory holding users.csv, stores.csv and products.csv
+    * @throws java.io.IOException when a file could not be read
+    */
+   public LoadDriver(Amazon esql, String data) throws IOException {
+      this._esql = esql;
+      for (Map<String, String> row : read(new File(data, "products.csv"))) {
+         int storeID = Integer.parseInt(row.get("storeid"));
+         if (!this._products.containsKey(storeID))
+            this._products.put(storeID, new ArrayList<String>());
+         this._products.get(storeID).add(row.get("productname"));
+      }
+      List<Map<String, String>> stores = read(new File(data, "stores.csv"));
+      for (Map<String, String> row : read(new File(data, "users.csv"))) {
+         int userID = Integer.parseInt(row.get("userid"));
+         String type = row.get("type");
+         double latitude = Double.parseDouble(row.get("latitude"));
+         double longitude = Double.parseDouble(row.get("longitude"));
+         List<Integer> reachable = new ArrayList<Integer>();
+         List<Integer> managed = new ArrayList<Integer>();
+         for (Map<String, String> store : stores) {
+            int storeID = Integer.parseInt(store.get("storeid"));
+            if (!this._products.containsKey(storeID))
+               continue;
+            if (esql.calculateDistance(latitude, longitude, Double.parseDouble(store.get("latitude")),
+                  Double.parseDouble(store.get("longitude"))) <= Amazon.MAX_STORE_DISTANCE)
+               reachable.add(storeID);
+            if (Integer.parseInt(store.get("managerid")) == userID)
+               managed.add(storeID);
+         }
+         UserSession user = new UserSession(row.get("name"), userID, UserSession.Role.of(type), latitude, longitude, managed);
+         if (!user.isManager() && !reachable.isEmpty())
+            this._customers.add(new Persona(user, reachable));
+         else if (user.isManager() && !user.isAdmin() && !managed.isEmpty())
+            this._managers.add(new Persona(user, managed));
+      }
+      for (Integer warehouseID : esql.getWarehouseIndex().ids())
+         this._warehouses.add(warehouseID);
+      defineOperations();
+   }//end LoadDriver
+
+   private static List<Map<String, String>> read(File csv) throws IOException {
+      List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+      BufferedReader in = new BufferedReader(new FileReader(csv));
+      try {
+         String[] header = in.readLine().split(",");
+         String line;
+         while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty())
+               continue;
+            String[] values = line.split(",", -1);
+            Map<String, String> row = new HashMap<String, String>();
+            for (int c = 0; c < header.length && c < values.length; c++)
+               row.put(header[c].trim().toLowerCase(Locale.ROOT), values[c].trim());
+            rows.add(row);
+         }
+      } finally {
+         in.close();
+      }
+      return rows;
+   }//end read
+
+   private static <T> T pick(List<T> list, Random random) {
+      return list.get(random.nextInt(list.size()));
+   }
+
+   private void define(String kind, Operation operation) {
+      if (!this._kinds.containsKey(kind))
+         this._kinds.put(kind, new ArrayList<Operation>());
+      this._kinds.get(kind).add(operation);
+   }
+
+   private void defineOperations() {
+      define("browse", new Operation("viewStores", false) {
+         String input(LoadDriver driver, Persona persona, Random random) { return ""; }
+         void run(Amazon session, UserSession user) { Amazon.viewStores(session, user); }
+      });
+      define("browse", new Operation("viewProducts", false) {
+         String input(LoadDriver driver, Persona persona, Random random) { return pick(persona.stores, random) + "\n"; }
+         void run(Amazon session, UserSession user) { Amazon.viewProducts(session); }
+      });
+      define("browse", new Operation("viewRecentOrders", false) {
+         String input(LoadDriver driver, Persona persona, Random random) { return ""; }
+         void run(Amazon session, UserSession user) { Amazon.viewRecentOrders(session, user); }
+      });
+      define("order", new Operation("placeOrder", false) {
+         String input(LoadDriver driver, Persona persona, Random random) {
+            int storeID = pick(persona.stores, random);
+            return storeID + "\n" + pick(driver._products.get(storeID), random) + "\n" + (1 + random.nextInt(3)) + "\n";
+         }
+         void run(Amazon session, UserSession user) { Amazon.placeOrder(session, user); }
+      });
+      define("report", new Operation("viewPopularProducts", true) {
+         String input(LoadDriver driver, Persona persona, Random random) { return ""; }
+         void run(Amazon session, UserSession user) { Amazon.viewPopularProducts(session, user); }
+      });
+      define("report", new Operation("viewPopularCustomers", true) {
+         String input(LoadDriver driver, Persona persona, Random random) { return ""; }
+         void run(Amazon session, UserSession user) { Amazon.viewPopularCustomers(session, user); }
+      });
+      define("report", new Operation("viewRecentUpdates", true) {
+         String input(LoadDriver driver, Persona persona, Random random) { return pick(persona.stores, random) + "\n"; }
+         void run(Amazon session, UserSession user) { Amazon.viewRecentUpdates(session, user); }
+      });
+      define("report", new Operation("viewSalesByProduct", true) {
+         String input(LoadDriver driver, Persona persona, Random random) { return pick(persona.stores, random) + "\n\n"; }
+         void run(Amazon session, UserSession user) { Amazon.viewSalesByProduct(session, user); }
+      });
+      define("report", new Operation("viewSalesOverTime", true) {
+         String input(LoadDriver driver, Persona persona, Random random) { return pick(persona.stores, random) + "\n\n\n"; }
+         void run(Amazon session, UserSession user) { Amazon.viewSalesOverTime(session, user); }
+      });
+      define("supply", new Operation("placeProductSupplyRequests", true) {
+         String input(LoadDriver driver, Persona persona, Random random) {
+            int storeID = pick(persona.stores, random);
+            return storeID + "\n" + pick(driver._products.get(storeID), random) + "\n" + (10 + random.nextInt(41)) + "\n"
+               + pick(driver._warehouses, random) + "\n";
+         }
+         void run(Amazon session, UserSession user) { Amazon.placeProductSupplyRequests(session, user); }
+      });
+   }//end defineOperations
+
+   public int getCustomerCount() {
+      return this._customers.size();
+   }
+
+   public int getManagerCount() {
+      return this._managers.size();
+   }
+
+   /*
+    * Parses "kind=weight,..." into cumulative weights by kind.
+    */
+   private Map<String, Integer> parseMix(String mix) {
+      Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+      int total = 0;
+      for (String part : mix.split(",")) {
+         String[] pair = part.split("=");
+         String kind = pair[0].trim().toLowerCase(Locale.ROOT);
+         if (pair.length != 2 || !this._kinds.containsKey(kind))
+            throw new IllegalArgumentException("Bad operation mix '" + part + "', expected kinds of " + this._kinds.keySet());
+         int weight = Integer.parseInt(pair[1].trim());
+         if (weight < 0)
+            throw new IllegalArgumentException("Negative weight for " + kind);
+         if (weight == 0)
+            continue;
+         boolean managers = kind.equals("report") || kind.equals("supply");
+         if ((managers ? this._managers : this._customers).isEmpty() && !kind.equals("browse"))
+            throw new IllegalArgumentException("No simulated users can run " + kind + " operations");
+         total += weight;
+         weights.put(kind, total);
+      }
+      if (total == 0)
+         throw new IllegalArgumentException("The operation mix is empty");
+      return weights;
+   }//end parseMix
+
+   /**
+    * Runs the load and prints the latency and throughput of every operation.
+    *
+    * @param seconds how long to run
+    * @param rate the operations per second of all users together, 0 for as fast as they can
+    * @param users the number of users running at the same time
+    * @param mix the weight of every kind of operation, like DEFAULT_MIX
+    * @throws java.lang.InterruptedException when interrupted while waiting for the users
+    */
+   public void run(int seconds, double rate, int users, String mix) throws InterruptedException {
+      final Map<String, Integer> weights = parseMix(mix);
+      final int total = new ArrayList<Integer>(weights.values()).get(weights.size() - 1);
+      final long interval = rate > 0 ? (long) (users * 1e9 / rate) : 0;
+      final long start = System.nanoTime();
+      final long end = start + seconds * 1000000000L;
+
+      ExecutorService executor = Executors.newFixedThreadPool(users);
+      List<Future<Long>> results = new ArrayList<Future<Long>>();
+      try {
+         for (int i = 0; i < users; i++) {
+            final int worker = i;
+            results.add(executor.submit(new Callable<Long>() {
+               public Long call() {
+                  return simulate(worker, weights, total, start + worker * interval / users, interval, end);
+               }
+            }));
+         }
+         long last = start;
+         for (Future<Long> result : results) {
+            try {
+               last = Math.max(last, result.get());
+            }catch (ExecutionException e) {
+               throw new IllegalStateException("Simulated user failed", e.getCause());
+            }
+         }
+         report(seconds, rate, users, (last - start) / 1e9);
+      } finally {
+         executor.shutdownNow();
+      }
+   }//end run
+
+   /*
+    * Runs the operations of one simulated user until the end, and returns
+    * when the last one finished.
+    */
+   private long simulate(int worker, Map<String, Integer> weights, int total, long due, long interval, long end) {
+      Random random = new Random(SEED + worker);
+      Persona customer = this._customers.isEmpty() ? null : this._customers.get(worker % this._customers.size());
+      Persona manager = this._managers.isEmpty() ? null : this._managers.get(worker % this._managers.size());
+      ByteArrayOutputStream errors = new ByteArrayOutputStream();
+      PrintStream err = new PrintStream(errors);
+      long finished = System.nanoTime();
+      while (due < end) {
+         if (interval > 0) {
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0)
+               LockSupport.parkNanos(wait);
+         }
+         else {
+            due = System.nanoTime();
+         }
+         int draw = random.nextInt(total);
+         String kind = null;
+         for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+            if (draw < weight.getValue()) {
+               kind = weight.getKey();
+               break;
+            }
+         }
+         Operation operation = pick(this._kinds.get(kind), random);
+         Persona persona = operation.manager ? manager : customer;
+         if (persona == null)
+            persona = manager != null ? manager : customer;
+
+         Amazon session = new Amazon(this._esql, new BufferedReader(new StringReader(operation.input(this, persona, random))), DISCARD);
+         session.err = err;
+         errors.reset();
+         boolean failed = false;
+         session.beginOperation(operation.name);
+         try {
+            operation.run(session, persona.user);
+         }catch (Amazon.SessionClosedException e) {
+            failed = true;
+            operation.lastError = "input ran out, a prompt was asked again";
+         }catch (RuntimeException e) {
+            failed = true;
+            operation.lastError = e.toString();
+         } finally {
+            session.endOperation();
+         }
+         err.flush();
+         if (errors.size() > 0) {
+            failed = true;
+            operation.lastError = errors.toString().trim();
+         }
+         finished = System.nanoTime();
+         operation.latency.record(finished - due);
+         if (failed)
+            operation.errors.incrementAndGet();
+         due += interval;
+      }
+      return finished;
+   }//end simulate
+
+   private void report(int seconds, double rate, int users, double elapsed) {
+      LatencyHistogram all = new LatencyHistogram();
+      long errors = 0;
+      System.out.println(String.format("Load: %d s, %d users (%d customers, %d managers), target %s",
+         seconds, users, this._customers.size(), this._managers.size(), rate > 0 ? rate + " ops/s" : "none"));
+      System.out.println(String.format("%-28s %8s %7s %9s %9s %9s %9s %9s",
+         "operation", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+      for (List<Operation> operations : this._kinds.values()) {
+         for (Operation operation : operations) {
+            if (operation.latency.getCount() == 0)
+               continue;
+            line(operation.name, operation.latency, operation.errors.get(), elapsed);
+            all.add(operation.latency);
+            errors += operation.errors.get();
+         }
+      }
+      line("all", all, errors, elapsed);
+      for (List<Operation> operations : this._kinds.values()) {
+         for (Operation operation : operations) {
+            if (operation.lastError != null)
+               System.out.println(operation.name + " last failed with: " + operation.lastError);
+         }
+      }
+   }//end report
+
+   private static void line(String name, LatencyHistogram latency, long errors, double elapsed) {
+      System.out.println(String.format(Locale.ROOT, "%-28s %8d %7d %9.1f %9.3f %9.3f %9.3f %9.3f",
+         name, latency.getCount(), errors, latency.getCount() / elapsed,
+         latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6, latency.getPercentile(99.9) / 1e6, latency.getMax() / 1e6));
+   }
+}//end LoadDriver
@@ -0,0 +1,357 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class counts where the time of the program goes. Every statement
+ * run through the execute methods is timed by its shape, the SQL text with
+ * repeated VALUES rows folded into one, and charged to the menu operation
+ * its session is running, which also counts the round trips, rows and
+ * time spent waiting for a connection of the operation. Every operation
+ * and shape gets a latency histogram.
+ *
+ * The numbers can be read over JMX, as amazon:type=Metrics, and dumped to
+ * a file every interval, as text or, for a file ending in .json, as one
+ * JSON object per line.
+ *
+ */
+public class Metrics implements MetricsMBean {
+
+   public static final long DEFAULT_DUMP_SECONDS = 60;
+
+   // shapes beyond this many are counted together, so generated SQL can't grow the map without bound.
+   static final int MAX_SHAPES = 500;
+   static final String OTHER_SHAPES = "(other statements)";
+
+   // a parenthesised row, with one level of nested parentheses, and the rows repeating it.
+   private static final Pattern ROWS = Pattern.compile("(\\((?:[^()]|\\([^()]*\\))*\\))(?:\\s*,\\s*\\((?:[^()]|\\([^()]*\\))*\\))+");
+   private static final Pattern SPACE = Pattern.compile("\\s+");
+   private static final Pattern PARAMETERS = Pattern.compile("\\?(?: ?, ?\\?)+");
+
+   /**
+    * What one menu operation of a session did so far. A session runs one
+    * operation at a time, so it is only touched by the session's thread.
+    */
+   public static class Operation {
+      final String name;
+      final long start = System.nanoTime();
+      int roundTrips = 0;
+      long rows = 0;
+      long waitNanos = 0;
+
+      Operation(String name) {
+         this.name = name;
+      }
+   }//end Operation
+
+   // the totals of an operation or a statement shape.
+   static class Stats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong roundTrips = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong waitNanos = new AtomicLong();
+   }//end Stats
+
+   private final Amazon _esql;
+   private final ConcurrentHashMap<String, Stats> _operations = new ConcurrentHashMap<String, Stats>();
+   private final ConcurrentHashMap<String, Stats> _shapes = new ConcurrentHashMap<String, Stats>();
+   private final Map<String, String> _shapeOf = new ConcurrentHashMap<String, String>();
+
+   private Thread _dumper = null;
+   private String _dumpFile = null;
+
+   /**
+    * @param esql the program, whose connection pool counts the connection waits
+    */
+   public Metrics(Amazon esql) {
+      this._esql = esql;
+   }
+
+   /**
+    * @return the statement with whitespace collapsed, and lists of VALUES
+    *         rows, or of any parenthesised lists side by side, cut to their
+    *         first, and lists of parameters, as for IN, cut to one
+    */
+   static String shape(String sql) {
+      String shape = SPACE.matcher(sql.trim()).replaceAll(" ");
+      shape = ROWS.matcher(shape).replaceAll("$1, ...");
+      return PARAMETERS.matcher(shape).replaceAll("?, ...");
+   }
+
+   private static Stats stats(ConcurrentHashMap<String, Stats> map, String key) {
+      Stats stats = map.get(key);
+      if (stats == null) {
+         Stats fresh = new Stats();
+         stats = map.putIfAbsent(key, fresh);
+         if (stats == null)
+            stats = fresh;
+      }
+      return stats;
+   }//end stats
+
+   /**
+    * Starts counting a menu operation.
+    */
+   public Operation begin(String name) {
+      return new Operation(name);
+   }
+
+   /**
+    * Adds a finished menu operation to its totals.
+    */
+   public void finish(Operation operation) {
+      Stats stats = stats(this._operations, operation.name);
+      stats.latency.record(System.nanoTime() - operation.start);
+      stats.roundTrips.addAndGet(operation.roundTrips);
+      stats.rows.addAndGet(operation.rows);
+      stats.waitNanos.addAndGet(operation.waitNanos);
+   }//end finish
+
+   /**
+    * Counts one statement run by the execute methods.
+    *
+    * @param sql the statement as given
+    * @param nanos how long it took, connection wait included
+    * @param waitNanos how long of that was spent waiting for a connection
+    * @param rows the rows it returned or changed
+    * @param roundTrips the round trips it took
+    * @param operation the menu operation it ran for, or null
+    */
+   public void statement(String sql, long nanos, long waitNanos, long rows, int roundTrips, Operation operation) {
+      String shape = this._shapeOf.get(sql);
+      if (shape == null) {
+         shape = shape(sql);
+         if (this._shapes.size() >= MAX_SHAPES && !this._shapes.containsKey(shape))
+            shape = OTHER_SHAPES;
+         if (this._shapeOf.size() < 4 * MAX_SHAPES)
+            this._shapeOf.put(sql, shape);
+      }
+      Stats stats = stats(this._shapes, shape);
+      stats.latency.record(nanos);
+      stats.roundTrips.addAndGet(roundTrips);
+      stats.rows.addAndGet(rows);
+      stats.waitNanos.addAndGet(waitNanos);
+      if (operation != null) {
+         operation.roundTrips += roundTrips;
+         operation.rows += rows;
+         operation.waitNanos += waitNanos;
+      }
+   }//end statement
+
+   private LatencyHistogram waits() {
+      return this._esql.getPool().getWaits();
+   }
+
+   // the entries sorted by total time, largest first.
+   private static List<Map.Entry<String, Stats>> byTotal(Map<String, Stats> map) {
+      List<Map.Entry<String, Stats>> entries = new ArrayList<Map.Entry<String, Stats>>(map.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, Stats>>() {
+         public int compare(Map.Entry<String, Stats> a, Map.Entry<String, Stats> b) {
+            return Long.compare(b.getValue().latency.getTotal(), a.getValue().latency.getTotal());
+         }
+      });
+      return entries;
+   }//end byTotal
+
+   private static double millis(double nanos) {
+      return nanos / 1e6;
+   }
+
+   public String getText() {
+      StringBuilder text = new StringBuilder();
+      text.append("Metrics at ").append(new Timestamp(System.currentTimeMillis()))
+         .append(", round trips, rows and wait are per call\n");
+      text.append(String.format(Locale.ROOT, "%-28s %8s %9s %9s %9s %9s %8s %8s %9s%n",
+         "operation", "count", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "trips", "rows", "wait ms"));
+      for (Map.Entry<String, Stats> entry : byTotal(this._operations))
+         text.append(String.format("%-28s ", entry.getKey())).append(columns(entry.getValue())).append('\n');
+      text.append(String.format(Locale.ROOT, "%8s %9s %9s %9s %9s %8s %8s %9s  %s%n",
+         "count", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "trips", "rows", "wait ms", "statement"));
+      for (Map.Entry<String, Stats> entry : byTotal(this._shapes)) {
+         String shape = entry.getKey();
+         text.append(columns(entry.getValue())).append("  ")
+            .append(shape.length() > 160 ? shape.substring(0, 157) + "..." : shape).append('\n');
+      }
+      LatencyHistogram waits = waits();
+      text.append(String.format(Locale.ROOT, "connection wait: %d acquires, p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+         waits.getCount(), millis(waits.getPercentile(50)), millis(waits.getPercentile(99)), millis(waits.getMax())));
+      return text.toString();
+   }//end getText
+
+   // count, latencies, and round trips, rows and wait per call.
+   private static String columns(Stats stats) {
+      long count = Math.max(1, stats.latency.getCount());
+      return String.format(Locale.ROOT, "%8d %9.3f %9.3f %9.3f %9.3f %8.1f %8.1f %9.3f", stats.latency.getCount(),
+         millis(stats.latency.getPercentile(50)), millis(stats.latency.getPercentile(99)), millis(stats.latency.getPercentile(99.9)),
+         millis(stats.latency.getMax()), (double) stats.roundTrips.get() / count, (double) stats.rows.get() / count,
+         millis((double) stats.waitNanos.get() / count));
+   }//end columns
+
+   public String getJson() {
+      StringBuilder json = new StringBuilder();
+      json.append("{\"time\":").append(quote(new Timestamp(System.currentTimeMillis()).toString()));
+      json.append(",\"operations\":[");
+      boolean first = true;
+      for (Map.Entry<String, Stats> entry : byTotal(this._operations)) {
+         json.append(first ? "" : ",");
+         json(json, "operation", entry.getKey(), entry.getValue());
+         first = false;
+      }
+      json.append("],\"statements\":[");
+      first = true;
+      for (Map.Entry<String, Stats> entry : byTotal(this._shapes)) {
+         json.append(first ? "" : ",");
+         json(json, "shape", entry.getKey(), entry.getValue());
+         first = false;
+      }
+      LatencyHistogram waits = waits();
+      json.append(String.format(Locale.ROOT, "],\"connectionWait\":{\"count\":%d,\"p50Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f}}",
+         waits.getCount(), millis(waits.getPercentile(50)), millis(waits.getPercentile(99)), millis(waits.getMax())));
+      return json.toString();
+   }//end getJson
+
+   private static void json(StringBuilder json, String key, String name, Stats stats) {
+      json.append('{').append(quote(key)).append(':').append(quote(name));
+      json.append(String.format(Locale.ROOT,
+         ",\"count\":%d,\"totalMs\":%.3f,\"p50Ms\":%.3f,\"p99Ms\":%.3f,\"p999Ms\":%.3f,\"maxMs\":%.3f,\"roundTrips\":%d,\"rows\":%d,\"waitMs\":%.3f}",
+         stats.latency.getCount(), millis(stats.latency.getTotal()), millis(stats.latency.getPercentile(50)),
+         millis(stats.latency.getPercentile(99)), millis(stats.latency.getPercentile(99.9)), millis(stats.latency.getMax()),
+         stats.roundTrips.get(), stats.rows.get(), millis(stats.waitNanos.get())));
+   }//end json
+
+   static String quote(String value) {
+      StringBuilder quoted = new StringBuilder();
+      quote(value, quoted);
+      return quoted.toString();
+   }//end quote
+
+   // appends a JSON string, for writers that build their own lines.
+   static void quote(String value, StringBuilder out) {
+      out.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\')
+            out.append('\\').append(c);
+         else if (c < 0x20)
+            out.append(String.format("\\u%04x", (int) c));
+         else
+            out.append(c);
+      }
+      out.append('"');
+   }//end quote
+
+   public long getOperationCount() {
+      long count = 0;
+      for (Stats stats : this._operations.values())
+         count += stats.latency.getCount();
+      return count;
+   }
+
+   public long getStatementCount() {
+      long count = 0;
+      for (Stats stats : this._shapes.values())
+         count += stats.latency.getCount();
+      return count;
+   }
+
+   public double getConnectionWaitP99Millis() {
+      return millis(waits().getPercentile(99));
+   }
+
+   public double operationP99Millis(String operation) {
+      Stats stats = this._operations.get(operation);
+      return stats == null ? 0 : millis(stats.latency.getPercentile(99));
+   }
+
+   public void reset() {
+      this._operations.clear();
+      this._shapes.clear();
+      waits().reset();
+   }
+
+   /**
+    * Registers the metrics with the platform MBean server, as amazon:type=Metrics.
+    */
+   public void register() {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName("amazon:type=Metrics");
+         if (server.isRegistered(name))
+            server.unregisterMBean(name);
+         server.registerMBean(this, name);
+      }catch (JMException e) {
+         System.err.println("Metrics not registered with JMX: " + e.getMessage());
+      }
+   }//end register
+
+   /**
+    * Appends the metrics to a file every interval, until stopped.
+    *
+    * @param file the file; one ending in .json gets a JSON object per line
+    * @param seconds the interval
+    */
+   public synchronized void startDump(String file, final long seconds) {
+      this._dumpFile = file;
+      this._dumper = new Thread(new Runnable() {
+         public void run() {
+            while (true) {
+               try {
+                  Thread.sleep(seconds * 1000);
+               }catch (InterruptedException e) {
+                  return;
+               }
+               dump();
+            }
+         }
+      }, "metrics-dump");
+      this._dumper.setDaemon(true);
+      this._dumper.start();
+   }//end startDump
+
+   /**
+    * Stops the periodic dump after writing the metrics one last time.
+    */
+   public void stop() {
+      Thread dumper;
+      synchronized (this) {
+         dumper = this._dumper;
+         this._dumper = null;
+      }
+      if (dumper == null)
+         return;
+      dumper.interrupt();
+      try {
+         dumper.join();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      dump();
+   }//end stop
+
+   private void dump() {
+      try {
+         Writer out = new FileWriter(this._dumpFile, true);
+         try {
+            out.write(this._dumpFile.endsWith(".json") ? getJson() + "\n" : getText() + "\n");
+         } finally {
+            out.close();
+         }
+      }catch (IOException e) {
+         System.err.println("Metrics not written to " + this._dumpFile + ": " + e.getMessage());
+      }
+   }//end dump
+}//end Metrics
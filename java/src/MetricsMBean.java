@@ -0,0 +1,32 @@
+/**
+ * The management interface of Metrics, registered as amazon:type=Metrics.
+ *
+ */
+public interface MetricsMBean {
+
+   /**
+    * @return the report of every operation and statement shape, as text
+    */
+   String getText();
+
+   /**
+    * @return the same report as one JSON object
+    */
+   String getJson();
+
+   long getOperationCount();
+
+   long getStatementCount();
+
+   double getConnectionWaitP99Millis();
+
+   /**
+    * @return the p99 latency of a menu operation in milliseconds, 0 if it never ran
+    */
+   double operationP99Millis(String operation);
+
+   /**
+    * Forgets everything counted so far.
+    */
+   void reset();
+}//end MetricsMBean
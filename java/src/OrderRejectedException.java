@@ -0,0 +1,48 @@
+import java.sql.SQLException;
+
+/**
+ * Thrown when the placeOrder database function turns an order down. The
+ * reason tells the caller whether asking again with other input can help.
+ *
+ */
+public class OrderRejectedException extends SQLException {
+
+   private static final long serialVersionUID = 1L;
+
+   public enum Reason {
+      NO_STORE("AM001"),
+      TOO_FAR("AM002"),
+      NO_PRODUCT("AM003"),
+      INSUFFICIENT_STOCK("AM004"),
+      BAD_QUANTITY("AM005");
+
+      final String sqlState;
+
+      Reason(String sqlState) {
+         this.sqlState = sqlState;
+      }
+   }//end Reason
+
+   private final Reason _reason;
+
+   public OrderRejectedException(Reason reason, String message) {
+      super(message, reason.sqlState);
+      this._reason = reason;
+   }
+
+   public Reason getReason() {
+      return this._reason;
+   }
+
+   /**
+    * @return the rejection the exception stands for, or null if it is an
+    *         ordinary database error
+    */
+   static Reason reasonOf(SQLException e) {
+      for (Reason reason : Reason.values()) {
+         if (reason.sqlState.equals(e.getSQLState()))
+            return reason;
+      }
+      return null;
+   }//end reasonOf
+}//end OrderRejectedException
@@ -0,0 +1,265 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class keeps the monthly partitions of Orders and ProductUpdates,
+ * see partitions.sql. A thread creates the partitions of the coming months
+ * when it starts and once a day after, so writes never meet a month
+ * without one.
+ *
+ * Old partitions are archived one at a time: detached from their table,
+ * written to a gzipped CSV file with COPY TO STDOUT, and dropped. The
+ * detach is CONCURRENTLY where the server has it, which waits for the
+ * statements using the table instead of blocking them, so orders keep
+ * being placed while a month is archived. A partition detached by an
+ * archive that stopped halfway is archived by the next one.
+ *
+ */
+public class PartitionMaintainer {
+
+   public static final int DEFAULT_MONTHS_AHEAD = 3;
+
+   // how often the coming partitions are checked.
+   static final long MAINTAIN_MILLIS = 24 * 60 * 60 * 1000;
+
+   /**
+    * One archived partition.
+    */
+   public static class Archive {
+      final String partition;
+      final File file;
+      final long rows;
+
+      Archive(String partition, File file, long rows) {
+         this.partition = partition;
+         this.file = file;
+         this.rows = rows;
+      }
+
+      public String getPartition() { return this.partition; }
+      public File getFile() { return this.file; }
+      public long getRows() { return this.rows; }
+
+      @Override
+      public String toString() {
+         return this.partition + ": " + this.rows + " rows to " + this.file;
+      }
+   }//end Archive
+
+   private final Amazon _esql;
+   private final int _monthsAhead;
+
+   private volatile boolean _running = false;
+   private Thread _worker = null;
+
+   /**
+    * @param esql the program, whose connection pool the partitions are kept with
+    * @param monthsAhead how many months after the current one get a partition
+    */
+   public PartitionMaintainer(Amazon esql, int monthsAhead) {
+      this._esql = esql;
+      this._monthsAhead = monthsAhead;
+   }//end PartitionMaintainer
+
+   /**
+    * Creates the missing partitions of the current and coming months.
+    *
+    * @return the number of partitions created
+    * @throws java.sql.SQLException when they could not be created
+    */
+   public int maintain() throws SQLException {
+      return this._esql.executeQueryAndReturnBatch("SELECT maintainPartitions(?)", new ColumnBatch(1), this._monthsAhead).getInt(0, 0);
+   }//end maintain
+
+   /**
+    * Starts the thread that creates the coming partitions, which runs once
+    * right away.
+    */
+   public synchronized void start() {
+      this._running = true;
+      this._worker = new Thread(new Runnable() {
+         public void run() {
+            work();
+         }
+      }, "partition-maintainer");
+      this._worker.setDaemon(true);
+      this._worker.start();
+   }//end start
+
+   /**
+    * Stops the thread.
+    */
+   public void stop() {
+      Thread worker;
+      synchronized (this) {
+         this._running = false;
+         worker = this._worker;
+         this._worker = null;
+      }
+      if (worker == null)
+         return;
+      worker.interrupt();
+      try {
+         worker.join();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end stop
+
+   private void work() {
+      while (this._running) {
+         try {
+            maintain();
+         }catch (SQLException e) {
+            System.err.println("Partitions not created: " + e.getMessage());
+         }
+         try {
+            Thread.sleep(MAINTAIN_MILLIS);
+         }catch (InterruptedException e) {
+            return;
+         }
+      }
+   }//end work
+
+   /**
+    * Archives the partitions holding only rows from before the given number
+    * of whole months, counting the current one, to files in a directory.
+    *
+    * @param monthsKept how many months of partitions stay, at least 1
+    * @param dir the directory of the archive files, created if missing
+    * @return the partitions archived, oldest first
+    * @throws java.sql.SQLException when a partition could not be detached, read or dropped
+    * @throws java.io.IOException when an archive file could not be written
+    */
+   public List<Archive> archive(int monthsKept, File dir) throws SQLException, IOException {
+      if (monthsKept < 1)
+         throw new IllegalArgumentException("The current month is always kept");
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create " + dir);
+      List<List<String>> expired = this._esql.executeQueryAndReturnResult(
+         "SELECT parent, partition FROM partitionsBefore(date_trunc('month', localtimestamp) - ? * interval '1 month')"
+         + " UNION ALL SELECT NULL, relname::text FROM pg_class WHERE relname ~ '^(orders|productupdates)_y[0-9]{4}m[0-9]{2}$'"
+         + " AND relkind = 'r' AND NOT relispartition AND relnamespace = current_schema()::regnamespace",
+         monthsKept - 1);
+      List<Archive> archived = new ArrayList<Archive>();
+      ConnectionPool.PooledConnection pooled = this._esql.getPool().acquire();
+      try {
+         Connection conn = pooled.getConnection();
+         for (List<String> partition : expired) {
+            if (partition.get(0) != null)
+               detach(conn, partition.get(0), partition.get(1));
+            archived.add(archive(conn, partition.get(1), dir));
+         }
+      } finally {
+         this._esql.getPool().release(pooled);
+      }
+      return archived;
+   }//end archive
+
+   /*
+    * Detaches a partition, in autocommit since a concurrent detach runs in
+    * transactions of its own. One left pending by an interrupted detach is
+    * finished instead.
+    */
+   private static void detach(Connection conn, String parent, String partition) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         if (conn.getMetaData().getDatabaseMajorVersion() < 14) {
+            stmt.execute("ALTER TABLE " + parent + " DETACH PARTITION " + partition);
+            return;
+         }
+         try {
+            stmt.execute("ALTER TABLE " + parent + " DETACH PARTITION " + partition + " CONCURRENTLY");
+         }catch (SQLException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("pending detach"))
+               throw e;
+            stmt.execute("ALTER TABLE " + parent + " DETACH PARTITION " + partition + " FINALIZE");
+         }
+      } finally {
+         stmt.close();
+      }
+   }//end detach
+
+   /*
+    * Writes a detached partition to <dir>/<partition>.csv.gz, through a
+    * temporary file so a file of that name is always complete, and drops
+    * it. An archive of a month archived before gets a number.
+    */
+   private static Archive archive(Connection conn, String partition, File dir) throws SQLException, IOException {
+      File file = new File(dir, partition + ".csv.gz");
+      for (int n = 1; file.exists(); n++)
+         file = new File(dir, partition + "." + n + ".csv.gz");
+      File temp = new File(dir, file.getName() + ".tmp");
+      long rows;
+      OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+      try {
+         rows = copyOut(conn, partition, out);
+      }catch (SQLException e) {
+         out.close();
+         temp.delete();
+         throw e;
+      }
+      out.close();
+      if (!temp.renameTo(file))
+         throw new IOException("could not rename " + temp + " to " + file);
+      Statement stmt = conn.createStatement();
+      try {
+         stmt.execute("DROP TABLE " + partition);
+      } finally {
+         stmt.close();
+      }
+      return new Archive(partition, file, rows);
+   }//end archive
+
+   /*
+    * Writes the rows of a table as CSV with a header, with COPY TO STDOUT
+    * where the driver has it, otherwise from a streamed query.
+    */
+   private static long copyOut(Connection conn, String table, OutputStream out) throws SQLException, IOException {
+      Object copyManager = BulkLoader.copyManager(conn);
+      if (copyManager != null) {
+         return (Long) BulkLoader.invoke(BulkLoader.method("org.postgresql.copy.CopyManager", "copyOut", String.class, OutputStream.class),
+            copyManager, "COPY " + table + " TO STDOUT WITH (FORMAT csv, HEADER)", out);
+      }
+      Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+      long rows = 0;
+      // the driver only uses a cursor outside of autocommit
+      conn.setAutoCommit(false);
+      Statement stmt = conn.createStatement();
+      try {
+         stmt.setFetchSize(Amazon.DEFAULT_FETCH_SIZE);
+         ResultSet rs = stmt.executeQuery("SELECT * FROM " + table);
+         ResultSetMetaData meta = rs.getMetaData();
+         for (int c = 1; c <= meta.getColumnCount(); c++)
+            writer.write((c == 1 ? "" : ",") + meta.getColumnName(c));
+         writer.write('\n');
+         while (rs.next()) {
+            for (int c = 1; c <= meta.getColumnCount(); c++)
+               writer.write((c == 1 ? "" : ",") + ReportExporter.csv(rs.getString(c)));
+            writer.write('\n');
+            rows++;
+         }
+         rs.close();
+         writer.flush();
+      } finally {
+         stmt.close();
+         conn.commit();
+         conn.setAutoCommit(true);
+      }
+      return rows;
+   }//end copyOut
+}//end PartitionMaintainer
@@ -0,0 +1,144 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps, for every store, the products ranked by total units
+ * ordered and the customers ranked by total units bought. The rankings are
+ * loaded once with two aggregate queries and from then on moved along with
+ * every order this program places or bulk loads, so the most popular
+ * entries of a store are read off the front of a sorted set instead of
+ * scanning Orders. Products are ranked by productID. Orders
+ * written by other programs are only picked up by the next load().
+ *
+ */
+public class PopularityTracker {
+
+   /**
+    * A product or customer with its total units ordered at one store.
+    */
+   public static class Entry<K> {
+      final K key;
+      final long units;
+
+      Entry(K key, long units) {
+         this.key = key;
+         this.units = units;
+      }
+
+      public K getKey() {
+         return this.key;
+      }
+
+      public long getUnits() {
+         return this.units;
+      }
+   }//end Entry
+
+   /*
+    * The totals of one store, with a set sorted by total so the top
+    * entries come first. Updating a total moves its one entry in the set.
+    */
+   static class Ranking<K extends Comparable<K>> {
+      private final Map<K, Entry<K>> _totals = new HashMap<K, Entry<K>>();
+      private final TreeSet<Entry<K>> _ranked = new TreeSet<Entry<K>>(new Comparator<Entry<K>>() {
+         public int compare(Entry<K> a, Entry<K> b) {
+            if (a.units != b.units)
+               return a.units > b.units ? -1 : 1;
+            return a.key.compareTo(b.key);
+         }
+      });
+
+      synchronized void add(K key, long units) {
+         Entry<K> old = this._totals.get(key);
+         if (old != null) {
+            this._ranked.remove(old);
+            units += old.units;
+         }
+         Entry<K> entry = new Entry<K>(key, units);
+         this._totals.put(key, entry);
+         this._ranked.add(entry);
+      }//end add
+
+      synchronized List<Entry<K>> top(int k) {
+         List<Entry<K>> top = new ArrayList<Entry<K>>(k);
+         Iterator<Entry<K>> it = this._ranked.iterator();
+         while (top.size() < k && it.hasNext())
+            top.add(it.next());
+         return top;
+      }//end top
+   }//end Ranking
+
+   private final Map<Integer, Ranking<Integer>> _products = new ConcurrentHashMap<Integer, Ranking<Integer>>();
+   private final Map<Integer, Ranking<Integer>> _customers = new ConcurrentHashMap<Integer, Ranking<Integer>>();
+
+   private static <K extends Comparable<K>> Ranking<K> rankingOf(Map<Integer, Ranking<K>> rankings, int storeID) {
+      Ranking<K> ranking = rankings.get(storeID);
+      if (ranking == null) {
+         rankings.putIfAbsent(storeID, new Ranking<K>());
+         ranking = rankings.get(storeID);
+      }
+      return ranking;
+   }//end rankingOf
+
+   /**
+    * Rebuilds every ranking from the Orders table.
+    *
+    * @throws java.sql.SQLException when the totals could not be read
+    */
+   public void load(Amazon esql) throws SQLException {
+      final Map<Integer, Ranking<Integer>> products = new HashMap<Integer, Ranking<Integer>>();
+      final Map<Integer, Ranking<Integer>> customers = new HashMap<Integer, Ranking<Integer>>();
+      esql.executeQueryStreaming(
+         "SELECT storeID, productID, SUM(unitsOrdered) FROM Orders GROUP BY storeID, productID",
+         Amazon.DEFAULT_FETCH_SIZE, new RowHandler() {
+            public boolean row(ResultSet rs) throws SQLException {
+               rankingOf(products, rs.getInt(1)).add(rs.getInt(2), rs.getLong(3));
+               return true;
+            }
+         });
+      esql.executeQueryStreaming(
+         "SELECT storeID, customerID, SUM(unitsOrdered) FROM Orders GROUP BY storeID, customerID",
+         Amazon.DEFAULT_FETCH_SIZE, new RowHandler() {
+            public boolean row(ResultSet rs) throws SQLException {
+               rankingOf(customers, rs.getInt(1)).add(rs.getInt(2), rs.getLong(3));
+               return true;
+            }
+         });
+      this._products.clear();
+      this._products.putAll(products);
+      this._customers.clear();
+      this._customers.putAll(customers);
+   }//end load
+
+   /**
+    * Counts an order that has been committed.
+    */
+   public void recordOrder(int storeID, int customerID, int productID, long units) {
+      rankingOf(this._products, storeID).add(productID, units);
+      rankingOf(this._customers, storeID).add(customerID, units);
+   }//end recordOrder
+
+   /**
+    * @return up to k productIDs of the store, most units ordered first
+    */
+   public List<Entry<Integer>> topProducts(int storeID, int k) {
+      Ranking<Integer> ranking = this._products.get(storeID);
+      return ranking == null ? new ArrayList<Entry<Integer>>() : ranking.top(k);
+   }
+
+   /**
+    * @return up to k customerIDs of the store, most units bought first
+    */
+   public List<Entry<Integer>> topCustomers(int storeID, int k) {
+      Ranking<Integer> ranking = this._customers.get(storeID);
+      return ranking == null ? new ArrayList<Entry<Integer>>() : ranking.top(k);
+   }
+}//end PopularityTracker
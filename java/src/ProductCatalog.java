@@ -0,0 +1,337 @@
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class keeps the products of every store in memory: stock and prices
+ * by product ID, with the names left to the product dictionary. A store is
+ * loaded with one query the first time it is asked for and from then on
+ * kept up to date by the notifications the Product triggers send on the
+ * product_changed channel; a listener thread holds its own connection and
+ * applies every change as it is committed. If the listener loses its
+ * connection every store is dropped and loaded again on the next use,
+ * since changes may have been missed meanwhile.
+ *
+ * The same listener keeps the program's store and warehouse location
+ * indexes current from the location_changed notifications, reading every
+ * changed row again, and reloads them whole after it reconnects.
+ *
+ * Products asked for by name are looked up through the product
+ * dictionary, which ignores trailing blanks the way Postgres compares CHAR
+ * values.
+ *
+ */
+public class ProductCatalog {
+
+   public static final String CHANNEL = "product_changed";
+
+   // changes to Store and Warehouse rows, for the location indexes.
+   public static final String LOCATION_CHANNEL = "location_changed";
+
+   // how long the listener waits for notifications per poll.
+   static final int POLL_MILLIS = 500;
+
+   /**
+    * One Product row.
+    */
+   public static class Product {
+      final int storeID;
+      final int productID;
+      final int numberOfUnits;
+      final double pricePerUnit;
+
+      Product(int storeID, int productID, int numberOfUnits, double pricePerUnit) {
+         this.storeID = storeID;
+         this.productID = productID;
+         this.numberOfUnits = numberOfUnits;
+         this.pricePerUnit = pricePerUnit;
+      }
+
+      public int getStoreID() { return this.storeID; }
+      public int getProductID() { return this.productID; }
+      public int getNumberOfUnits() { return this.numberOfUnits; }
+      public double getPricePerUnit() { return this.pricePerUnit; }
+   }//end Product
+
+   /**
+    * Told about every product change the listener receives, whether or not
+    * the store is loaded.
+    */
+   public interface ChangeListener {
+      void productChanged(int storeID, int productID, int numberOfUnits, boolean deleted);
+   }
+
+   private final Amazon _esql;
+   private final List<ChangeListener> _listeners = new CopyOnWriteArrayList<ChangeListener>();
+
+   // the products of each loaded store, by product ID.
+   private final ConcurrentHashMap<Integer, Map<Integer, Product>> _stores = new ConcurrentHashMap<Integer, Map<Integer, Product>>();
+
+   // notifications seen per store, loaded or not, so a load that raced
+   // with a change can tell it may have read the old row.
+   private final ConcurrentHashMap<Integer, Integer> _changes = new ConcurrentHashMap<Integer, Integer>();
+
+   private volatile boolean _running = false;
+   private Thread _listener = null;
+
+   public ProductCatalog(Amazon esql) {
+      this._esql = esql;
+   }
+
+   // strips the blanks a CHAR column pads with.
+   static String rtrim(String name) {
+      int end = name.length();
+      while (end > 0 && name.charAt(end - 1) == ' ')
+         end--;
+      return name.substring(0, end);
+   }
+
+   /*
+    * Returns the products of the store, loading them if the store is not
+    * cached yet. Maps are replaced, never changed, so readers of a cached
+    * store need no lock. A load that a change notification overtook is
+    * used once but not kept.
+    */
+   private Map<Integer, Product> storeOf(int storeID) throws SQLException {
+      Map<Integer, Product> products = this._stores.get(storeID);
+      if (products != null)
+         return products;
+      Integer before = this._changes.get(storeID);
+      ColumnBatch batch = this._esql.executeQueryAndReturnBatch(
+         "SELECT storeID, productID, numberOfUnits, pricePerUnit FROM Product WHERE storeID = ?", new ColumnBatch(), storeID);
+      products = new HashMap<Integer, Product>();
+      for (int row = 0; row < batch.getRowCount(); row++) {
+         int productID = batch.getInt(row, 1);
+         products.put(productID, new Product(storeID, productID, batch.getInt(row, 2), batch.getDouble(row, 3)));
+      }
+      // under the lock apply() holds, so no change lands between the
+      // check and the put and is then overwritten by the old rows.
+      synchronized (this) {
+         Integer after = this._changes.get(storeID);
+         if (before == null ? after != null : !before.equals(after))
+            return products;
+         Map<Integer, Product> raced = this._stores.putIfAbsent(storeID, products);
+         return raced != null ? raced : products;
+      }
+   }//end storeOf
+
+   /**
+    * @return the product or null if the store does not sell it
+    * @throws java.sql.SQLException when the store could not be loaded
+    */
+   public Product get(int storeID, String productName) throws SQLException {
+      int productID = this._esql.getProductDictionary().id(productName);
+      return productID < 0 ? null : get(storeID, productID);
+   }
+
+   /**
+    * @return the product or null if the store does not sell it
+    * @throws java.sql.SQLException when the store could not be loaded
+    */
+   public Product get(int storeID, int productID) throws SQLException {
+      return storeOf(storeID).get(productID);
+   }
+
+   public boolean exists(int storeID, String productName) throws SQLException {
+      return get(storeID, productName) != null;
+   }
+
+   /**
+    * @return every product of the store, by name
+    * @throws java.sql.SQLException when the store could not be loaded
+    */
+   public List<Product> products(int storeID) throws SQLException {
+      final ProductDictionary dictionary = this._esql.getProductDictionary();
+      List<Product> products = new ArrayList<Product>(storeOf(storeID).values());
+      final Map<Product, String> names = new HashMap<Product, String>();
+      for (Product product : products)
+         names.put(product, dictionary.name(product.productID));
+      Collections.sort(products, new Comparator<Product>() {
+         public int compare(Product a, Product b) {
+            return names.get(a).compareTo(names.get(b));
+         }
+      });
+      return products;
+   }
+
+   /*
+    * Replaces or removes one product of a loaded store. Stores that are not
+    * loaded are left alone; they read the change when they load.
+    */
+   private synchronized void apply(int storeID, int productID, Product product) {
+      Integer changes = this._changes.get(storeID);
+      this._changes.put(storeID, changes == null ? 1 : changes + 1);
+      Map<Integer, Product> products = this._stores.get(storeID);
+      if (products == null)
+         return;
+      Map<Integer, Product> changed = new HashMap<Integer, Product>(products);
+      if (product == null)
+         changed.remove(productID);
+      else
+         changed.put(productID, product);
+      this._stores.put(storeID, changed);
+   }//end apply
+
+   public void addListener(ChangeListener listener) {
+      this._listeners.add(listener);
+   }
+
+   /**
+    * Drops every loaded store.
+    */
+   public void clear() {
+      this._stores.clear();
+   }
+
+   /*
+    * Applies one notification. The payload is the operation, U for an
+    * insert or update and D for a delete, then storeID, numberOfUnits,
+    * pricePerUnit and productID, comma separated.
+    */
+   void notified(String payload) {
+      String[] fields = payload.split(",");
+      if (fields.length < 5)
+         return;
+      int storeID = Integer.parseInt(fields[1]);
+      int units = Integer.parseInt(fields[2]);
+      int productID = Integer.parseInt(fields[4]);
+      boolean deleted = fields[0].equals("D");
+      if (deleted)
+         apply(storeID, productID, null);
+      else
+         apply(storeID, productID, new Product(storeID, productID, units, Double.parseDouble(fields[3])));
+      for (ChangeListener listener : this._listeners)
+         listener.productChanged(storeID, productID, units, deleted);
+   }//end notified
+
+   /*
+    * Applies one location notification: store or warehouse, then the ID.
+    */
+   void locationNotified(String payload) throws SQLException {
+      String[] fields = payload.split(",");
+      if (fields.length == 2)
+         this._esql.refreshLocation(fields[0], Integer.parseInt(fields[1]));
+   }//end locationNotified
+
+   /**
+    * Starts the listener thread.
+    */
+   public synchronized void start() {
+      if (this._running)
+         return;
+      this._running = true;
+      this._listener = new Thread(new Runnable() {
+         public void run() {
+            listen();
+         }
+      }, "product-catalog-listener");
+      this._listener.setDaemon(true);
+      this._listener.start();
+   }//end start
+
+   /**
+    * Stops the listener thread and waits for it to close its connection.
+    */
+   public void stop() {
+      Thread listener;
+      synchronized (this) {
+         this._running = false;
+         listener = this._listener;
+      }
+      if (listener != null) {
+         listener.interrupt();
+         try {
+            listener.join(2 * POLL_MILLIS);
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }//end stop
+
+   // listens until stopped, reconnecting after a lost connection.
+   private void listen() {
+      while (this._running) {
+         Connection conn = null;
+         try {
+            conn = this._esql.getPool().openDedicated();
+            Statement stmt = conn.createStatement();
+            stmt.execute("LISTEN " + CHANNEL);
+            stmt.execute("LISTEN " + LOCATION_CHANNEL);
+            // whatever changed before LISTEN took effect was not seen
+            clear();
+            this._esql.refreshSpatialIndexes();
+            poll(conn, stmt);
+         }catch (Exception e) {
+            if (this._running) {
+               clear();
+               try {
+                  Thread.sleep(POLL_MILLIS);
+               }catch (InterruptedException ie) {
+                  return;
+               }
+            }
+         } finally {
+            if (conn != null) {
+               try {
+                  conn.close();
+               }catch (SQLException e) {
+                  // ignored.
+               }
+            }
+         }
+      }
+   }//end listen
+
+   /*
+    * Reads notifications through the driver's PGConnection interface,
+    * looked up by reflection so this compiles against any driver. Newer
+    * drivers wait on the socket for a timeout; older ones only hand out
+    * what arrived with the last query, so those are polled with one.
+    */
+   private void poll(Connection conn, Statement stmt) throws Exception {
+      Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+      Object pg = pgConnection.isInstance(conn) ? conn : conn.unwrap(pgConnection);
+      Method waitFor = null;
+      Method now = pgConnection.getMethod("getNotifications");
+      try {
+         waitFor = pgConnection.getMethod("getNotifications", int.class);
+      }catch (NoSuchMethodException e) {
+         // an older driver.
+      }
+      Method parameter = null;
+      Method name = null;
+      while (this._running) {
+         Object notifications;
+         if (waitFor != null)
+            notifications = waitFor.invoke(pg, POLL_MILLIS);
+         else {
+            Thread.sleep(POLL_MILLIS);
+            stmt.execute("SELECT 1");
+            notifications = now.invoke(pg);
+         }
+         if (notifications == null)
+            continue;
+         for (int i = 0; i < Array.getLength(notifications); i++) {
+            Object notification = Array.get(notifications, i);
+            if (parameter == null) {
+               parameter = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+               name = Class.forName("org.postgresql.PGNotification").getMethod("getName");
+            }
+            if (LOCATION_CHANNEL.equals(name.invoke(notification)))
+               locationNotified((String) parameter.invoke(notification));
+            else
+               notified((String) parameter.invoke(notification));
+         }
+      }
+   }//end poll
+}//end ProductCatalog
@@ -0,0 +1,89 @@
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class maps product names to their IDs in ProductNames and back.
+ * Every other table refers to a product by its integer ID, so the program
+ * resolves a name once when it is typed in and again only to show it. A
+ * name never changes its ID, so every pair read is kept for good; the
+ * whole table is read at start and a name or ID seen for the first time
+ * after that costs one query.
+ *
+ * Names are kept without the CHAR padding and looked up the way Postgres
+ * compares CHAR values, ignoring trailing blanks.
+ *
+ */
+public class ProductDictionary {
+
+   private final Amazon _esql;
+
+   private final ConcurrentHashMap<String, Integer> _ids = new ConcurrentHashMap<String, Integer>();
+   private final ConcurrentHashMap<Integer, String> _names = new ConcurrentHashMap<Integer, String>();
+
+   public ProductDictionary(Amazon esql) {
+      this._esql = esql;
+   }
+
+   /**
+    * Reads every product name.
+    *
+    * @throws java.sql.SQLException when ProductNames could not be read
+    */
+   public void load() throws SQLException {
+      ColumnBatch batch = this._esql.executeQueryAndReturnBatch(
+         "SELECT productID, productName FROM ProductNames", new ColumnBatch());
+      for (int row = 0; row < batch.getRowCount(); row++)
+         put(batch.getInt(row, 0), batch.getString(row, 1));
+   }//end load
+
+   private void put(int productID, String productName) {
+      String name = ProductCatalog.rtrim(productName);
+      this._ids.put(name, productID);
+      this._names.put(productID, name);
+   }
+
+   /**
+    * @return the ID of the product name, or -1 if no store ever sold it
+    * @throws java.sql.SQLException when an unknown name could not be looked up
+    */
+   public int id(String productName) throws SQLException {
+      String name = ProductCatalog.rtrim(productName);
+      Integer productID = this._ids.get(name);
+      if (productID != null)
+         return productID;
+      ColumnBatch batch = this._esql.executeQueryAndReturnBatch(
+         "SELECT productID, productName FROM ProductNames WHERE productName = ?", new ColumnBatch(1), name);
+      if (batch.getRowCount() == 0)
+         return -1;
+      put(batch.getInt(0, 0), batch.getString(0, 1));
+      return batch.getInt(0, 0);
+   }//end id
+
+   /**
+    * @return the name of the product, without the CHAR padding
+    * @throws java.sql.SQLException when the ID is unknown or could not be looked up
+    */
+   public String name(int productID) throws SQLException {
+      String name = this._names.get(productID);
+      if (name != null)
+         return name;
+      ColumnBatch batch = this._esql.executeQueryAndReturnBatch(
+         "SELECT productID, productName FROM ProductNames WHERE productID = ?", new ColumnBatch(1), productID);
+      if (batch.getRowCount() == 0)
+         throw new SQLException("No product " + productID);
+      put(productID, batch.getString(0, 1));
+      return this._names.get(productID);
+   }//end name
+
+   /**
+    * @return the number of names read so far
+    */
+   public int size() {
+      return this._names.size();
+   }
+
+   @Override
+   public String toString() {
+      return "Product dictionary: " + size() + " names";
+   }
+}//end ProductDictionary
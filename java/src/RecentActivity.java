@@ -0,0 +1,358 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the latest orders per customer, per store and overall,
+ * and the latest product updates per store, in small bounded ring buffers
+ * that every write of this program feeds. A buffer is seeded from the
+ * database the first time it is read, so after a cold start the first view
+ * of a customer or store costs one query and later views none. Writes made
+ * by other programs are only seen in buffers that are still cold.
+ *
+ * Orders and ProductUpdates are partitioned by month, so a buffer is
+ * seeded from the rows since the start of last month first, which only
+ * reads the latest two partitions. Only when those have too few rows are
+ * the older partitions read, newest first.
+ *
+ */
+public class RecentActivity {
+
+   // entries kept per buffer; views may ask for at most this many.
+   public static final int DEFAULT_CAPACITY = 16;
+
+   /**
+    * One order. The customer name is null when the order was recorded by
+    * the program that placed it; it is kept without the CHAR padding. The
+    * product is its productID, named by the product dictionary.
+    */
+   public static class Order {
+      final int orderNumber;
+      final int customerID;
+      final String customerName;
+      final int storeID;
+      final int productID;
+      final int unitsOrdered;
+      final Timestamp orderTime;
+
+      public Order(int orderNumber, int customerID, String customerName, int storeID, int productID, int unitsOrdered, Timestamp orderTime) {
+         this.orderNumber = orderNumber;
+         this.customerID = customerID;
+         this.customerName = customerName;
+         this.storeID = storeID;
+         this.productID = productID;
+         this.unitsOrdered = unitsOrdered;
+         this.orderTime = orderTime;
+      }
+
+      public int getOrderNumber() { return this.orderNumber; }
+      public int getCustomerID() { return this.customerID; }
+      public String getCustomerName() { return this.customerName; }
+      public int getStoreID() { return this.storeID; }
+      public int getProductID() { return this.productID; }
+      public int getUnitsOrdered() { return this.unitsOrdered; }
+      public Timestamp getOrderTime() { return this.orderTime; }
+   }//end Order
+
+   /**
+    * One ProductUpdates row, with the product as its productID.
+    */
+   public static class Update {
+      final int updateNumber;
+      final int managerID;
+      final int storeID;
+      final int productID;
+      final Timestamp updatedOn;
+
+      public Update(int updateNumber, int managerID, int storeID, int productID, Timestamp updatedOn) {
+         this.updateNumber = updateNumber;
+         this.managerID = managerID;
+         this.storeID = storeID;
+         this.productID = productID;
+         this.updatedOn = updatedOn;
+      }
+
+      public int getUpdateNumber() { return this.updateNumber; }
+      public int getManagerID() { return this.managerID; }
+      public int getStoreID() { return this.storeID; }
+      public int getProductID() { return this.productID; }
+      public Timestamp getUpdatedOn() { return this.updatedOn; }
+   }//end Update
+
+   static final Comparator<Order> NEWEST_ORDER_FIRST = new Comparator<Order>() {
+      public int compare(Order a, Order b) {
+         if (a.orderNumber == b.orderNumber)
+            return 0;
+         int c = b.orderTime.compareTo(a.orderTime);
+         return c != 0 ? c : Integer.compare(b.orderNumber, a.orderNumber);
+      }
+   };
+
+   static final Comparator<Update> NEWEST_UPDATE_FIRST = new Comparator<Update>() {
+      public int compare(Update a, Update b) {
+         if (a.updateNumber == b.updateNumber)
+            return 0;
+         int c = b.updatedOn.compareTo(a.updatedOn);
+         return c != 0 ? c : Integer.compare(b.updateNumber, a.updateNumber);
+      }
+   };
+
+   /*
+    * A circular buffer of the newest entries, kept sorted newest first.
+    * Entries usually arrive newest first, which only moves the head back
+    * over the oldest slot; older arrivals are shifted into place and fall
+    * off the end once the buffer is full.
+    */
+   static class Ring<T> {
+      private final Object[] _items;
+      private final Comparator<T> _newestFirst;
+      private int _head = 0;
+      private int _size = 0;
+      private boolean _warm = false;
+
+      Ring(int capacity, Comparator<T> newestFirst) {
+         this._items = new Object[capacity];
+         this._newestFirst = newestFirst;
+      }
+
+      @SuppressWarnings("unchecked")
+      private T at(int i) {
+         return (T) this._items[(this._head + i) % this._items.length];
+      }
+
+      private void set(int i, T item) {
+         this._items[(this._head + i) % this._items.length] = item;
+      }
+
+      synchronized void add(T item) {
+         int capacity = this._items.length;
+         int pos = 0;
+         while (pos < this._size) {
+            int c = this._newestFirst.compare(item, at(pos));
+            if (c == 0)
+               return;        // already there
+            if (c < 0)
+               break;
+            pos++;
+         }
+         if (pos == capacity)
+            return;           // older than everything kept
+         if (pos == 0) {
+            this._head = (this._head - 1 + capacity) % capacity;
+            set(0, item);
+            this._size = Math.min(this._size + 1, capacity);
+            return;
+         }
+         int last = Math.min(this._size, capacity - 1);
+         for (int i = last; i > pos; i--)
+            set(i, at(i - 1));
+         set(pos, item);
+         this._size = Math.min(this._size + 1, capacity);
+      }//end add
+
+      synchronized List<T> latest(int n) {
+         List<T> latest = new ArrayList<T>(Math.min(n, this._size));
+         for (int i = 0; i < this._size && i < n; i++)
+            latest.add(at(i));
+         return latest;
+      }//end latest
+
+      synchronized boolean isWarm() {
+         return this._warm;
+      }
+
+      synchronized void warm(List<T> loaded) {
+         for (T item : loaded)
+            add(item);
+         this._warm = true;
+      }//end warm
+   }//end Ring
+
+   private final int _capacity;
+   private final Map<Integer, Ring<Order>> _byCustomer = new ConcurrentHashMap<Integer, Ring<Order>>();
+   private final Map<Integer, Ring<Order>> _byStore = new ConcurrentHashMap<Integer, Ring<Order>>();
+   private final Ring<Order> _allOrders;
+   private final Map<Integer, Ring<Update>> _updatesByStore = new ConcurrentHashMap<Integer, Ring<Update>>();
+
+   public RecentActivity(int capacity) {
+      this._capacity = capacity;
+      this._allOrders = new Ring<Order>(capacity, NEWEST_ORDER_FIRST);
+   }
+
+   public RecentActivity() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   private <T> Ring<T> ringOf(Map<Integer, Ring<T>> rings, int key, Comparator<T> newestFirst) {
+      Ring<T> ring = rings.get(key);
+      if (ring == null) {
+         rings.putIfAbsent(key, new Ring<T>(this._capacity, newestFirst));
+         ring = rings.get(key);
+      }
+      return ring;
+   }//end ringOf
+
+   /**
+    * Adds an order that has been committed.
+    */
+   public void recordOrder(Order order) {
+      ringOf(this._byCustomer, order.customerID, NEWEST_ORDER_FIRST).add(order);
+      ringOf(this._byStore, order.storeID, NEWEST_ORDER_FIRST).add(order);
+      this._allOrders.add(order);
+   }//end recordOrder
+
+   /**
+    * Adds a product update that has been committed.
+    */
+   public void recordUpdate(Update update) {
+      ringOf(this._updatesByStore, update.storeID, NEWEST_UPDATE_FIRST).add(update);
+   }//end recordUpdate
+
+   private void checkCount(int n) {
+      if (n > this._capacity)
+         throw new IllegalArgumentException("At most " + this._capacity + " recent entries are kept");
+   }
+
+   // the start of the latest two monthly partitions; stable, so the
+   // partitions before it are pruned when the statement starts.
+   static final String LATEST_PARTITIONS = "date_trunc('month', localtimestamp) - interval '1 month'";
+
+   private static final String ORDER_COLUMNS =
+      "o.orderNumber, o.customerID, u.name, o.storeID, o.productID, o.unitsOrdered, o.orderTime";
+
+   private static List<Order> toOrders(ColumnBatch batch) {
+      List<Order> orders = new ArrayList<Order>(batch.getRowCount());
+      for (int row = 0; row < batch.getRowCount(); row++) {
+         orders.add(new Order(batch.getInt(row, 0), batch.getInt(row, 1), batch.getString(row, 2).trim(),
+            batch.getInt(row, 3), batch.getInt(row, 4), batch.getInt(row, 5), new Timestamp(batch.getLong(row, 6))));
+      }
+      return orders;
+   }//end toOrders
+
+   /**
+    * @return the latest n orders of the customer, newest first
+    * @throws java.sql.SQLException when the buffer could not be seeded
+    */
+   public List<Order> ordersOfCustomer(Amazon esql, int customerID, int n) throws SQLException {
+      checkCount(n);
+      Ring<Order> ring = ringOf(this._byCustomer, customerID, NEWEST_ORDER_FIRST);
+      if (!ring.isWarm()) {
+         String query = "SELECT " + ORDER_COLUMNS + " FROM Orders o, Users u WHERE o.customerID = ? AND u.userID = o.customerID%s"
+            + " ORDER BY o.orderTime DESC, o.orderNumber DESC LIMIT ?";
+         List<Order> loaded = toOrders(esql.executeQueryAndReturnBatch(
+            String.format(query, " AND o.orderTime >= " + LATEST_PARTITIONS), new ColumnBatch(), customerID, this._capacity));
+         if (loaded.size() < this._capacity)
+            loaded = toOrders(esql.executeQueryAndReturnBatch(String.format(query, ""), new ColumnBatch(), customerID, this._capacity));
+         ring.warm(loaded);
+      }
+      return ring.latest(n);
+   }//end ordersOfCustomer
+
+   /**
+    * @return the latest n orders over all the given stores, newest first
+    * @throws java.sql.SQLException when the buffers could not be seeded
+    */
+   public List<Order> ordersOfStores(Amazon esql, Collection<Integer> storeIDs, int n) throws SQLException {
+      checkCount(n);
+      // seed every cold store in one query, the latest orders of each
+      List<Object> params = new ArrayList<Object>();
+      for (int storeID : storeIDs) {
+         if (!ringOf(this._byStore, storeID, NEWEST_ORDER_FIRST).isWarm()) {
+            params.add(storeID);
+         }
+      }
+      if (!params.isEmpty()) {
+         Map<Integer, List<Order>> byStore = latestOfStores(esql, params, " AND o.orderTime >= " + LATEST_PARTITIONS);
+         // the stores with too few recent orders look further back
+         List<Object> sparse = new ArrayList<Object>();
+         for (Map.Entry<Integer, List<Order>> store : byStore.entrySet()) {
+            if (store.getValue().size() < this._capacity)
+               sparse.add(store.getKey());
+         }
+         if (!sparse.isEmpty())
+            byStore.putAll(latestOfStores(esql, sparse, ""));
+         for (Map.Entry<Integer, List<Order>> store : byStore.entrySet())
+            ringOf(this._byStore, store.getKey(), NEWEST_ORDER_FIRST).warm(store.getValue());
+      }
+      Ring<Order> merged = new Ring<Order>(n, NEWEST_ORDER_FIRST);
+      for (int storeID : storeIDs) {
+         for (Order order : ringOf(this._byStore, storeID, NEWEST_ORDER_FIRST).latest(n))
+            merged.add(order);
+      }
+      return merged.latest(n);
+   }//end ordersOfStores
+
+   // the latest orders of each store, matching the extra condition, by store.
+   private Map<Integer, List<Order>> latestOfStores(Amazon esql, List<Object> storeIDs, String condition) throws SQLException {
+      List<Order> loaded = toOrders(esql.executeQueryAndReturnBatch(
+         "SELECT " + ORDER_COLUMNS + " FROM (SELECT o.*, row_number() OVER (PARTITION BY o.storeID ORDER BY o.orderTime DESC, o.orderNumber DESC) AS recent"
+         + " FROM Orders o WHERE o.storeID = ANY (CAST(? AS integer[]))" + condition + ") o, Users u WHERE o.recent <= ? AND u.userID = o.customerID",
+         new ColumnBatch(), StatementCache.array(storeIDs), this._capacity));
+      Map<Integer, List<Order>> byStore = new HashMap<Integer, List<Order>>();
+      for (Object storeID : storeIDs)
+         byStore.put((Integer) storeID, new ArrayList<Order>());
+      for (Order order : loaded)
+         byStore.get(order.storeID).add(order);
+      return byStore;
+   }//end latestOfStores
+
+   /**
+    * @return the latest n orders of every store, newest first
+    * @throws java.sql.SQLException when the buffer could not be seeded
+    */
+   public List<Order> allOrders(Amazon esql, int n) throws SQLException {
+      checkCount(n);
+      if (!this._allOrders.isWarm()) {
+         String query = "SELECT " + ORDER_COLUMNS + " FROM Orders o, Users u WHERE u.userID = o.customerID%s"
+            + " ORDER BY o.orderTime DESC, o.orderNumber DESC LIMIT ?";
+         List<Order> loaded = toOrders(esql.executeQueryAndReturnBatch(
+            String.format(query, " AND o.orderTime >= " + LATEST_PARTITIONS), new ColumnBatch(), this._capacity));
+         if (loaded.size() < this._capacity)
+            loaded = toOrders(esql.executeQueryAndReturnBatch(String.format(query, ""), new ColumnBatch(), this._capacity));
+         this._allOrders.warm(loaded);
+      }
+      return this._allOrders.latest(n);
+   }//end allOrders
+
+   /**
+    * @return the latest n product updates of the store, newest first,
+    *         including rows still waiting in the audit log
+    * @throws java.sql.SQLException when the buffer could not be seeded
+    */
+   public List<Update> updatesOfStore(Amazon esql, int storeID, int n) throws SQLException {
+      checkCount(n);
+      Ring<Update> ring = ringOf(this._updatesByStore, storeID, NEWEST_UPDATE_FIRST);
+      if (!ring.isWarm()) {
+         // the log is read first: a row drained after this is in the table,
+         // and one in both is kept once
+         List<Update> unflushed = esql.getAuditLog() == null ? new ArrayList<Update>() : esql.getAuditLog().unflushed(storeID);
+         String query = "SELECT updateNumber, managerID, storeID, productID, updatedOn FROM ProductUpdates WHERE storeID = ?%s"
+            + " ORDER BY updatedOn DESC, updateNumber DESC LIMIT ?";
+         ColumnBatch batch = esql.executeQueryAndReturnBatch(
+            String.format(query, " AND updatedOn >= " + LATEST_PARTITIONS), new ColumnBatch(), storeID, this._capacity);
+         if (batch.getRowCount() < this._capacity)
+            batch = esql.executeQueryAndReturnBatch(String.format(query, ""), new ColumnBatch(), storeID, this._capacity);
+         List<Update> loaded = new ArrayList<Update>(batch.getRowCount() + unflushed.size());
+         Set<Integer> numbers = new HashSet<Integer>();
+         for (int row = 0; row < batch.getRowCount(); row++) {
+            loaded.add(new Update(batch.getInt(row, 0), batch.getInt(row, 1), batch.getInt(row, 2),
+               batch.getInt(row, 3), new Timestamp(batch.getLong(row, 4))));
+            numbers.add(batch.getInt(row, 0));
+         }
+         for (Update update : unflushed) {
+            if (!numbers.contains(update.getUpdateNumber()))
+               loaded.add(update);
+         }
+         ring.warm(loaded);
+      }
+      return ring.latest(n);
+   }//end updatesOfStore
+}//end RecentActivity
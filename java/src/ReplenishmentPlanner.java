@@ -0,0 +1,245 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class plans product supply requests automatically. It scans Product
+ * for items below the threshold of their store, picks the nearest warehouse
+ * for every store from the warehouse location index, and writes all the
+ * requests in one batched transaction. The scan is split into ranges of
+ * store IDs that are read in parallel over the connection pool.
+ *
+ */
+public class ReplenishmentPlanner {
+
+   public static final int DEFAULT_THRESHOLD = 20;
+   public static final int DEFAULT_TARGET_LEVEL = 100;
+
+   // requests are sent to the server in batches of this many rows.
+   static final int BATCH_SIZE = 500;
+
+   private final Amazon _esql;
+   private int _defaultThreshold = DEFAULT_THRESHOLD;
+   private int _targetLevel = DEFAULT_TARGET_LEVEL;
+   private final Map<Integer, Integer> _thresholds = new HashMap<Integer, Integer>();
+
+   /**
+    * One supply request the planner decided to place.
+    */
+   public static class SupplyRequest {
+      final int managerID;
+      final int warehouseID;
+      final int storeID;
+      final int productID;
+      final String productName;
+      final int unitsRequested;
+
+      SupplyRequest(int managerID, int warehouseID, int storeID, int productID, String productName, int unitsRequested) {
+         this.managerID = managerID;
+         this.warehouseID = warehouseID;
+         this.storeID = storeID;
+         this.productID = productID;
+         this.productName = productName;
+         this.unitsRequested = unitsRequested;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("store %d: %d x %s from warehouse %d", this.storeID, this.unitsRequested, this.productName, this.warehouseID);
+      }
+   }//end SupplyRequest
+
+   public ReplenishmentPlanner(Amazon esql) {
+      this._esql = esql;
+   }
+
+   /**
+    * Items with fewer units than the threshold of their store are restocked.
+    */
+   public void setDefaultThreshold(int threshold) {
+      this._defaultThreshold = threshold;
+   }
+
+   public void setThreshold(int storeID, int threshold) {
+      this._thresholds.put(storeID, threshold);
+   }
+
+   /**
+    * Restocked items are brought back up to this many units.
+    */
+   public void setTargetLevel(int targetLevel) {
+      this._targetLevel = targetLevel;
+   }
+
+   /**
+    * Reads per-store thresholds from a CSV file with storeID,threshold lines.
+    *
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public void loadThresholds(String file) throws IOException {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(",");
+            if (fields.length < 2)
+               continue;
+            try {
+               setThreshold(Integer.parseInt(fields[0].trim()), Integer.parseInt(fields[1].trim()));
+            }catch (NumberFormatException e) {
+               // header or comment line.
+            }
+         }
+      } finally {
+         reader.close();
+      }
+   }//end loadThresholds
+
+   int thresholdOf(int storeID) {
+      Integer threshold = this._thresholds.get(storeID);
+      return threshold == null ? this._defaultThreshold : threshold;
+   }
+
+   /**
+    * Plans the supply requests for the given stores without writing them.
+    *
+    * @param storeIDs the stores to look at
+    * @return the requests, ordered by store and product
+    * @throws java.sql.SQLException when the product scan failed
+    */
+   public List<SupplyRequest> plan(Collection<Integer> storeIDs) throws SQLException {
+      List<Integer> stores = new ArrayList<Integer>(storeIDs);
+      Collections.sort(stores);
+      if (stores.isEmpty())
+         return new ArrayList<SupplyRequest>();
+
+      // one contiguous range of store IDs per worker, each an index range scan
+      int workers = Math.min(this._esql.getPool().getMaxSize(), stores.size());
+      int perWorker = (stores.size() + workers - 1) / workers;
+      int maxThreshold = this._defaultThreshold;
+      for (int threshold : this._thresholds.values())
+         maxThreshold = Math.max(maxThreshold, threshold);
+
+      ExecutorService executor = Executors.newFixedThreadPool(workers);
+      try {
+         List<Future<List<SupplyRequest>>> parts = new ArrayList<Future<List<SupplyRequest>>>();
+         for (int i = 0; i < stores.size(); i += perWorker) {
+            final List<Integer> range = stores.subList(i, Math.min(i + perWorker, stores.size()));
+            final int limit = maxThreshold;
+            parts.add(executor.submit(new Callable<List<SupplyRequest>>() {
+               public List<SupplyRequest> call() throws SQLException {
+                  return planRange(range, limit);
+               }
+            }));
+         }
+         List<SupplyRequest> requests = new ArrayList<SupplyRequest>();
+         for (Future<List<SupplyRequest>> part : parts)
+            requests.addAll(part.get());
+         return requests;
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Replenishment planning interrupted");
+      }catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException("Replenishment planning failed: " + e.getCause());
+      } finally {
+         executor.shutdown();
+      }
+   }//end plan
+
+   // scans one sorted range of stores for items below their threshold.
+   private List<SupplyRequest> planRange(List<Integer> range, int maxThreshold) throws SQLException {
+      ColumnBatch low = this._esql.executeQueryAndReturnBatch(
+         "SELECT storeID, productID, numberOfUnits FROM Product WHERE storeID BETWEEN ? AND ? AND numberOfUnits < ? ORDER BY storeID, productID",
+         new ColumnBatch(), range.get(0), range.get(range.size() - 1), maxThreshold);
+      List<SupplyRequest> requests = new ArrayList<SupplyRequest>();
+      int[] storeIDs = low.intColumn(0);
+      int[] productIDs = low.intColumn(1);
+      int[] unitCounts = low.intColumn(2);
+      for (int row = 0; row < low.getRowCount(); row++) {
+         int storeID = storeIDs[row];
+         int units = unitCounts[row];
+         if (units >= thresholdOf(storeID) || Collections.binarySearch(range, storeID) < 0)
+            continue;
+         SpatialIndex.Entry<List<String>> store = this._esql.getStoreIndex().get(storeID);
+         if (store == null)
+            continue;
+         List<SpatialIndex.Entry<List<String>>> nearest = this._esql.getWarehouseIndex().nearest(store.getLatitude(), store.getLongitude(), 1);
+         if (nearest.isEmpty())
+            throw new SQLException("No warehouse to restock from");
+         int managerID = Integer.parseInt(store.getValue().get(3));
+         requests.add(new SupplyRequest(managerID, nearest.get(0).getID(), storeID, productIDs[row],
+            this._esql.getProductDictionary().name(productIDs[row]), Math.max(this._targetLevel - units, 1)));
+      }
+      return requests;
+   }//end planRange
+
+   /**
+    * Writes the supply requests in one transaction, using batched inserts.
+    * The resupply trigger restocks the products as the rows go in.
+    *
+    * @throws java.sql.SQLException when the insert failed; nothing is written
+    */
+   public void submit(List<SupplyRequest> requests) throws SQLException {
+      if (requests.isEmpty())
+         return;
+      ConnectionPool.PooledConnection pooled = this._esql.getPool().acquire();
+      Connection conn = pooled.getConnection();
+      try {
+         conn.setAutoCommit(false);
+         PreparedStatement stmt = conn.prepareStatement(
+            "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productID, unitsRequested) VALUES (?, ?, ?, ?, ?)");
+         try {
+            int pending = 0;
+            for (SupplyRequest request : requests) {
+               StatementCache.bind(stmt, request.managerID, request.warehouseID, request.storeID, request.productID, request.unitsRequested);
+               stmt.addBatch();
+               if (++pending == BATCH_SIZE) {
+                  stmt.executeBatch();
+                  pending = 0;
+               }
+            }
+            if (pending > 0)
+               stmt.executeBatch();
+         } finally {
+            stmt.close();
+         }
+         conn.commit();
+      }catch (SQLException e) {
+         conn.rollback();
+         throw e;
+      } finally {
+         try {
+            conn.setAutoCommit(true);
+         } finally {
+            this._esql.getPool().release(pooled);
+         }
+      }
+   }//end submit
+
+   /**
+    * Plans and writes the supply requests for the given stores.
+    *
+    * @return the requests that were placed
+    */
+   public List<SupplyRequest> run(Collection<Integer> storeIDs) throws SQLException {
+      List<SupplyRequest> requests = plan(storeIDs);
+      submit(requests);
+      return requests;
+   }//end run
+}//end ReplenishmentPlanner
@@ -0,0 +1,361 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class exports orders, product updates, supply requests and the
+ * manager reports to files, as CSV with a header line or as one JSON object
+ * per line. Rows are streamed from a cursor straight into a direct buffer
+ * that is encoded into and written to a file channel when full, so an
+ * export of any size holds one buffer of output and one fetch of rows,
+ * optionally through gzip. Products are exported by name.
+ *
+ * Split by store, every store gets a file of its own. The rows come
+ * ordered by store then, so only one file is open at a time. A file is
+ * written under a temporary name and renamed when complete.
+ *
+ */
+public class ReportExporter {
+
+   public enum Format {
+      CSV("csv"), NDJSON("ndjson");
+
+      final String extension;
+
+      Format(String extension) {
+         this.extension = extension;
+      }
+   }//end Format
+
+   // bytes of output buffered per file.
+   static final int BUFFER_BYTES = 1 << 18;
+
+   // rows fetched per round trip; exports read everything, so more than the default.
+   static final int FETCH_SIZE = 5000;
+
+   /**
+    * What one report reads: the columns with their names in the files, the
+    * position of storeID among them, and the order of the rows within a
+    * store.
+    */
+   static class Report {
+      final String name;
+      final String[] columns;
+      final String from;
+      final int storeColumn;
+      final String order;
+
+      Report(String name, String[] columns, String from, int storeColumn, String order) {
+         this.name = name;
+         this.columns = columns;
+         this.from = from;
+         this.storeColumn = storeColumn;
+         this.order = order;
+      }
+
+      String query(boolean byStore) {
+         StringBuilder select = new StringBuilder();
+         for (int i = 0; i < this.columns.length; i++)
+            select.append(i == 0 ? "" : ", ").append(this.columns[i]);
+         String store = this.columns[this.storeColumn];
+         return "SELECT " + select + " FROM " + this.from + " ORDER BY "
+            + (byStore && !this.order.startsWith(store) ? store + ", " : "") + this.order;
+      }
+   }//end Report
+
+   static final Report[] REPORTS = {
+      new Report("orders",
+         new String[] {"o.orderNumber", "o.customerID", "o.storeID", "n.productName", "o.unitsOrdered", "o.orderTime"},
+         "Orders o JOIN ProductNames n ON n.productID = o.productID", 2, "o.orderTime, o.orderNumber"),
+      new Report("updates",
+         new String[] {"u.updateNumber", "u.managerID", "u.storeID", "n.productName", "u.updatedOn"},
+         "ProductUpdates u JOIN ProductNames n ON n.productID = u.productID", 2, "u.updatedOn, u.updateNumber"),
+      new Report("supply",
+         new String[] {"r.requestNumber", "r.managerID", "r.warehouseID", "r.storeID", "n.productName", "r.unitsRequested"},
+         "ProductSupplyRequests r JOIN ProductNames n ON n.productID = r.productID", 3, "r.requestNumber"),
+      // the popular items and customers views, with every product and customer
+      new Report("products",
+         new String[] {"t.storeID", "n.productName", "t.unitsOrdered"},
+         "(SELECT storeID, productID, SUM(unitsOrdered) AS unitsOrdered FROM Orders GROUP BY storeID, productID) t"
+         + " JOIN ProductNames n ON n.productID = t.productID", 0, "t.storeID, t.unitsOrdered DESC, n.productName"),
+      new Report("customers",
+         new String[] {"t.storeID", "t.customerID", "u.name", "t.unitsOrdered"},
+         "(SELECT storeID, customerID, SUM(unitsOrdered) AS unitsOrdered FROM Orders GROUP BY storeID, customerID) t"
+         + " JOIN Users u ON u.userID = t.customerID", 0, "t.storeID, t.unitsOrdered DESC, t.customerID")
+   };
+
+   /**
+    * @return the report of the given name
+    * @throws IllegalArgumentException when there is no such report
+    */
+   static Report report(String name) {
+      StringBuilder names = new StringBuilder();
+      for (Report report : REPORTS) {
+         if (report.name.equalsIgnoreCase(name))
+            return report;
+         names.append(names.length() == 0 ? "" : ", ").append(report.name);
+      }
+      throw new IllegalArgumentException("No report " + name + ", expected one of " + names);
+   }//end report
+
+   /**
+    * One file written.
+    */
+   public static class Export {
+      final File file;
+      final long rows;
+      final long bytes;
+
+      Export(File file, long rows, long bytes) {
+         this.file = file;
+         this.rows = rows;
+         this.bytes = bytes;
+      }
+
+      public File getFile() { return this.file; }
+      public long getRows() { return this.rows; }
+      public long getBytes() { return this.bytes; }
+   }//end Export
+
+   /*
+    * A file being written: rows are encoded into the buffer, which goes to
+    * the channel when full. With gzip the channel is a stream over the
+    * file channel; the buffer still saves a call per row.
+    */
+   private static class Sink {
+      final File file;
+      final File temp;
+      final FileChannel fileChannel;
+      final WritableByteChannel channel;
+      final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+      final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+      long rows = 0;
+
+      Sink(File file, boolean gzip) throws IOException {
+         this.file = file;
+         this.temp = new File(file.getPath() + ".tmp");
+         this.fileChannel = FileChannel.open(this.temp.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+         this.channel = gzip
+            ? Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(this.fileChannel), BUFFER_BYTES))
+            : this.fileChannel;
+      }
+
+      void write(CharSequence text) throws IOException {
+         CharBuffer chars = CharBuffer.wrap(text);
+         this.encoder.reset();
+         CoderResult result;
+         while ((result = this.encoder.encode(chars, this.buffer, true)).isOverflow())
+            drain();
+         if (result.isError())
+            result.throwException();
+         while (this.encoder.flush(this.buffer).isOverflow())
+            drain();
+      }//end write
+
+      private void drain() throws IOException {
+         this.buffer.flip();
+         while (this.buffer.hasRemaining())
+            this.channel.write(this.buffer);
+         this.buffer.clear();
+      }
+
+      Export close() throws IOException {
+         try {
+            drain();
+         } finally {
+            // closing the gzip channel finishes the stream and closes the file
+            this.channel.close();
+         }
+         if (!this.temp.renameTo(this.file))
+            throw new IOException("could not rename " + this.temp + " to " + this.file);
+         return new Export(this.file, this.rows, this.file.length());
+      }//end close
+
+      void abandon() {
+         try {
+            this.channel.close();
+         }catch (IOException e) {
+            // ignored.
+         }
+         this.temp.delete();
+      }
+   }//end Sink
+
+   private final Amazon _esql;
+   private final File _dir;
+   private Format _format = Format.CSV;
+   private boolean _gzip = false;
+   private boolean _byStore = false;
+
+   /**
+    * @param esql the program whose connections read the rows
+    * @param dir the directory of the files, created if missing
+    */
+   public ReportExporter(Amazon esql, File dir) {
+      this._esql = esql;
+      this._dir = dir;
+   }
+
+   public void setFormat(Format format) {
+      this._format = format;
+   }
+
+   public void setGzip(boolean gzip) {
+      this._gzip = gzip;
+   }
+
+   /**
+    * Writes every store to a file of its own, named after the report and
+    * the store, e.g. orders.store17.csv.
+    */
+   public void setByStore(boolean byStore) {
+      this._byStore = byStore;
+   }
+
+   private File fileOf(Report report, Integer storeID) {
+      return new File(this._dir, report.name + (storeID == null ? "" : ".store" + storeID)
+         + "." + this._format.extension + (this._gzip ? ".gz" : ""));
+   }
+
+   /**
+    * Exports one report.
+    *
+    * @param name orders, updates, supply, products or customers
+    * @return the files written, one per store when split by store
+    * @throws java.sql.SQLException when the rows could not be read
+    * @throws java.io.IOException when a file could not be written
+    */
+   public List<Export> export(String name) throws SQLException, IOException {
+      final Report report = report(name);
+      if (!this._dir.isDirectory() && !this._dir.mkdirs())
+         throw new IOException("Cannot create " + this._dir);
+      final List<Export> exports = new ArrayList<Export>();
+      final Sink[] open = new Sink[1];
+      // IOExceptions can't leave the row handler, so they wait here
+      final IOException[] failed = new IOException[1];
+      try {
+         if (!this._byStore)
+            open[0] = start(report, null);
+         this._esql.executeQueryStreaming(report.query(this._byStore), FETCH_SIZE, new RowHandler() {
+            private int[] types = null;
+            private int store = 0;
+            private final StringBuilder line = new StringBuilder();
+
+            public boolean row(ResultSet rs) throws SQLException {
+               if (this.types == null)
+                  this.types = types(rs.getMetaData());
+               try {
+                  if (ReportExporter.this._byStore && (open[0] == null || rs.getInt(report.storeColumn + 1) != this.store)) {
+                     if (open[0] != null)
+                        exports.add(open[0].close());
+                     open[0] = null;
+                     this.store = rs.getInt(report.storeColumn + 1);
+                     open[0] = start(report, this.store);
+                  }
+                  this.line.setLength(0);
+                  format(report, rs, this.types, this.line);
+                  open[0].write(this.line);
+                  open[0].rows++;
+                  return true;
+               }catch (IOException e) {
+                  failed[0] = e;
+                  return false;
+               }
+            }
+         });
+         if (failed[0] != null)
+            throw failed[0];
+         if (open[0] != null)
+            exports.add(open[0].close());
+         open[0] = null;
+         return exports;
+      } finally {
+         if (open[0] != null)
+            open[0].abandon();
+      }
+   }//end export
+
+   // opens the file of a report, or of one store of it, and writes the CSV header.
+   private Sink start(Report report, Integer storeID) throws IOException {
+      Sink sink = new Sink(fileOf(report, storeID), this._gzip);
+      if (this._format == Format.CSV) {
+         StringBuilder header = new StringBuilder();
+         for (int i = 0; i < report.columns.length; i++)
+            header.append(i == 0 ? "" : ",").append(label(report.columns[i]));
+         sink.write(header.append('\n'));
+      }
+      return sink;
+   }//end start
+
+   // the name a column has in the files, without its table alias.
+   private static String label(String column) {
+      return column.substring(column.indexOf('.') + 1);
+   }
+
+   private static int[] types(ResultSetMetaData meta) throws SQLException {
+      int[] types = new int[meta.getColumnCount()];
+      for (int i = 0; i < types.length; i++)
+         types[i] = meta.getColumnType(i + 1);
+      return types;
+   }
+
+   // appends one row as a CSV line or a JSON object, with its newline.
+   private void format(Report report, ResultSet rs, int[] types, StringBuilder line) throws SQLException {
+      boolean json = this._format == Format.NDJSON;
+      if (json)
+         line.append('{');
+      for (int i = 0; i < types.length; i++) {
+         String value = rs.getString(i + 1);
+         // CHAR columns come padded
+         if (value != null && types[i] == Types.CHAR)
+            value = ProductCatalog.rtrim(value);
+         if (json) {
+            line.append(i == 0 ? "\"" : ",\"").append(label(report.columns[i])).append("\":");
+            if (value == null)
+               line.append("null");
+            else if (numeric(types[i]))
+               line.append(value);
+            else
+               Metrics.quote(value, line);
+         }
+         else
+            line.append(i == 0 ? "" : ",").append(csv(value));
+      }
+      line.append(json ? "}\n" : "\n");
+   }//end format
+
+   private static boolean numeric(int type) {
+      switch (type) {
+         case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+         case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+            return true;
+         default:
+            return false;
+      }
+   }//end numeric
+
+   // a CSV field as COPY writes it: empty for null, quoted when needed.
+   static String csv(String value) {
+      if (value == null)
+         return "";
+      if (value.isEmpty() || value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)
+         return "\"" + value.replace("\"", "\"\"") + "\"";
+      return value;
+   }//end csv
+}//end ReportExporter
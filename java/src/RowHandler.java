@@ -0,0 +1,21 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a streamed query one at a time, see
+ * Amazon.executeQueryStreaming. The result set is positioned on the current
+ * row and is only valid during the call, so a handler that keeps data must
+ * copy it out.
+ *
+ */
+public interface RowHandler {
+
+   /**
+    * Called once per row, in result order.
+    *
+    * @param rs the result set, positioned on the row
+    * @return false to stop reading further rows
+    * @throws java.sql.SQLException when a column could not be read
+    */
+   boolean row(ResultSet rs) throws SQLException;
+}//end RowHandler
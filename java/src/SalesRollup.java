@@ -0,0 +1,266 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class answers revenue questions, such as the sales of every
+ * product of a store over the last 30 days, from the sales rollups
+ * instead of Orders. Every order records its units and revenue in
+ * SalesRollupPending as it is placed; a thread folds those rows into the
+ * hour, day and month sums of SalesRollup every few seconds, see
+ * foldSales() in functions.sql.
+ *
+ * A range is read as the whole months inside it, the whole days left
+ * around them and the hours left after that, so a range of a year reads
+ * about a hundred sums per product whatever the number of orders. The
+ * pending rows are read too, in the same statement, so an answer counts
+ * every order placed before it, folded or not. Ranges are widened to
+ * whole hours.
+ *
+ */
+public class SalesRollup {
+
+   public static final long DEFAULT_FOLD_SECONDS = 5;
+
+   /**
+    * The sizes of the sums kept, narrowest first.
+    */
+   public enum Granularity {
+      HOUR, DAY, MONTH;
+
+      /**
+       * @return the start of the hour, day or month the time falls in
+       */
+      public LocalDateTime truncate(LocalDateTime time) {
+         switch (this) {
+         case HOUR: return time.truncatedTo(ChronoUnit.HOURS);
+         case DAY: return time.truncatedTo(ChronoUnit.DAYS);
+         default: return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+         }
+      }
+
+      /**
+       * @return the time the given number of hours, days or months later
+       */
+      public LocalDateTime plus(LocalDateTime time, long count) {
+         switch (this) {
+         case HOUR: return time.plusHours(count);
+         case DAY: return time.plusDays(count);
+         default: return time.plusMonths(count);
+         }
+      }
+
+      static Granularity of(String name) {
+         return valueOf(name.trim().toUpperCase(Locale.ROOT));
+      }
+
+      // the salesGranularity label, also the date_trunc field.
+      @Override
+      public String toString() {
+         return name().toLowerCase(Locale.ROOT);
+      }
+   }//end Granularity
+
+   /**
+    * The units and revenue of one product, or of one hour, day or month.
+    */
+   public static class Sales {
+      final int productID;
+      final Timestamp bucketStart;
+      final long units;
+      final double revenue;
+
+      Sales(int productID, Timestamp bucketStart, long units, double revenue) {
+         this.productID = productID;
+         this.bucketStart = bucketStart;
+         this.units = units;
+         this.revenue = revenue;
+      }
+
+      // -1 for the sales of a bucket.
+      public int getProductID() { return this.productID; }
+      // null for the sales of a product.
+      public Timestamp getBucketStart() { return this.bucketStart; }
+      public long getUnits() { return this.units; }
+      public double getRevenue() { return this.revenue; }
+   }//end Sales
+
+   private final Amazon _esql;
+   private final long _foldMillis;
+
+   private volatile boolean _running = false;
+   private Thread _worker = null;
+
+   /**
+    * @param esql the program, whose connection pool the rollups are read and folded with
+    * @param foldSeconds how often the pending sales are folded
+    */
+   public SalesRollup(Amazon esql, long foldSeconds) {
+      this._esql = esql;
+      this._foldMillis = foldSeconds * 1000;
+   }//end SalesRollup
+
+   /**
+    * Adds the pending sales to the sums.
+    *
+    * @return the number of pending rows folded
+    * @throws java.sql.SQLException when they could not be folded
+    */
+   public int fold() throws SQLException {
+      return this._esql.executeQueryAndReturnBatch("SELECT foldSales()", new ColumnBatch(1)).getInt(0, 0);
+   }//end fold
+
+   /**
+    * Starts the thread that folds the pending sales.
+    */
+   public synchronized void start() {
+      this._running = true;
+      this._worker = new Thread(new Runnable() {
+         public void run() {
+            work();
+         }
+      }, "sales-rollup");
+      this._worker.setDaemon(true);
+      this._worker.start();
+   }//end start
+
+   /**
+    * Stops the thread.
+    */
+   public void stop() {
+      Thread worker;
+      synchronized (this) {
+         this._running = false;
+         worker = this._worker;
+         this._worker = null;
+      }
+      if (worker == null)
+         return;
+      worker.interrupt();
+      try {
+         worker.join();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end stop
+
+   private void work() {
+      while (this._running) {
+         try {
+            fold();
+         }catch (SQLException e) {
+            System.err.println("Sales not folded: " + e.getMessage());
+         }
+         try {
+            Thread.sleep(this._foldMillis);
+         }catch (InterruptedException e) {
+            return;
+         }
+      }
+   }//end work
+
+   /**
+    * Sums the sales of every product a store sold in a range of time.
+    *
+    * @param storeID the store
+    * @param from the start of the range, moved back to the start of its hour
+    * @param to the end of the range, moved on to the end of its hour
+    * @return the sales by product, highest revenue first
+    * @throws java.sql.SQLException when the rollups could not be read
+    */
+   public List<Sales> byProduct(int storeID, LocalDateTime from, LocalDateTime to) throws SQLException {
+      LocalDateTime start = Granularity.HOUR.truncate(from);
+      LocalDateTime end = Granularity.HOUR.truncate(to);
+      if (end.isBefore(to))
+         end = end.plusHours(1);
+
+      List<Object> params = new ArrayList<Object>();
+      StringBuilder ranges = new StringBuilder();
+      params.add(storeID);
+      for (Object[] range : cover(start, end)) {
+         ranges.append(ranges.length() == 0 ? "" : " OR ")
+            .append("(granularity = '").append(range[0]).append("' AND bucketStart >= ? AND bucketStart < ?)");
+         params.add(Timestamp.valueOf((LocalDateTime) range[1]));
+         params.add(Timestamp.valueOf((LocalDateTime) range[2]));
+      }
+      if (ranges.length() == 0)
+         return new ArrayList<Sales>();
+      params.add(storeID);
+      params.add(Timestamp.valueOf(start));
+      params.add(Timestamp.valueOf(end));
+
+      ColumnBatch batch = this._esql.executeQueryAndReturnBatch(
+         "SELECT productID, CAST(SUM(unitsOrdered) AS bigint), SUM(revenue) FROM ("
+         + "SELECT productID, unitsOrdered, revenue FROM SalesRollup WHERE storeID = ? AND (" + ranges + ")"
+         + " UNION ALL SELECT productID, unitsOrdered, revenue FROM SalesRollupPending"
+         + " WHERE storeID = ? AND hourStart >= ? AND hourStart < ?"
+         + ") s GROUP BY productID ORDER BY 3 DESC, 1",
+         new ColumnBatch(), params.toArray());
+      List<Sales> sales = new ArrayList<Sales>(batch.getRowCount());
+      for (int row = 0; row < batch.getRowCount(); row++)
+         sales.add(new Sales(batch.getInt(row, 0), null, batch.getLong(row, 1), batch.getDouble(row, 2)));
+      return sales;
+   }//end byProduct
+
+   /**
+    * Sums the sales of a store by hour, day or month over a range of time.
+    *
+    * @param storeID the store
+    * @param granularity the size of the sums
+    * @param from the start of the range, moved back to the start of its bucket
+    * @param to the end of the range, moved on to the end of its bucket
+    * @return the sales of every bucket with any, oldest first
+    * @throws java.sql.SQLException when the rollups could not be read
+    */
+   public List<Sales> overTime(int storeID, Granularity granularity, LocalDateTime from, LocalDateTime to) throws SQLException {
+      LocalDateTime start = granularity.truncate(from);
+      LocalDateTime end = granularity.truncate(to);
+      if (end.isBefore(to))
+         end = granularity.plus(end, 1);
+
+      ColumnBatch batch = this._esql.executeQueryAndReturnBatch(
+         "SELECT bucketStart, CAST(SUM(unitsOrdered) AS bigint), SUM(revenue) FROM ("
+         + "SELECT bucketStart, unitsOrdered, revenue FROM SalesRollup"
+         + " WHERE storeID = ? AND granularity = '" + granularity + "' AND bucketStart >= ? AND bucketStart < ?"
+         + " UNION ALL SELECT date_trunc('" + granularity + "', hourStart), unitsOrdered, revenue FROM SalesRollupPending"
+         + " WHERE storeID = ? AND hourStart >= ? AND hourStart < ?"
+         + ") s GROUP BY bucketStart ORDER BY bucketStart",
+         new ColumnBatch(), storeID, Timestamp.valueOf(start), Timestamp.valueOf(end),
+         storeID, Timestamp.valueOf(start), Timestamp.valueOf(end));
+      List<Sales> sales = new ArrayList<Sales>(batch.getRowCount());
+      for (int row = 0; row < batch.getRowCount(); row++)
+         sales.add(new Sales(-1, new Timestamp(batch.getLong(row, 0)), batch.getLong(row, 1), batch.getDouble(row, 2)));
+      return sales;
+   }//end overTime
+
+   /*
+    * Splits [start, end), both on the hour, into runs of the widest buckets
+    * that fit: {granularity, from, to} with whole months in the middle,
+    * whole days around them and hours at the ends.
+    */
+   static List<Object[]> cover(LocalDateTime start, LocalDateTime end) {
+      List<Object[]> ranges = new ArrayList<Object[]>();
+      LocalDateTime time = start;
+      while (time.isBefore(end)) {
+         Granularity granularity = Granularity.HOUR;
+         for (Granularity wider : new Granularity[] {Granularity.MONTH, Granularity.DAY}) {
+            if (wider.truncate(time).equals(time) && !wider.plus(time, 1).isAfter(end)) {
+               granularity = wider;
+               break;
+            }
+         }
+         LocalDateTime next = granularity.plus(time, 1);
+         Object[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+         if (last != null && last[0] == granularity)
+            last[2] = next;
+         else
+            ranges.add(new Object[] {granularity, time, next});
+         time = next;
+      }
+      return ranges;
+   }//end cover
+}//end SalesRollup
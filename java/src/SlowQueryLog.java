@@ -0,0 +1,363 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * This class keeps the statements that took longer than a threshold. Each
+ * one is recorded with its bind values and duration and added to the
+ * totals of its shape, as Metrics shapes it. For a sample of them, at most
+ * one per shape every EXPLAIN_MILLIS, a background thread runs the
+ * statement again under EXPLAIN (ANALYZE, BUFFERS) to capture the plan
+ * that made it slow. The statement really runs, in a transaction that is
+ * rolled back, so only plain SELECTs are run, by the rule the index advisor
+ * measures with; writes and function calls, which would take the locks of
+ * a statement already known to be slow, get the plan without running.
+ *
+ * A report ranking the shapes by their total slow time, with the latest
+ * plan of each and the most recent offenders, is rewritten every interval.
+ * Statements that touch a password column keep only the types and lengths
+ * of their bind values, so they are never explained.
+ *
+ */
+public class SlowQueryLog {
+
+   public static final long DEFAULT_THRESHOLD_MILLIS = 100;
+   public static final long DEFAULT_REPORT_SECONDS = 60;
+
+   // a shape is explained again after this long.
+   static final long EXPLAIN_MILLIS = 10 * 60 * 1000;
+
+   // offenders waiting to be explained; more are not explained.
+   static final int EXPLAIN_QUEUE = 64;
+
+   // offenders listed at the end of the report.
+   static final int RECENT = 50;
+
+   // bind values longer than this are cut.
+   static final int VALUE_CHARS = 60;
+
+   // statements matching this keep no bind values.
+   static final Pattern SECRET = Pattern.compile("\\bpassword\\b", Pattern.CASE_INSENSITIVE);
+
+   /**
+    * One statement that crossed the threshold.
+    */
+   static class Offender {
+      final String sql;
+      final String shape;
+      // the bind values, or their types and lengths when redacted.
+      final Object[] params;
+      final boolean redacted;
+      final long nanos;
+      final long at = System.currentTimeMillis();
+
+      Offender(String sql, String shape, Object[] params, long nanos) {
+         this.sql = sql;
+         this.shape = shape;
+         this.redacted = SECRET.matcher(sql).find();
+         this.params = this.redacted ? redact(params) : params.clone();
+         this.nanos = nanos;
+      }
+
+      // each value as its type, and its length for a String.
+      static Object[] redact(Object[] params) {
+         Object[] redacted = new Object[params.length];
+         for (int i = 0; i < params.length; i++) {
+            if (params[i] == null)
+               redacted[i] = null;
+            else if (params[i] instanceof String)
+               redacted[i] = "<String of " + ((String) params[i]).length() + " chars>";
+            else
+               redacted[i] = "<" + params[i].getClass().getSimpleName() + ">";
+         }
+         return redacted;
+      }
+
+      String values() {
+         StringBuilder values = new StringBuilder("[");
+         for (int i = 0; i < this.params.length; i++) {
+            String value = String.valueOf(this.params[i]);
+            if (value.length() > VALUE_CHARS)
+               value = value.substring(0, VALUE_CHARS - 3) + "...";
+            values.append(i == 0 ? "" : ", ").append(value);
+         }
+         return values.append(']').toString();
+      }
+   }//end Offender
+
+   // the slow statements of one shape.
+   static class Shape {
+      final String shape;
+      long count = 0;
+      long totalNanos = 0;
+      long maxNanos = 0;
+      Offender last = null;
+      long explainedAt = 0;
+      String plan = null;
+
+      Shape(String shape) {
+         this.shape = shape;
+      }
+   }//end Shape
+
+   private final Amazon _esql;
+   private final String _file;
+   private final long _thresholdNanos;
+   private final long _reportMillis;
+   private final ConcurrentHashMap<String, Shape> _shapes = new ConcurrentHashMap<String, Shape>();
+   private final Deque<Offender> _recent = new ArrayDeque<Offender>();
+   private final BlockingQueue<Offender> _explains = new ArrayBlockingQueue<Offender>(EXPLAIN_QUEUE);
+
+   private volatile boolean _running = false;
+   private Thread _worker = null;
+
+   /**
+    * @param esql the program, whose connection pool the plans are captured on
+    * @param file the report file
+    * @param thresholdMillis statements taking at least this long are recorded
+    * @param reportSeconds how often the report is rewritten
+    */
+   public SlowQueryLog(Amazon esql, String file, long thresholdMillis, long reportSeconds) {
+      this._esql = esql;
+      this._file = file;
+      this._thresholdNanos = thresholdMillis * 1000000;
+      this._reportMillis = reportSeconds * 1000;
+   }//end SlowQueryLog
+
+   /**
+    * Records a statement if it took longer than the threshold.
+    *
+    * @param sql the statement as given
+    * @param params its bind values
+    * @param nanos how long it took
+    */
+   public void check(String sql, Object[] params, long nanos) {
+      if (nanos < this._thresholdNanos)
+         return;
+      Offender offender = new Offender(sql, Metrics.shape(sql), params, nanos);
+      Shape shape = this._shapes.get(offender.shape);
+      if (shape == null) {
+         Shape fresh = new Shape(offender.shape);
+         shape = this._shapes.putIfAbsent(offender.shape, fresh);
+         if (shape == null)
+            shape = fresh;
+      }
+      boolean explain;
+      synchronized (shape) {
+         shape.count++;
+         shape.totalNanos += nanos;
+         shape.maxNanos = Math.max(shape.maxNanos, nanos);
+         shape.last = offender;
+         // a redacted offender has no values to run the statement with
+         explain = !offender.redacted && offender.at - shape.explainedAt >= EXPLAIN_MILLIS;
+         if (explain)
+            shape.explainedAt = offender.at;
+      }
+      synchronized (this._recent) {
+         this._recent.addFirst(offender);
+         if (this._recent.size() > RECENT)
+            this._recent.removeLast();
+      }
+      if (explain && !this._explains.offer(offender)) {
+         // the queue is full; let a later offender of the shape be explained
+         synchronized (shape) {
+            shape.explainedAt = 0;
+         }
+      }
+   }//end check
+
+   /**
+    * Starts the thread that captures plans and writes the report.
+    */
+   public synchronized void start() {
+      this._running = true;
+      this._worker = new Thread(new Runnable() {
+         public void run() {
+            work();
+         }
+      }, "slow-query-log");
+      this._worker.setDaemon(true);
+      this._worker.start();
+   }//end start
+
+   /**
+    * Stops the thread and writes the report one last time.
+    */
+   public void stop() {
+      Thread worker;
+      synchronized (this) {
+         this._running = false;
+         worker = this._worker;
+         this._worker = null;
+      }
+      if (worker == null)
+         return;
+      worker.interrupt();
+      try {
+         worker.join();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      report();
+   }//end stop
+
+   private void work() {
+      long next = System.currentTimeMillis() + this._reportMillis;
+      while (this._running) {
+         try {
+            Offender offender = this._explains.poll(Math.max(1, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (offender != null)
+               explain(offender);
+         }catch (InterruptedException e) {
+            return;
+         }
+         if (System.currentTimeMillis() >= next) {
+            report();
+            next = System.currentTimeMillis() + this._reportMillis;
+         }
+      }
+   }//end work
+
+   /*
+    * Captures the plan of an offender and keeps it with its shape. A
+    * plain SELECT calling no functions is run under EXPLAIN (ANALYZE,
+    * BUFFERS); anything else, or a SELECT that fails, is only planned.
+    */
+   private void explain(Offender offender) {
+      String plan;
+      try {
+         ConnectionPool.PooledConnection pooled = this._esql.getPool().acquire();
+         Connection connection = pooled.getConnection();
+         try {
+            connection.setAutoCommit(false);
+            List<String> lines = Arrays.asList(plan(connection, "EXPLAIN (VERBOSE) ", offender).split("\n"));
+            if (!IndexAdvisor.measurable(offender.sql, IndexAdvisor.callsFunctions(lines))) {
+               plan = "    (not run, it is not a plain SELECT)\n" + plan(connection, "EXPLAIN ", offender);
+            }
+            else {
+               try {
+                  plan = plan(connection, "EXPLAIN (ANALYZE, BUFFERS) ", offender);
+               }catch (SQLException e) {
+                  plan = "    (not run: " + firstLine(e) + ")\n" + plan(connection, "EXPLAIN ", offender);
+               }
+            }
+         } finally {
+            try {
+               connection.setAutoCommit(true);
+            } finally {
+               this._esql.getPool().release(pooled);
+            }
+         }
+      }catch (SQLException e) {
+         plan = "    not explained: " + firstLine(e) + "\n";
+      }
+      Shape shape = this._shapes.get(offender.shape);
+      synchronized (shape) {
+         shape.plan = "    for " + offender.values() + ", which took " + millis(offender.nanos) + " ms:\n" + plan;
+      }
+   }//end explain
+
+   // the plan lines of one EXPLAIN, in a transaction that is rolled back.
+   private static String plan(Connection connection, String explain, Offender offender) throws SQLException {
+      PreparedStatement stmt = connection.prepareStatement(explain + offender.sql);
+      try {
+         StatementCache.bind(stmt, offender.params);
+         ResultSet rs = stmt.executeQuery();
+         StringBuilder lines = new StringBuilder();
+         while (rs.next())
+            lines.append("    ").append(rs.getString(1)).append('\n');
+         return lines.toString();
+      } finally {
+         stmt.close();
+         connection.rollback();
+      }
+   }//end plan
+
+   private static String firstLine(SQLException e) {
+      return e.getMessage().split("\n")[0];
+   }
+
+   private static String millis(long nanos) {
+      return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+   }
+
+   /**
+    * @return the report: the shapes by total slow time, then the latest offenders
+    */
+   public String getReport() {
+      List<Shape> shapes = new ArrayList<Shape>();
+      for (Shape shape : this._shapes.values()) {
+         // copied under the lock, so sorting sees stable totals
+         synchronized (shape) {
+            Shape copy = new Shape(shape.shape);
+            copy.count = shape.count;
+            copy.totalNanos = shape.totalNanos;
+            copy.maxNanos = shape.maxNanos;
+            copy.last = shape.last;
+            copy.plan = shape.plan;
+            shapes.add(copy);
+         }
+      }
+      Collections.sort(shapes, new Comparator<Shape>() {
+         public int compare(Shape a, Shape b) {
+            return Long.compare(b.totalNanos, a.totalNanos);
+         }
+      });
+      StringBuilder report = new StringBuilder();
+      report.append("Slow statements at ").append(new Timestamp(System.currentTimeMillis()))
+         .append(", over ").append(millis(this._thresholdNanos)).append(" ms, by total time\n\n");
+      int rank = 1;
+      for (Shape shape : shapes) {
+         report.append(String.format(Locale.ROOT, "%d. %s ms total, %d times, %s ms mean, %s ms max%n   %s%n",
+            rank++, millis(shape.totalNanos), shape.count, millis(shape.totalNanos / shape.count), millis(shape.maxNanos), shape.shape));
+         report.append("   last with ").append(shape.last.values()).append('\n');
+         if (shape.plan != null)
+            report.append("   plan\n").append(shape.plan);
+         report.append('\n');
+      }
+      report.append("Latest slow statements\n");
+      synchronized (this._recent) {
+         for (Offender offender : this._recent)
+            report.append(String.format(Locale.ROOT, "%s %10s ms  %s %s%n", new Timestamp(offender.at), millis(offender.nanos),
+               offender.shape, offender.values()));
+      }
+      return report.toString();
+   }//end getReport
+
+   // rewrites the report file, through a temporary file so readers never see half of it.
+   private void report() {
+      File file = new File(this._file);
+      File temp = new File(this._file + ".tmp");
+      try {
+         Writer out = new FileWriter(temp);
+         try {
+            out.write(getReport());
+         } finally {
+            out.close();
+         }
+         if (!temp.renameTo(file))
+            throw new IOException("could not replace " + file);
+      }catch (IOException e) {
+         System.err.println("Slow query report not written: " + e.getMessage());
+      }
+   }//end report
+}//end SlowQueryLog
@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class is an in-memory grid index over latitude, longitude points,
+ * such as the stores and warehouses. The plane is cut into square cells and
+ * every point is kept in the list of its cell, so a radius query only looks
+ * at the cells overlapping the circle and a nearest neighbour query walks
+ * outwards ring by ring from the query cell. Distances are the same
+ * euclidean distance calculateDistance uses.
+ *
+ */
+public class SpatialIndex<V> {
+
+   // a cell size in the order of the usual query radius keeps both the
+   // number of cells visited and the points per cell small.
+   public static final double DEFAULT_CELL_SIZE = 5.0;
+
+   /**
+    * A point of the index with the value it carries.
+    */
+   public static class Entry<V> {
+      final int id;
+      final double latitude;
+      final double longitude;
+      final V value;
+
+      Entry(int id, double latitude, double longitude, V value) {
+         this.id = id;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.value = value;
+      }
+
+      public int getID() {
+         return this.id;
+      }
+
+      public double getLatitude() {
+         return this.latitude;
+      }
+
+      public double getLongitude() {
+         return this.longitude;
+      }
+
+      public V getValue() {
+         return this.value;
+      }
+   }//end Entry
+
+   // pairs an entry with its distance to the current query point.
+   private static class Hit<V> {
+      final Entry<V> entry;
+      final double distance;
+
+      Hit(Entry<V> entry, double distance) {
+         this.entry = entry;
+         this.distance = distance;
+      }
+   }//end Hit
+
+   private final double _cellSize;
+   private final Map<Long, List<Entry<V>>> _cells = new HashMap<Long, List<Entry<V>>>();
+   private final Map<Integer, Entry<V>> _byID = new HashMap<Integer, Entry<V>>();
+   private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+   // bounds of the occupied cells, so ring searches know when to stop.
+   private int _minX = Integer.MAX_VALUE, _maxX = Integer.MIN_VALUE;
+   private int _minY = Integer.MAX_VALUE, _maxY = Integer.MIN_VALUE;
+
+   public SpatialIndex(double cellSize) {
+      this._cellSize = cellSize;
+   }
+
+   public SpatialIndex() {
+      this(DEFAULT_CELL_SIZE);
+   }
+
+   private int cell(double coordinate) {
+      return (int) Math.floor(coordinate / this._cellSize);
+   }
+
+   private static long key(int x, int y) {
+      return ((long) x << 32) | (y & 0xffffffffL);
+   }
+
+   private static double distance(double lat1, double long1, double lat2, double long2) {
+      double t1 = (lat1 - lat2) * (lat1 - lat2);
+      double t2 = (long1 - long2) * (long1 - long2);
+      return Math.sqrt(t1 + t2);
+   }
+
+   /**
+    * Adds a point, replacing any point with the same ID.
+    *
+    * @param id the ID of the point, e.g. the storeID
+    * @param latitude the latitude of the point
+    * @param longitude the longitude of the point
+    * @param value the value returned with the point
+    */
+   public void put(int id, double latitude, double longitude, V value) {
+      this._lock.writeLock().lock();
+      try {
+         removeLocked(id);
+         Entry<V> entry = new Entry<V>(id, latitude, longitude, value);
+         int x = cell(latitude), y = cell(longitude);
+         List<Entry<V>> bucket = this._cells.get(key(x, y));
+         if (bucket == null) {
+            bucket = new ArrayList<Entry<V>>();
+            this._cells.put(key(x, y), bucket);
+         }
+         bucket.add(entry);
+         this._byID.put(id, entry);
+         this._minX = Math.min(this._minX, x);
+         this._maxX = Math.max(this._maxX, x);
+         this._minY = Math.min(this._minY, y);
+         this._maxY = Math.max(this._maxY, y);
+      } finally {
+         this._lock.writeLock().unlock();
+      }
+   }//end put
+
+   /**
+    * Removes the point with the given ID, if any.
+    */
+   public void remove(int id) {
+      this._lock.writeLock().lock();
+      try {
+         removeLocked(id);
+      } finally {
+         this._lock.writeLock().unlock();
+      }
+   }//end remove
+
+   private void removeLocked(int id) {
+      Entry<V> old = this._byID.remove(id);
+      if (old == null)
+         return;
+      long k = key(cell(old.latitude), cell(old.longitude));
+      List<Entry<V>> bucket = this._cells.get(k);
+      bucket.remove(old);
+      if (bucket.isEmpty())
+         this._cells.remove(k);
+   }//end removeLocked
+
+   /**
+    * Removes every point.
+    */
+   public void clear() {
+      this._lock.writeLock().lock();
+      try {
+         this._cells.clear();
+         this._byID.clear();
+         this._minX = this._minY = Integer.MAX_VALUE;
+         this._maxX = this._maxY = Integer.MIN_VALUE;
+      } finally {
+         this._lock.writeLock().unlock();
+      }
+   }//end clear
+
+   /**
+    * @return the point with the given ID or null if there is none
+    */
+   public Entry<V> get(int id) {
+      this._lock.readLock().lock();
+      try {
+         return this._byID.get(id);
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end get
+
+   /**
+    * @return the IDs of every point, in no particular order
+    */
+   public List<Integer> ids() {
+      this._lock.readLock().lock();
+      try {
+         return new ArrayList<Integer>(this._byID.keySet());
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end ids
+
+   public int size() {
+      this._lock.readLock().lock();
+      try {
+         return this._byID.size();
+      } finally {
+         this._lock.readLock().unlock();
+      }
+   }//end size
+
+   /**
+    * Finds every point strictly closer than the radius to the given location.
+    *
+    * @return the points found, in ascending ID order
+    */
+   public List<Entry<V>> withinRadius(double latitude, double longitude, double radius) {
+      List<Entry<V>> found = new ArrayList<Entry<V>>();
+      this._lock.readLock().lock();
+      try {
+         if (this._byID.isEmpty())
+            return found;
+         int x0 = Math.max(cell(latitude - radius), this._minX), x1 = Math.min(cell(latitude + radius), this._maxX);
+         int y0 = Math.max(cell(longitude - radius), this._minY), y1 = Math.min(cell(longitude + radius), this._maxY);
+         for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+               List<Entry<V>> bucket = this._cells.get(key(x, y));
+               if (bucket == null)
+                  continue;
+               for (Entry<V> entry : bucket) {
+                  if (distance(latitude, longitude, entry.latitude, entry.longitude) < radius)
+                     found.add(entry);
+               }
+            }
+         }
+      } finally {
+         this._lock.readLock().unlock();
+      }
+      Collections.sort(found, new Comparator<Entry<V>>() {
+         public int compare(Entry<V> a, Entry<V> b) {
+            return Integer.compare(a.id, b.id);
+         }
+      });
+      return found;
+   }//end withinRadius
+
+   /**
+    * Finds the k points closest to the given location.
+    *
+    * @return up to k points, closest first
+    */
+   public List<Entry<V>> nearest(double latitude, double longitude, int k) {
+      // max-heap on distance holding the best k candidates so far
+      PriorityQueue<Hit<V>> best = new PriorityQueue<Hit<V>>(Math.max(k, 1), new Comparator<Hit<V>>() {
+         public int compare(Hit<V> a, Hit<V> b) {
+            return Double.compare(b.distance, a.distance);
+         }
+      });
+      this._lock.readLock().lock();
+      try {
+         if (k <= 0 || this._byID.isEmpty())
+            return new ArrayList<Entry<V>>();
+         int cx = cell(latitude), cy = cell(longitude);
+         int maxRing = Math.max(Math.max(Math.abs(cx - this._minX), Math.abs(cx - this._maxX)),
+                                Math.max(Math.abs(cy - this._minY), Math.abs(cy - this._maxY)));
+         for (int ring = 0; ring <= maxRing; ring++) {
+            for (int x = cx - ring; x <= cx + ring; x++) {
+               // walk the border of the ring only; the inside was done before
+               int step = (x == cx - ring || x == cx + ring) ? 1 : 2 * ring;
+               for (int y = cy - ring; y <= cy + ring; y += Math.max(step, 1)) {
+                  List<Entry<V>> bucket = this._cells.get(key(x, y));
+                  if (bucket == null)
+                     continue;
+                  for (Entry<V> entry : bucket) {
+                     double d = distance(latitude, longitude, entry.latitude, entry.longitude);
+                     if (best.size() < k)
+                        best.add(new Hit<V>(entry, d));
+                     else if (d < best.peek().distance) {
+                        best.poll();
+                        best.add(new Hit<V>(entry, d));
+                     }
+                  }
+               }
+            }
+            // every point beyond this ring is at least ring cells away
+            if (best.size() == k && best.peek().distance <= ring * this._cellSize)
+               break;
+         }
+      } finally {
+         this._lock.readLock().unlock();
+      }
+      List<Entry<V>> found = new ArrayList<Entry<V>>();
+      while (!best.isEmpty())
+         found.add(best.poll().entry);
+      Collections.reverse(found);
+      return found;
+   }//end nearest
+}//end SpatialIndex
@@ -0,0 +1,212 @@
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps a least recently used cache of prepared statements for
+ * one physical database connection. Statements are keyed by their SQL text,
+ * so every call with the same query shape reuses the same parsed statement.
+ * Once a shape has been used often enough the statement is switched to a
+ * server side prepare so Postgres also keeps the plan.
+ *
+ */
+public class StatementCache {
+
+   // default number of statements kept open per connection.
+   public static final int DEFAULT_CAPACITY = 64;
+
+   // default number of uses before a statement is prepared on the server.
+   public static final int DEFAULT_SERVER_PREPARE_THRESHOLD = 5;
+
+   // the connection all cached statements belong to.
+   private final Connection _connection;
+
+   private final int _capacity;
+   private final int _serverPrepareThreshold;
+
+   // cached statements in access order, least recently used first.
+   private final LinkedHashMap<String, Entry> _statements;
+
+   private long _hits = 0;
+   private long _misses = 0;
+   private long _evictions = 0;
+
+   private static class Entry {
+      final PreparedStatement stmt;
+      int uses = 0;
+
+      Entry(PreparedStatement stmt) {
+         this.stmt = stmt;
+      }
+   }//end Entry
+
+   /**
+    * Creates a statement cache for the given connection
+    *
+    * @param connection the connection statements are prepared on
+    * @param capacity the maximum number of statements kept open
+    * @param serverPrepareThreshold number of uses before a server side prepare
+    */
+   public StatementCache(Connection connection, int capacity, int serverPrepareThreshold) {
+      this._connection = connection;
+      this._capacity = capacity;
+      this._serverPrepareThreshold = serverPrepareThreshold;
+      this._statements = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+   }//end StatementCache
+
+   public StatementCache(Connection connection) {
+      this(connection, DEFAULT_CAPACITY, DEFAULT_SERVER_PREPARE_THRESHOLD);
+   }
+
+   /**
+    * Returns the cached statement for the given query shape with the
+    * parameters bound, preparing it first if it is not cached yet.
+    *
+    * @param sql the query shape with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return a prepared statement ready to be executed
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public synchronized PreparedStatement prepare(String sql, Object... params) throws SQLException {
+      Entry entry = this._statements.get(sql);
+      if (entry == null) {
+         this._misses++;
+         entry = new Entry(this._connection.prepareStatement(sql));
+         this._statements.put(sql, entry);
+         evict();
+      }
+      else {
+         this._hits++;
+         entry.stmt.clearParameters();
+      }
+      if (++entry.uses == this._serverPrepareThreshold)
+         useServerPrepare(entry.stmt);
+      bind(entry.stmt, params);
+      return entry.stmt;
+   }//end prepare
+
+   /**
+    * Binds the given values to the placeholders of a statement.
+    */
+   public static void bind(PreparedStatement stmt, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; i++) {
+         if (params[i] == null)
+            stmt.setNull(i + 1, Types.VARCHAR);
+         else
+            stmt.setObject(i + 1, params[i]);
+      }
+   }//end bind
+
+   /**
+    * Writes values as a Postgres array literal, bound as one parameter
+    * and cast to an array type in the SQL, e.g. CAST(? AS integer[]). A
+    * list of any length then has one SQL text, and one cache entry.
+    *
+    * @param values the elements, null for NULL
+    * @return the literal, every element quoted
+    */
+   public static String array(Collection<?> values) {
+      StringBuilder array = new StringBuilder("{");
+      for (Object value : values) {
+         if (array.length() > 1)
+            array.append(',');
+         if (value == null) {
+            array.append("NULL");
+            continue;
+         }
+         array.append('"');
+         String text = String.valueOf(value);
+         for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\')
+               array.append('\\');
+            array.append(c);
+         }
+         array.append('"');
+      }
+      return array.append('}').toString();
+   }//end array
+
+   // closes the least recently used statements once the cache is full.
+   private void evict() {
+      Iterator<Map.Entry<String, Entry>> it = this._statements.entrySet().iterator();
+      while (this._statements.size() > this._capacity && it.hasNext()) {
+         Entry oldest = it.next().getValue();
+         it.remove();
+         this._evictions++;
+         try {
+            oldest.stmt.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end evict
+
+   /*
+    * Asks the driver to keep the statement prepared on the server. Newer
+    * drivers expose setPrepareThreshold, the 7.3 driver setUseServerPrepare;
+    * drivers with neither simply keep preparing on the client.
+    */
+   private static void useServerPrepare(PreparedStatement stmt) {
+      try {
+         Class<?> pgStatement = Class.forName("org.postgresql.PGStatement");
+         if (!pgStatement.isInstance(stmt))
+            return;
+         try {
+            Method m = pgStatement.getMethod("setPrepareThreshold", int.class);
+            m.invoke(stmt, 1);
+         }catch (NoSuchMethodException e) {
+            Method m = pgStatement.getMethod("setUseServerPrepare", boolean.class);
+            m.invoke(stmt, true);
+         }
+      }catch (Exception e) {
+         // ignored.
+      }
+   }//end useServerPrepare
+
+   public synchronized long getHits() {
+      return this._hits;
+   }
+
+   public synchronized long getMisses() {
+      return this._misses;
+   }
+
+   public synchronized int size() {
+      return this._statements.size();
+   }
+
+   /**
+    * @return the fraction of lookups answered from the cache
+    */
+   public synchronized double getHitRate() {
+      long total = this._hits + this._misses;
+      return total == 0 ? 0.0 : (double) this._hits / total;
+   }
+
+   /**
+    * Closes every cached statement.
+    */
+   public synchronized void close() {
+      for (Entry entry : this._statements.values()) {
+         try {
+            entry.stmt.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+      this._statements.clear();
+   }//end close
+
+   @Override
+   public synchronized String toString() {
+      return String.format("Statement cache: %d hits, %d misses, %d evictions, %d cached (%.1f%% hit rate)",
+         this._hits, this._misses, this._evictions, this._statements.size(), getHitRate() * 100);
+   }
+}//end StatementCache
@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class holds what the menus need to know about the logged in user:
+ * the user ID, the role, the coordinates and the stores the user manages.
+ * It is loaded once by LogIn so the menu operations don't have to look the
+ * user up again on every action.
+ *
+ */
+public class UserSession {
+
+   /**
+    * The userRole of a user, named as in the database.
+    */
+   public enum Role {
+      CUSTOMER, MANAGER, ADMIN;
+
+      /**
+       * @return the role of a userRole value, in any case
+       * @throws IllegalArgumentException when there is no such role
+       */
+      public static Role of(String value) {
+         return valueOf(value.trim().toUpperCase(Locale.ROOT));
+      }
+
+      @Override
+      public String toString() {
+         return name().toLowerCase(Locale.ROOT);
+      }
+   }//end Role
+
+   private final String _name;
+   private final int _userID;
+   private final Role _role;
+   private final double _latitude;
+   private final double _longitude;
+   private final List<Integer> _managedStores;
+
+   /**
+    * Creates the session of a logged in user
+    *
+    * @param name the login name
+    * @param userID the ID of the user
+    * @param role the role of the user
+    * @param latitude the latitude of the user
+    * @param longitude the longitude of the user
+    * @param managedStores the IDs of the stores the user manages
+    */
+   public UserSession(String name, int userID, Role role, double latitude, double longitude, List<Integer> managedStores) {
+      this._name = name;
+      this._userID = userID;
+      this._role = role;
+      this._latitude = latitude;
+      this._longitude = longitude;
+      this._managedStores = Collections.unmodifiableList(new ArrayList<Integer>(managedStores));
+   }//end UserSession
+
+   public String getName() {
+      return this._name;
+   }
+
+   public int getUserID() {
+      return this._userID;
+   }
+
+   public Role getRole() {
+      return this._role;
+   }
+
+   public double getLatitude() {
+      return this._latitude;
+   }
+
+   public double getLongitude() {
+      return this._longitude;
+   }
+
+   /**
+    * @return the IDs of the stores this user manages, in ascending order
+    */
+   public List<Integer> getManagedStores() {
+      return this._managedStores;
+   }
+
+   public boolean isAdmin() {
+      return this._role == Role.ADMIN;
+   }
+
+   /**
+    * @return true for managers and admins, who get the manager menu
+    */
+   public boolean isManager() {
+      return this._role == Role.MANAGER || isAdmin();
+   }
+
+   /**
+    * @return true if the user may manage the given store
+    */
+   public boolean manages(int storeID) {
+      return isAdmin() || this._managedStores.contains(storeID);
+   }
+}//end UserSession
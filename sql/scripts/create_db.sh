@@ -1,7 +1,21 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 #cs166_createdb $USER"_project_phase_3_DB"
-cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_tables.sql
-cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_indexes.sql
-cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/load_data.sql
-cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/triggers.sql
+
+# creates the tables, streams data/*.csv from this machine with COPY, then
+# adds the indexes, triggers and functions.
+#
+#   create_db.sh [scale [threads]]
+#
+# a scale of 100 loads the data 100 times over, as 100 separate copies.
+#
+# COPY needs a 42.x driver, the version java/pom.xml builds with, taken from
+# the local Maven repository (or $PGJDBC); lib/pg73jdbc3.jar has no COPY
+# API and would load with batched inserts.
+VERSION=$(sed -n 's:.*<postgresql.version>\(.*\)</postgresql.version>.*:\1:p' $DIR/../../java/pom.xml)
+PGJDBC=${PGJDBC:-$HOME/.m2/repository/org/postgresql/postgresql/$VERSION/postgresql-$VERSION.jar}
+if [ ! -f "$PGJDBC" ]; then
+   mvn -q dependency:get -Dartifact=org.postgresql:postgresql:$VERSION || exit 1
+fi
+javac -d $DIR/../../java/classes $DIR/../../java/src/*.java
+java -cp $DIR/../../java/classes:$PGJDBC BulkLoader $USER"_project_phase_3_DB" $PGPORT $USER $DIR/../../data $DIR/../src "$@"
@@ -1,22 +1,36 @@
-DROP INDEX Users_userID_idx;
-DROP INDEX Users_name_idx;
-DROP INDEX Orders_customerID_idx;
-DROP INDEX Products_storeID_productName_idx;
+DROP INDEX IF EXISTS Users_userID_idx;
+DROP INDEX IF EXISTS Users_name_idx;
+DROP INDEX IF EXISTS Orders_customerID_idx;
+DROP INDEX IF EXISTS Orders_customerID_orderTime_idx;
+DROP INDEX IF EXISTS Orders_storeID_orderTime_idx;
+DROP INDEX IF EXISTS Orders_orderTime_idx;
+DROP INDEX IF EXISTS ProductUpdates_storeID_updateNumber_idx;
+DROP INDEX IF EXISTS ProductUpdates_storeID_updatedOn_idx;
+DROP INDEX IF EXISTS Products_storeID_productName_idx;
 
-CREATE INDEX Users_userID_idx
-ON Users USING BTREE 
-(userID);
+-- Users_userID_idx and Products_storeID_productName_idx repeated the
+-- primary keys of Users and Product; they are only dropped now.
 
 CREATE INDEX Users_name_idx
 ON Users USING BTREE 
 (name);
 
-CREATE INDEX Orders_customerID_idx
+-- Orders and ProductUpdates indexes are made on every monthly partition;
+-- the recent views read them newest partition first.
+
+-- also serves lookups by customerID alone
+CREATE INDEX Orders_customerID_orderTime_idx
 ON Orders USING BTREE 
-(customerID);
+(customerID, orderTime);
 
-CREATE INDEX Products_storeID_productName_idx
-ON Product USING BTREE 
-(storeID, productName);
+CREATE INDEX Orders_storeID_orderTime_idx
+ON Orders USING BTREE 
+(storeID, orderTime);
 
+CREATE INDEX Orders_orderTime_idx
+ON Orders USING BTREE 
+(orderTime);
 
+CREATE INDEX ProductUpdates_storeID_updatedOn_idx
+ON ProductUpdates USING BTREE 
+(storeID, updatedOn);
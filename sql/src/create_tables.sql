@@ -5,13 +5,22 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS InventoryJournalCheckpoint CASCADE;
+DROP TABLE IF EXISTS ProductNames CASCADE;
+DROP TABLE IF EXISTS SalesRollup CASCADE;
+DROP TABLE IF EXISTS SalesRollupPending CASCADE;
+DROP TYPE IF EXISTS userRole CASCADE;
+DROP TYPE IF EXISTS salesGranularity CASCADE;
+
+CREATE TYPE userRole AS ENUM ('customer', 'manager', 'admin');
+CREATE TYPE salesGranularity AS ENUM ('hour', 'day', 'month');
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
                      password char(11) NOT NULL,    
 					 latitude decimal(8,6) NOT NULL,
                      longitude decimal(9,6) NOT NULL,
-                     type char(10) NOT NULL,  -- type can be 'customer', 'manager', 'admin' 
+                     type userRole NOT NULL,
                      PRIMARY KEY(userID)
 );
 
@@ -26,13 +35,22 @@ CREATE TABLE Store ( storeID integer,
                      FOREIGN KEY(managerID) REFERENCES Users(userID)
 );
 
+-- Every product name once. Products, orders, supply requests and updates
+-- refer to the name by its productID.
+CREATE TABLE ProductNames ( productID serial,
+                            productName char(30) NOT NULL,
+                            PRIMARY KEY(productID),
+                            UNIQUE(productName)
+);
+
 CREATE TABLE Product ( storeID integer NOT NULL, 
-                       productName char(30) NOT NULL,
+                       productID integer NOT NULL,
                        numberOfUnits integer NOT NULL,
                        pricePerUnit float NOT NULL,
-                       PRIMARY KEY(storeID, productName), 
+                       PRIMARY KEY(storeID, productID), 
                        FOREIGN KEY(storeID) REFERENCES Store(storeID)
-		               ON DELETE CASCADE
+		               ON DELETE CASCADE,
+                       FOREIGN KEY(productID) REFERENCES ProductNames(productID)
 );
 
 CREATE TABLE Warehouse ( WarehouseID integer,
@@ -45,34 +63,65 @@ CREATE TABLE Orders (
 					 orderNumber serial NOT NULL,       
 					 customerID integer NOT NULL,
                      storeID integer NOT NULL,
-                     productName char(30) NOT NULL, 
+                     productID integer NOT NULL,
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
-                     PRIMARY KEY(orderNumber),
+                     PRIMARY KEY(orderNumber, orderTime),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
-                     FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
-);
+                     FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
+) PARTITION BY RANGE (orderTime);  -- monthly partitions, see partitions.sql
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
 							   managerID integer NOT NULL,    --User ID of the Manager who makes the supply request
 							   warehouseID integer NOT NULL,
                                storeID integer NOT NULL,
-                               productName char(30) NOT NULL, 
+                               productID integer NOT NULL,
 							   unitsRequested integer NOT NULL,
                                PRIMARY KEY(requestNumber),
 							   FOREIGN KEY(managerID) REFERENCES Users(userID), 
                                FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID),
-                               FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                               FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
 );
 
 CREATE TABLE ProductUpdates (
 	 						updateNumber serial,	
 							managerID integer NOT NULL,
                         	storeID integer NOT NULL,
-                       		productName char(30) NOT NULL, 
+                       		productID integer NOT NULL,
                             updatedOn timestamp NOT NULL,
-                        	PRIMARY KEY(updateNumber),
+                        	PRIMARY KEY(updateNumber, updatedOn),
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
-                        	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                        	FOREIGN KEY(storeID, productID) REFERENCES Product(storeID, productID)
+) PARTITION BY RANGE (updatedOn);  -- monthly partitions, see partitions.sql
+
+-- How far the stock changes in an inventory engine journal have been
+-- written to Product; entries after flushedSeq are replayed on restart.
+CREATE TABLE InventoryJournalCheckpoint (
+                            journal varchar(255) NOT NULL,
+                            flushedSeq bigint NOT NULL,
+                            flushedAt timestamp NOT NULL,
+                            PRIMARY KEY(journal)
+);
+
+-- Units and revenue of the orders of every product of every store, summed
+-- by the hour, day and month they were placed in, see foldSales() in
+-- functions.sql. Revenue is taken at the price the product had when the
+-- sale was recorded. The sums stay when their orders are archived.
+CREATE TABLE SalesRollup ( granularity salesGranularity NOT NULL,
+                           bucketStart timestamp NOT NULL,
+                           storeID integer NOT NULL,
+                           productID integer NOT NULL,
+                           unitsOrdered bigint NOT NULL,
+                           revenue float NOT NULL,
+                           PRIMARY KEY(storeID, granularity, bucketStart, productID)
+);
+
+-- Sales of orders not yet added to SalesRollup, one row per order or
+-- bulk batch, so placing an order never waits for a lock on a sum.
+CREATE TABLE SalesRollupPending ( storeID integer NOT NULL,
+                                  productID integer NOT NULL,
+                                  hourStart timestamp NOT NULL,
+                                  unitsOrdered bigint NOT NULL,
+                                  revenue float NOT NULL
 );
@@ -0,0 +1,188 @@
+-- Checks that the customer may order from the store, raising AM001 if the
+-- store does not exist and AM002 if it is too far away.
+CREATE OR REPLACE FUNCTION checkStoreDistance(customer integer, store integer, maxDistance float)
+    RETURNS void AS $checkStoreDistance$
+    DECLARE
+        dist float;
+    BEGIN
+        SELECT SQRT(POW(s.latitude - u.latitude, 2) + POW(s.longitude - u.longitude, 2)) INTO dist
+        FROM Store s, Users u
+        WHERE s.storeID = store AND u.userID = customer;
+        IF NOT FOUND THEN
+            RAISE EXCEPTION 'Store does not exist!' USING ERRCODE = 'AM001';
+        END IF;
+        IF dist > maxDistance THEN
+            RAISE EXCEPTION 'Store is too far to order from!' USING ERRCODE = 'AM002';
+        END IF;
+    END;
+$checkStoreDistance$
+LANGUAGE plpgsql STABLE;
+
+-- Places an order in one round trip. The store distance, the product and
+-- the stock are checked and the order is inserted inside the caller's
+-- transaction; the product row stays locked from the stock check until the
+-- updateProduct trigger has decremented it, so concurrent orders cannot
+-- oversell. Rejections raise one of these SQLSTATEs:
+--   AM001 store does not exist      AM002 store is too far
+--   AM003 product does not exist    AM004 not enough units in stock
+--   AM005 unreasonable number of units
+-- Returns the order number and the time the order was placed at.
+DROP FUNCTION IF EXISTS placeOrder(integer, integer, integer, char(30), integer, float);
+CREATE OR REPLACE FUNCTION placeOrder(orderNum integer, customer integer, store integer,
+                                      product integer, units integer, maxDistance float,
+                                      OUT placedNumber integer, OUT placedAt timestamp)
+    AS $placeOrder$
+    DECLARE
+        inStock integer;
+    BEGIN
+        PERFORM checkStoreDistance(customer, store, maxDistance);
+
+        SELECT numberOfUnits INTO inStock
+        FROM Product p
+        WHERE p.storeID = store AND p.productID = product
+        FOR UPDATE;
+        IF NOT FOUND THEN
+            RAISE EXCEPTION 'Product does not exist' USING ERRCODE = 'AM003';
+        END IF;
+        IF units < 1 THEN
+            RAISE EXCEPTION 'Enter a reasonable number of items' USING ERRCODE = 'AM005';
+        END IF;
+        IF units > inStock THEN
+            RAISE EXCEPTION 'Only % units left in stock', inStock USING ERRCODE = 'AM004';
+        END IF;
+
+        placedNumber := orderNum;
+        placedAt := current_timestamp;
+        INSERT INTO Orders (orderNumber, customerID, storeID, productID, unitsOrdered, orderTime)
+        VALUES (placedNumber, customer, store, product, units, placedAt);
+    END;
+$placeOrder$
+LANGUAGE plpgsql VOLATILE;
+
+-- Places an order whose units the program's inventory engine has already
+-- reserved. Only the store distance is checked, and the order goes in with
+-- the updateProduct trigger skipped and without locking the product row:
+-- the engine writes the stock change later, together with other orders.
+-- The sale is recorded here since the recordSales trigger is skipped too.
+DROP FUNCTION IF EXISTS placeReservedOrder(integer, integer, integer, char(30), integer, float);
+CREATE OR REPLACE FUNCTION placeReservedOrder(orderNum integer, customer integer, store integer,
+                                              product integer, units integer, maxDistance float,
+                                              OUT placedNumber integer, OUT placedAt timestamp)
+    AS $placeReservedOrder$
+    BEGIN
+        PERFORM checkStoreDistance(customer, store, maxDistance);
+
+        placedNumber := orderNum;
+        placedAt := current_timestamp;
+        PERFORM set_config('amazon.bulk_load', 'on', true);
+        INSERT INTO Orders (orderNumber, customerID, storeID, productID, unitsOrdered, orderTime)
+        VALUES (placedNumber, customer, store, product, units, placedAt);
+        PERFORM set_config('amazon.bulk_load', 'off', true);
+        PERFORM recordSale(store, product, placedAt, units);
+    END;
+$placeReservedOrder$
+LANGUAGE plpgsql VOLATILE;
+
+-- Sets the stock and price of a product and returns the ProductUpdates row
+-- the auditUpdate trigger wrote for it, or no row if there is no such
+-- product.
+DROP FUNCTION IF EXISTS changeProduct(integer, char(30), integer, float);
+CREATE OR REPLACE FUNCTION changeProduct(store integer, changed integer, units integer, price float)
+    RETURNS SETOF ProductUpdates AS $changeProduct$
+    BEGIN
+        UPDATE Product p SET numberOfUnits = units, pricePerUnit = price
+        WHERE p.storeID = store AND p.productID = changed;
+        IF FOUND THEN
+            -- the trigger stamped it with this transaction's time, which
+            -- finds its partition without looking in the others
+            RETURN QUERY SELECT * FROM ProductUpdates
+            WHERE updateNumber = currval('productupdates_updatenumber_seq') AND updatedOn = localtimestamp;
+        END IF;
+    END;
+$changeProduct$
+LANGUAGE plpgsql VOLATILE;
+
+-- Sets the stock and price of a product without the auditUpdate trigger
+-- writing a ProductUpdates row, for programs that audit through their own
+-- log. Returns the time of the change, this transaction's, for the row
+-- the program writes, or NULL if there is no such product.
+DROP FUNCTION IF EXISTS changeProductUnaudited(integer, char(30), integer, float);
+DROP FUNCTION IF EXISTS changeProductUnaudited(integer, integer, integer, float);
+CREATE OR REPLACE FUNCTION changeProductUnaudited(store integer, changed integer, units integer, price float)
+    RETURNS timestamp AS $changeProductUnaudited$
+    DECLARE
+        changedRows integer;
+    BEGIN
+        PERFORM set_config('amazon.audit', 'deferred', true);
+        UPDATE Product p SET numberOfUnits = units, pricePerUnit = price
+        WHERE p.storeID = store AND p.productID = changed;
+        GET DIAGNOSTICS changedRows = ROW_COUNT;
+        PERFORM set_config('amazon.audit', 'immediate', true);
+        IF changedRows = 0 THEN
+            RETURN NULL;
+        END IF;
+        RETURN localtimestamp;
+    END;
+$changeProductUnaudited$
+LANGUAGE plpgsql VOLATILE;
+
+-- Records the sale of an order for the sales rollups: its units, and its
+-- revenue at the current price of the product, in the hour it was placed.
+CREATE OR REPLACE FUNCTION recordSale(store integer, product integer, soldAt timestamp, units integer)
+    RETURNS void AS $recordSale$
+    BEGIN
+        INSERT INTO SalesRollupPending (storeID, productID, hourStart, unitsOrdered, revenue)
+        SELECT p.storeID, p.productID, date_trunc('hour', soldAt), units, units * p.pricePerUnit
+        FROM Product p
+        WHERE p.storeID = store AND p.productID = product;
+    END;
+$recordSale$
+LANGUAGE plpgsql VOLATILE;
+
+-- Adds the pending sales to the hour, day and month sums of SalesRollup
+-- and deletes them, in one transaction, so a query reading both tables
+-- counts every sale once. Folds run one at a time; sales recorded while
+-- one runs are left for the next. Returns the number of rows folded.
+CREATE OR REPLACE FUNCTION foldSales()
+    RETURNS integer AS $foldSales$
+    DECLARE
+        folded integer;
+    BEGIN
+        PERFORM pg_advisory_xact_lock('SalesRollup'::regclass::oid::bigint);
+        WITH moved AS (
+            DELETE FROM SalesRollupPending
+            RETURNING storeID, productID, hourStart, unitsOrdered, revenue
+        ), added AS (
+            INSERT INTO SalesRollup (granularity, bucketStart, storeID, productID, unitsOrdered, revenue)
+            SELECT g.granularity, date_trunc(g.granularity::text, m.hourStart), m.storeID, m.productID,
+                   SUM(m.unitsOrdered), SUM(m.revenue)
+            FROM moved m CROSS JOIN unnest(enum_range(NULL::salesGranularity)) AS g (granularity)
+            GROUP BY 1, 2, 3, 4
+            ON CONFLICT (storeID, granularity, bucketStart, productID) DO UPDATE
+            SET unitsOrdered = SalesRollup.unitsOrdered + EXCLUDED.unitsOrdered,
+                revenue = SalesRollup.revenue + EXCLUDED.revenue
+        )
+        SELECT count(*) INTO folded FROM moved;
+        RETURN folded;
+    END;
+$foldSales$
+LANGUAGE plpgsql VOLATILE;
+
+-- Builds the sales rollups again from the orders in Orders, after a load
+-- that wrote them with the triggers off. The sums of archived orders are
+-- lost, so it is not for a database whose old months were archived.
+CREATE OR REPLACE FUNCTION rebuildSalesRollup()
+    RETURNS integer AS $rebuildSalesRollup$
+    BEGIN
+        PERFORM pg_advisory_xact_lock('SalesRollup'::regclass::oid::bigint);
+        DELETE FROM SalesRollup;
+        DELETE FROM SalesRollupPending;
+        INSERT INTO SalesRollupPending (storeID, productID, hourStart, unitsOrdered, revenue)
+        SELECT o.storeID, o.productID, date_trunc('hour', o.orderTime), SUM(o.unitsOrdered), SUM(o.unitsOrdered * p.pricePerUnit)
+        FROM Orders o, Product p
+        WHERE p.storeID = o.storeID AND p.productID = o.productID
+        GROUP BY 1, 2, 3;
+        RETURN foldSales();
+    END;
+$rebuildSalesRollup$
+LANGUAGE plpgsql VOLATILE;
@@ -0,0 +1,67 @@
+CREATE OR REPLACE LANGUAGE plpgsql;
+
+-- Orders and ProductUpdates are partitioned by month of orderTime and
+-- updatedOn. The partition of a month is named after its table and month,
+-- e.g. orders_y2016m09. There is no default partition, so a row of a month
+-- without a partition is refused: the program keeps the coming months
+-- created with maintainPartitions, and bulk loads create the months of
+-- their rows with createPartitions first.
+
+-- Creates the missing monthly partitions of a table from the month of
+-- fromTime to the month of toTime, both included, and returns how many
+-- were created. Months that have one already take no lock, so this is
+-- cheap to call before every write of old rows.
+CREATE OR REPLACE FUNCTION createPartitions(parent text, fromTime timestamp, toTime timestamp)
+    RETURNS integer AS $createPartitions$
+    DECLARE
+        monthStart timestamp := date_trunc('month', fromTime);
+        partitionName text;
+        created integer := 0;
+    BEGIN
+        WHILE monthStart <= toTime LOOP
+            partitionName := lower(parent) || '_y' || to_char(monthStart, 'YYYY') || 'm' || to_char(monthStart, 'MM');
+            IF to_regclass(partitionName) IS NULL THEN
+                -- one creator at a time per table, so two callers don't race on a month
+                PERFORM pg_advisory_xact_lock(parent::regclass::oid::bigint);
+                IF to_regclass(partitionName) IS NULL THEN
+                    EXECUTE format('CREATE TABLE %I PARTITION OF %s FOR VALUES FROM (%L) TO (%L)',
+                                   partitionName, parent, monthStart, monthStart + interval '1 month');
+                    created := created + 1;
+                END IF;
+            END IF;
+            monthStart := monthStart + interval '1 month';
+        END LOOP;
+        RETURN created;
+    END;
+$createPartitions$
+LANGUAGE plpgsql VOLATILE;
+
+-- Creates the partitions of the current month and the monthsAhead months
+-- after it for Orders and ProductUpdates; the program runs this when it
+-- starts and once a day.
+CREATE OR REPLACE FUNCTION maintainPartitions(monthsAhead integer)
+    RETURNS integer AS $maintainPartitions$
+    BEGIN
+        RETURN createPartitions('Orders', localtimestamp, localtimestamp + monthsAhead * interval '1 month')
+             + createPartitions('ProductUpdates', localtimestamp, localtimestamp + monthsAhead * interval '1 month');
+    END;
+$maintainPartitions$
+LANGUAGE plpgsql VOLATILE;
+
+-- The partitions of Orders and ProductUpdates holding only rows from
+-- before the given time, oldest first, for archiving.
+CREATE OR REPLACE FUNCTION partitionsBefore(before timestamp)
+    RETURNS TABLE(parent text, partition text, upTo timestamp) AS $partitionsBefore$
+        SELECT * FROM (
+            SELECT p.relname::text, c.relname::text,
+                   substring(pg_get_expr(c.relpartbound, c.oid) FROM 'TO \(''([^'']*)''\)')::timestamp AS upTo
+            FROM pg_inherits i
+            JOIN pg_class c ON c.oid = i.inhrelid
+            JOIN pg_class p ON p.oid = i.inhparent
+            WHERE p.relname IN ('orders', 'productupdates')
+              AND p.relnamespace = current_schema()::regnamespace
+        ) bounds
+        WHERE bounds.upTo <= before
+        ORDER BY bounds.upTo, 1;
+$partitionsBefore$
+LANGUAGE sql STABLE;
@@ -1,9 +1,23 @@
 CREATE OR REPLACE LANGUAGE plpgsql;
+
+-- Bulk loads set amazon.bulk_load to 'on' for their transaction and adjust
+-- Product with one aggregated update per product, so the row triggers
+-- below step aside while it is set.
+
+-- Every change to a Product row is announced on the product_changed
+-- channel once it commits, for the product catalog cached by the program:
+-- 'U' or 'D', storeID, numberOfUnits, pricePerUnit, productID.
+-- Updates made with amazon.audit set to 'deferred' are not audited here;
+-- the program writes their ProductUpdates rows later from its audit log.
 CREATE OR REPLACE FUNCTION updates()
     RETURNS "trigger" AS $auditUpdate$
     BEGIN
+        PERFORM pg_notify('product_changed', 'U,' || NEW.storeID || ',' || NEW.numberOfUnits || ',' || NEW.pricePerUnit || ',' || NEW.productID);
+        IF (current_setting('amazon.bulk_load', true) = 'on' OR current_setting('amazon.audit', true) = 'deferred') THEN
+            RETURN NEW;
+        END IF;
         IF (pg_trigger_depth() = 1) THEN
-            insert into ProductUpdates (managerID, storeID, productName, updatedOn) values ((SELECT managerID FROM Store s1 WHERE s1.storeID = NEW.storeID), NEW.storeID, NEW.productName,current_timestamp);
+            insert into ProductUpdates (managerID, storeID, productID, updatedOn) values ((SELECT managerID FROM Store s1 WHERE s1.storeID = NEW.storeID), NEW.storeID, NEW.productID,current_timestamp);
         END IF;
         RETURN NEW;
     END;
@@ -14,13 +28,66 @@ DROP TRIGGER IF EXISTS auditUpdate ON Product;
 CREATE TRIGGER auditUpdate BEFORE Update ON Product 
 FOR EACH ROW EXECUTE PROCEDURE updates();
 
+CREATE OR REPLACE FUNCTION productListed()
+    RETURNS "trigger" AS $listProduct$
+    BEGIN
+        IF (TG_OP = 'DELETE') THEN
+            PERFORM pg_notify('product_changed', 'D,' || OLD.storeID || ',0,0,' || OLD.productID);
+            RETURN OLD;
+        END IF;
+        PERFORM pg_notify('product_changed', 'U,' || NEW.storeID || ',' || NEW.numberOfUnits || ',' || NEW.pricePerUnit || ',' || NEW.productID);
+        RETURN NEW;
+    END;
+$listProduct$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS listProduct ON Product;
+CREATE TRIGGER listProduct AFTER INSERT OR DELETE ON Product
+FOR EACH ROW EXECUTE PROCEDURE productListed();
+
+-- Every change to a Store or Warehouse row is announced on the
+-- location_changed channel once it commits, for the location indexes of
+-- the program: the table, then the storeID or warehouseID, named by the
+-- trigger argument. The program reads the row again.
+CREATE OR REPLACE FUNCTION locationChanged()
+    RETURNS "trigger" AS $locationChanged$
+    DECLARE
+        oldID text;
+        newID text;
+    BEGIN
+        IF (TG_OP <> 'INSERT') THEN
+            oldID := row_to_json(OLD) ->> TG_ARGV[0];
+            PERFORM pg_notify('location_changed', TG_TABLE_NAME || ',' || oldID);
+        END IF;
+        IF (TG_OP <> 'DELETE') THEN
+            newID := row_to_json(NEW) ->> TG_ARGV[0];
+            IF (newID IS DISTINCT FROM oldID) THEN
+                PERFORM pg_notify('location_changed', TG_TABLE_NAME || ',' || newID);
+            END IF;
+        END IF;
+        RETURN NULL;
+    END;
+$locationChanged$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS locateStore ON Store;
+CREATE TRIGGER locateStore AFTER INSERT OR UPDATE OR DELETE ON Store
+FOR EACH ROW EXECUTE PROCEDURE locationChanged('storeid');
+
+DROP TRIGGER IF EXISTS locateWarehouse ON Warehouse;
+CREATE TRIGGER locateWarehouse AFTER INSERT OR UPDATE OR DELETE ON Warehouse
+FOR EACH ROW EXECUTE PROCEDURE locationChanged('warehouseid');
+
 CREATE OR REPLACE FUNCTION orderProduct()
     RETURNS "trigger" AS $updateProduct$
     BEGIN
+        IF (current_setting('amazon.bulk_load', true) = 'on') THEN
+            RETURN NEW;
+        END IF;
 
         UPDATE Product p 
         SET numberOfUnits = p.numberOfUnits - NEW.unitsOrdered 
-        WHERE p.storeID = NEW.storeID AND p.productName = NEW.productName;
+        WHERE p.storeID = NEW.storeID AND p.productID = NEW.productID;
         RETURN NEW;
     END;
 $updateProduct$
@@ -33,13 +100,34 @@ DROP TRIGGER IF EXISTS updateProduct ON Orders;
 CREATE TRIGGER updateProduct AFTER INSERT ON Orders 
 FOR EACH ROW EXECUTE PROCEDURE orderProduct();
 
+-- Orders written with amazon.bulk_load set record their sales themselves.
+CREATE OR REPLACE FUNCTION orderSold()
+    RETURNS "trigger" AS $recordSales$
+    BEGIN
+        IF (current_setting('amazon.bulk_load', true) = 'on') THEN
+            RETURN NEW;
+        END IF;
+
+        PERFORM recordSale(NEW.storeID, NEW.productID, NEW.orderTime, NEW.unitsOrdered);
+        RETURN NEW;
+    END;
+$recordSales$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS recordSales ON Orders;
+CREATE TRIGGER recordSales AFTER INSERT ON Orders
+FOR EACH ROW EXECUTE PROCEDURE orderSold();
+
 CREATE OR REPLACE FUNCTION resupply()
     RETURNS "trigger" AS $resup$
     BEGIN
+        IF (current_setting('amazon.bulk_load', true) = 'on') THEN
+            RETURN NEW;
+        END IF;
 
         UPDATE Product p 
         SET numberOfUnits = p.numberOfUnits + NEW.unitsRequested 
-        WHERE p.storeID = NEW.storeID AND p.productName = NEW.productName;
+        WHERE p.storeID = NEW.storeID AND p.productID = NEW.productID;
         RETURN NEW;
     END;
 $resup$